@@ -1,5 +1,6 @@
 import static play.Play.application;
 import jackrabbit.AorraAccessManager;
+import jackrabbit.PermissionStore;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -12,6 +13,7 @@ import play.libs.F.Function;
 import play.mvc.Call;
 import service.GuiceInjectionPlugin;
 import service.JcrSessionFactory;
+import service.filestore.FileStoreImpl;
 
 import com.feth.play.module.pa.PlayAuthenticate;
 import com.feth.play.module.pa.PlayAuthenticate.Resolver;
@@ -102,6 +104,18 @@ public class Global extends GlobalSettings {
         return session;
       }
     });
+    // Sessions are pooled, so tell them when inherited permissions change
+    try {
+      PermissionStore.getInstance().observe(
+          sessionFactory().newAdminSession(), FileStoreImpl.FILE_STORE_PATH);
+    } catch (RepositoryException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void onStop(final Application app) {
+    PermissionStore.getInstance().stopObserving();
   }
 
 }
@@ -1,16 +1,17 @@
 package boxrenderer;
 
+import graphics.FontCache;
+
 import java.awt.Font;
 import java.io.InputStream;
 import java.util.Map;
-
-import org.apache.poi.util.IOUtils;
+import java.util.concurrent.Callable;
 
 import com.google.common.collect.Maps;
 
 public class FontManager {
 
-    private Resolver resolver;
+    private final Resolver resolver;
 
     private Map<String, Font> fonts = Maps.newHashMap();
 
@@ -18,15 +19,21 @@ public class FontManager {
         this.resolver = resolver;
     }
 
-    public void registerFont(String family, String src) {
+    public void registerFont(String family, final String src) {
         try {
-            InputStream stream = resolver.resolve(src);
-            if(stream == null) {
-                throw new Exception("failed to resolve "+src);
-            }
-            Font font = Font.createFont(Font.TRUETYPE_FONT, stream);
+            // Resolvers of the same class resolve sources the same way
+            Font font = FontCache.font(resolver.getClass().getName()+":"+src,
+                    new Callable<InputStream>() {
+                @Override
+                public InputStream call() throws Exception {
+                    InputStream stream = resolver.resolve(src);
+                    if(stream == null) {
+                        throw new Exception("failed to resolve "+src);
+                    }
+                    return stream;
+                }
+            });
             fonts.put(family, font);
-            IOUtils.closeQuietly(stream);
         } catch(Exception e) {
             throw new RuntimeException(String.format(
                     "failed to register font %s with source %s", family, src), e);
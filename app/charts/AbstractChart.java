@@ -1,14 +1,18 @@
 package charts;
 
 import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.util.Date;
 
+import javax.imageio.ImageIO;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -16,13 +20,13 @@ import javax.xml.transform.stream.StreamResult;
 
 import net.hanjava.svg.SVG2EMF;
 
-import org.apache.batik.dom.svg.SAXSVGDocumentFactory;
+import org.apache.batik.dom.svg.SVGDOMImplementation;
+import org.apache.batik.dom.util.DOMUtilities;
 import org.apache.batik.transcoder.SVGAbstractTranscoder;
 import org.apache.batik.transcoder.TranscoderException;
 import org.apache.batik.transcoder.TranscoderInput;
 import org.apache.batik.transcoder.TranscoderOutput;
 import org.apache.batik.transcoder.image.PNGTranscoder;
-import org.apache.batik.util.XMLResourceDescriptor;
 import org.apache.fop.render.ps.EPSTranscoder;
 import org.apache.fop.svg.PDFTranscoder;
 import org.w3c.dom.Document;
@@ -35,7 +39,9 @@ public abstract class AbstractChart implements Chart {
 
   private Date created = new Date();
 
-  private String svgDocument = null;
+  private Document svgDOM = null;
+
+  private volatile long svgDOMSize = 0;
 
   @Override
   public abstract ChartDescription getDescription();
@@ -47,6 +53,15 @@ public abstract class AbstractChart implements Chart {
   @Override
   public Representation outputAs(Format format, Dimension queryDimensions)
       throws UnsupportedFormatException {
+    return outputAs(format, queryDimensions, false);
+  }
+
+  /**
+   * @param rasterizeDirectly draw PNGs straight into an image with Java2D,
+   *          rather than transcoding the SVG
+   */
+  public Representation outputAs(Format format, Dimension queryDimensions,
+      boolean rasterizeDirectly) throws UnsupportedFormatException {
     switch (format) {
     case CSV:
       return format.createRepresentation(getCSV());
@@ -57,7 +72,8 @@ public abstract class AbstractChart implements Chart {
       return format.createRepresentation(
           renderSVG(getChart(), queryDimensions));
     case PNG:
-      return format.createRepresentation(
+      return format.createRepresentation(rasterizeDirectly ?
+          renderImage(getChart(), queryDimensions) :
           renderPNG(getChart(), queryDimensions));
     case EPS:
       return format.createRepresentation(
@@ -71,7 +87,7 @@ public abstract class AbstractChart implements Chart {
 
   protected byte[] renderPDF(Drawable d, Dimension dimensions) {
     try {
-        Document doc = toDocument(getDrawableDocument(d), dimensions);
+        Document doc = toDocument(d, dimensions);
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         PDFTranscoder t = new PDFTranscoder();
         if (dimensions.getWidth() > 0.0) {
@@ -82,10 +98,8 @@ public abstract class AbstractChart implements Chart {
             t.addTranscodingHint(SVGAbstractTranscoder.KEY_HEIGHT,
                     (float) dimensions.getHeight());
         }
-        t.transcode(new TranscoderInput(doc), new TranscoderOutput(os));
+        t.transcode(transcoderInput(doc), new TranscoderOutput(os));
         return os.toByteArray();
-    } catch(IOException e) {
-        throw new RuntimeException(e);
     } catch(TranscoderException e) {
         throw new RuntimeException(e);
     }
@@ -93,7 +107,7 @@ public abstract class AbstractChart implements Chart {
 
   protected String renderEPS(Drawable d, Dimension dimensions) {
     try {
-        Document doc = toDocument(getDrawableDocument(d), dimensions);
+        Document doc = toDocument(d, dimensions);
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         EPSTranscoder t = new EPSTranscoder();
         if (dimensions.getWidth() > 0.0) {
@@ -104,10 +118,8 @@ public abstract class AbstractChart implements Chart {
             t.addTranscodingHint(SVGAbstractTranscoder.KEY_HEIGHT,
                     (float) dimensions.getHeight());
         }
-        t.transcode(new TranscoderInput(doc), new TranscoderOutput(os));
+        t.transcode(transcoderInput(doc), new TranscoderOutput(os));
         return os.toString();
-    } catch(IOException e) {
-        throw new RuntimeException(e);
     } catch(TranscoderException e) {
         throw new RuntimeException(e);
     }
@@ -127,7 +139,7 @@ public abstract class AbstractChart implements Chart {
 
   protected byte[] renderPNG(Drawable d, Dimension dimensions) {
     try {
-      Document doc = toDocument(getDrawableDocument(d), dimensions);
+      Document doc = toDocument(d, dimensions);
       ByteArrayOutputStream os = new ByteArrayOutputStream();
       PNGTranscoder t = new PNGTranscoder();
       if (dimensions.getWidth() > 0.0) {
@@ -138,41 +150,78 @@ public abstract class AbstractChart implements Chart {
         t.addTranscodingHint(SVGAbstractTranscoder.KEY_HEIGHT,
             (float) dimensions.getHeight());
       }
-      t.transcode(new TranscoderInput(doc), new TranscoderOutput(os));
+      t.transcode(transcoderInput(doc), new TranscoderOutput(os));
       return os.toByteArray();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     } catch (TranscoderException e) {
       throw new RuntimeException(e);
     }
   }
 
   protected String renderSVG(Drawable d, Dimension dimensions) {
-    final Document doc;
+    return serialize(toDocument(d, dimensions));
+  }
+
+  /*
+   * Draw the chart straight into an image with Java2D, scaled the same way
+   * the SVG would be. The (cached) SVG DOM only provides the natural size,
+   * so output dimensions match the other formats exactly.
+   */
+  protected byte[] renderImage(Drawable d, Dimension dimensions) {
+    final Dimension original = extractSvgDimensions(getDrawableDOM(d));
+    final Dimension scaled = scaleDimensions(original, dimensions);
+    final int w = (int) Math.round(scaled.getWidth());
+    final int h = (int) Math.round(scaled.getHeight());
+    final BufferedImage image =
+        new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = image.createGraphics();
     try {
-      doc = new SAXSVGDocumentFactory(
-          XMLResourceDescriptor.getXMLParserClassName())
-          .createDocument("file:///test.svg",
-              new CharArrayReader(getDrawableDocument(d).toCharArray()));
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+          RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+          RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING,
+          RenderingHints.VALUE_RENDER_QUALITY);
+      // Keep the aspect ratio and centre, as the SVG viewBox would
+      final double scale = Math.min(w / original.getWidth(),
+          h / original.getHeight());
+      g.translate((w - original.getWidth() * scale) / 2,
+          (h - original.getHeight() * scale) / 2);
+      g.scale(scale, scale);
+      g.setFont(new Font("Liberation Sans", Font.PLAIN, 11));
+      d.getDimension(g);
+      d.draw(g);
+    } finally {
+      g.dispose();
     }
-    scaleSvg(doc, dimensions);
-    final StringWriter sw = new StringWriter();
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
     try {
-      TransformerFactory.newInstance().newTransformer()
-        .transform(new DOMSource(doc), new StreamResult(sw));
-    } catch (TransformerException e) {
+      ImageIO.write(image, "png", os);
+    } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    return sw.toString();
+    return os.toByteArray();
   }
 
   protected String getDrawableDocument(Drawable d) {
-    if (svgDocument == null) {
-      svgDocument = (new ChartRenderer(d)).render();
+    final Document master = getDrawableDOM(d);
+    synchronized (this) {
+      return serialize(master);
     }
-    return svgDocument;
+  }
+
+  /**
+   * Draws the chart the first time it's needed. All formats are produced
+   * from this one DOM, so the chart is only ever drawn once.
+   *
+   * @return SVG DOM for the chart, which must not be modified
+   */
+  protected synchronized Document getDrawableDOM(Drawable d) {
+    if (svgDOM == null) {
+      svgDOM = (new ChartRenderer(d)).renderDocument();
+      // Batik DOM nodes and their attributes are a few hundred bytes each
+      svgDOMSize = 300L * svgDOM.getElementsByTagName("*").getLength();
+    }
+    return svgDOM;
   }
 
   protected Float getFloat(String[] values) {
@@ -235,17 +284,43 @@ public abstract class AbstractChart implements Chart {
     return dScaled;
   }
 
-  private Document toDocument(String svg, Dimension dimensions)
-      throws IOException {
-    // Turn back into DOM
-    String parserName = XMLResourceDescriptor.getXMLParserClassName();
-    SAXSVGDocumentFactory f = new SAXSVGDocumentFactory(parserName);
-    Document doc = f.createDocument("file:///test.svg",
-        new CharArrayReader(svg.toCharArray()));
+  private Document toDocument(Drawable d, Dimension dimensions) {
+    // Copy the rendered DOM, rather than serialising and parsing it again
+    final Document master = getDrawableDOM(d);
+    final Document doc;
+    synchronized (this) {
+      doc = DOMUtilities.deepCloneDocument(master,
+          SVGDOMImplementation.getDOMImplementation());
+    }
     scaleSvg(doc, dimensions);
     return doc;
   }
 
+  private static String serialize(Document doc) {
+    final StringWriter sw = new StringWriter();
+    try {
+      TransformerFactory.newInstance().newTransformer()
+        .transform(new DOMSource(doc), new StreamResult(sw));
+    } catch (TransformerException e) {
+      throw new RuntimeException(e);
+    }
+    return sw.toString();
+  }
+
+  private static TranscoderInput transcoderInput(Document doc) {
+    final TranscoderInput input = new TranscoderInput(doc);
+    input.setURI("file:///test.svg");
+    return input;
+  }
+
+  /**
+   * @return approximate retained size of this chart in bytes
+   */
+  public long estimatedSize() {
+    // Allow for the drawable and its dataset, plus the rendered DOM
+    return 4096 + svgDOMSize;
+  }
+
   @Override 
   public Date created() {
     return created;
@@ -42,6 +42,10 @@ public class ChartDescription {
         this.title = title;
     }
 
+    protected ChartDescription(ChartDescription other) {
+      this(other.type, other.region, other.parameters, other.title);
+    }
+
     public ChartType getType() {
       return type;
     }
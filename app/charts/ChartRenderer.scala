@@ -1,19 +1,41 @@
 package charts
 
 import java.awt.Font
-import java.awt.GraphicsEnvironment
 import java.awt.RenderingHints
-import java.io.CharArrayWriter
 import org.apache.batik.dom.svg.SVGDOMImplementation
+import org.apache.batik.util.SVGConstants
+import org.apache.batik.util.XMLConstants
 import org.apache.batik.svggen.DefaultExtensionHandler
 import org.apache.batik.svggen.ImageHandlerBase64Encoder
+import org.apache.batik.svggen.SVGCSSStyler
 import org.apache.batik.svggen.SVGGraphics2D
 import org.w3c.dom.svg.SVGDocument
+import graphics.FontCache
 import svg.AorraSvgGraphics2D
 
 class ChartRenderer(val chart: Drawable) {
 
-  def render() = {
+  /**
+   * Render to an SVG DOM, so it can be transcoded without being serialised
+   * and parsed again. The DOM is styled as SVGGraphics2D.stream(w, true)
+   * would be, so serialising it gives the same markup.
+   */
+  def renderDocument(): SVGDocument = {
+    val g2 = draw()
+    val doc = g2.getDOMFactory().asInstanceOf[SVGDocument]
+    // Populate the existing document element, rather than a detached root
+    val root = g2.getRoot(doc.getDocumentElement())
+    g2.dispose
+    root.setAttributeNS(XMLConstants.XMLNS_NAMESPACE_URI,
+        XMLConstants.XMLNS_PREFIX, SVGConstants.SVG_NAMESPACE_URI)
+    root.setAttributeNS(XMLConstants.XMLNS_NAMESPACE_URI,
+        XMLConstants.XMLNS_PREFIX + ":" + XMLConstants.XLINK_PREFIX,
+        XMLConstants.XLINK_NAMESPACE_URI)
+    SVGCSSStyler.style(root)
+    doc
+  }
+
+  private def draw() = {
     // Make sure our fonts are available
     registerFonts()
     // Get a DOMImplementation.
@@ -36,24 +58,12 @@ class ChartRenderer(val chart: Drawable) {
       RenderingHints.VALUE_ANTIALIAS_ON)
     chart.draw(g2)
     g2.setSVGCanvasSize(d)
-
-    val cw = new CharArrayWriter()
-    g2.stream(cw, true)
-    g2.dispose
-
-    cw.toString()
+    g2
   }
 
   protected def registerFonts() {
-    val ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-    Seq("Regular", "Bold").map(f => s"LiberationSans-$f.ttf").foreach { font =>
-      val fontStream = classOf[ChartRenderer].getResourceAsStream(font)
-      try {
-        ge.registerFont(Font.createFont(Font.TRUETYPE_FONT, fontStream))
-      } catch { // It's in the classpath, so failure should never happen
-        case e: Throwable => throw new RuntimeException(e)
-      }
-    }
+    // Only loads and registers the fonts the first time
+    FontCache.registerChartFonts()
   }
 
 }
@@ -13,4 +13,53 @@ public interface ChartCache {
 
   public void update(String fileId, List<Chart> charts);
 
-}
\ No newline at end of file
+  public Stats stats();
+
+  public static class Stats {
+
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final long entries;
+    // Estimated heap retained by cached charts and their datasources
+    public final long bytes;
+    public final long maxBytes;
+    // Chart lists built from a datasource
+    public final long builds;
+    // Requests which joined a build already in progress
+    public final long coalesced;
+    // Builds restarted because the file changed underneath them
+    public final long restarts;
+    // Builds abandoned after exceeding the build timeout
+    public final long timeouts;
+    public final int inFlight;
+
+    public Stats(long hits, long misses, long evictions, long entries,
+        long bytes, long maxBytes, long builds, long coalesced, long restarts,
+        long timeouts, int inFlight) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.entries = entries;
+      this.bytes = bytes;
+      this.maxBytes = maxBytes;
+      this.builds = builds;
+      this.coalesced = coalesced;
+      this.restarts = restarts;
+      this.timeouts = timeouts;
+      this.inFlight = inFlight;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "hits: %d, misses: %d, evictions: %d, entries: %d, bytes: %d/%d, " +
+          "builds: %d, coalesced: %d, restarts: %d, timeouts: %d, " +
+          "in flight: %d",
+          hits, misses, evictions, entries, bytes, maxBytes,
+          builds, coalesced, restarts, timeouts, inFlight);
+    }
+
+  }
+
+}
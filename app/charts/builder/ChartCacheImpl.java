@@ -2,53 +2,157 @@ package charts.builder;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import play.Logger;
 import play.Play;
-import play.libs.F;
+import scala.concurrent.ExecutionContextExecutor;
 import scala.concurrent.Future;
+import scala.concurrent.Promise;
+import scala.concurrent.duration.Duration;
 import service.EventManager;
 import service.EventManager.EventReceiver;
 import service.EventManager.EventReceiverMessage;
 import service.OrderedEvent;
+import akka.actor.Scheduler;
 import akka.actor.TypedActor;
+import akka.dispatch.Futures;
+import charts.AbstractChart;
 import charts.Chart;
 import charts.Region;
+import charts.builder.spreadsheet.SpreadsheetDataSource;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
-public class ChartCacheImpl implements ChartCache {
+public class ChartCacheImpl implements ChartCache, TypedActor.PostStop {
+
+  /*
+   * A chart list build in progress. Concurrent requests for the same id all
+   * wait on the same promise, so a spreadsheet is only opened once.
+   */
+  private static class Flight {
+    final Promise<List<Chart>> promise = Futures.promise();
+    // Set when the file changes during the build. Guarded by this.
+    boolean stale = false;
+    // Build attempt in progress, cancelled if stale or timed out. Guarded by
+    // this.
+    FutureTask<List<Chart>> attempt;
+  }
 
   private final DefaultChartBuilder chartBuilder;
+  // Builds run here, so cancelling one only ever interrupts our own threads
+  private final ThreadPoolExecutor executor;
+  private final ExecutionContextExecutor dispatcher;
+  private final Scheduler scheduler;
+  // Seconds
+  private final int buildTimeout;
+
+  private final ConcurrentMap<String, Flight> inFlight =
+      Maps.newConcurrentMap();
+
+  private final AtomicLong builds = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong restarts = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /*
+   * Cached charts, with the estimated bytes they retained when last weighed.
+   */
+  private static class Entry {
+    final List<Chart> charts;
+    final long weight;
+
+    Entry(List<Chart> charts) {
+      this.charts = charts;
+      this.weight = estimatedSize(charts);
+    }
+  }
+
+  private final AtomicLong cachedBytes = new AtomicLong();
 
-  private final Map<String, F.Promise<List<Chart>>> pmap = Maps.newHashMap();
+  private final long maxBytes;
+  private final Cache<String, Entry> cache;
 
-  private final Cache<String, List<Chart>> cache = CacheBuilder.newBuilder()
-      .maximumWeight(maxSize())
-      .weigher(new Weigher<String, List<Chart>>() {
+  public ChartCacheImpl(DefaultChartBuilder chartBuilder,
+      EventManager eventManager) {
+    this(chartBuilder, eventManager, Play.application().configuration()
+        .getInt("application.chartCache.buildTimeout", 45));
+  }
+
+  ChartCacheImpl(DefaultChartBuilder chartBuilder, EventManager eventManager,
+      int buildTimeout) {
+    this(chartBuilder, eventManager, buildTimeout,
+        Play.application().configuration().getLong(
+            "application.chartCache.maxBytes", 256L * 1024 * 1024));
+  }
+
+  ChartCacheImpl(DefaultChartBuilder chartBuilder, EventManager eventManager,
+      int buildTimeout, long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.cache = CacheBuilder.newBuilder()
+      // Guava splits the weight between segments, so with more than one a
+      // chart list bigger than a segment's share would never be kept
+      .concurrencyLevel(1)
+      .maximumWeight(maxBytes)
+      .weigher(new Weigher<String, Entry>() {
         @Override
-        public int weigh(String k, List<Chart> charts) {
-          return charts.size();
+        public int weigh(String k, Entry entry) {
+          cachedBytes.addAndGet(entry.weight);
+          return (int) Math.min(entry.weight, Integer.MAX_VALUE);
         }
       })
-      .removalListener(new RemovalListener<String, List<Chart>>() {
+      .removalListener(new RemovalListener<String, Entry>() {
         @Override
-        public void onRemoval(RemovalNotification<String, List<Chart>> entry) {
-          Logger.debug(String.format("Removing %s charts for id %s from cache",
-              entry.getValue().size(), entry.getKey()));
+        public void onRemoval(RemovalNotification<String, Entry> entry) {
+          cachedBytes.addAndGet(-entry.getValue().weight);
+          Logger.debug(String.format(
+              "Removing %s charts (%d bytes) for id %s from cache (%s)",
+              entry.getValue().charts.size(), entry.getValue().weight,
+              entry.getKey(), entry.getCause()));
         }
       })
+      .recordStats()
       .build();
-
-  public ChartCacheImpl(DefaultChartBuilder chartBuilder,
-      EventManager eventManager) {
     this.chartBuilder = chartBuilder;
+    this.buildTimeout = buildTimeout;
+    // Execute builds on our own thread-pool
+    final int threads = Play.application().configuration()
+        .getInt("application.chartCache.buildThreads", 4);
+    this.executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r,
+                "chart cache build " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.dispatcher = TypedActor.dispatcher();
+    this.scheduler = TypedActor.context().system().scheduler();
     final ChartCache cc = TypedActor.<ChartCache> self();
     final EventReceiver er = new EventReceiver() {
       @Override
@@ -70,31 +174,90 @@ public class ChartCacheImpl implements ChartCache {
     eventManager.tell(EventReceiverMessage.add(er, null));
   }
 
+  @Override
+  public void postStop() {
+    // Interrupts builds in progress, which are only ever on our threads
+    for (Runnable queued : executor.shutdownNow()) {
+      ((FutureTask<?>) queued).cancel(false);
+    }
+  }
+
   @Override
   public void cleanup(String fileId) {
+    final Flight flight = inFlight.get(fileId);
+    if (flight != null) {
+      // Don't let the build in progress cache (or return) old charts, and
+      // stop it so the rebuild starts straight away
+      synchronized (flight) {
+        flight.stale = true;
+        if (flight.attempt != null) {
+          flight.attempt.cancel(true);
+        }
+      }
+    }
+    // Invalidate afterwards, in case the build completed in the meantime
     cache.invalidate(fileId);
   }
 
   @Override
   public Future<List<Chart>> getCharts(final String id) {
     // Check the cache
-    final List<Chart> clist = cache.getIfPresent(id);
-    final F.Promise<List<Chart>> promisedCharts;
-    if (clist == null) {
-      // Charts will need to be created, so get promise to be fulfilled
-      promisedCharts = getPromiseOfCharts(id);
-    } else {
-      // Create a promise with the value already fulfilled
-      promisedCharts = F.Promise.pure(clist);
+    final Entry entry = cache.getIfPresent(id);
+    if (entry != null) {
+      reweigh(id, entry);
+      return Futures.successful(entry.charts);
     }
     // Return back a Scala Future (required by Akka for detecting async)
     // that will eventually provide the charts.
-    return promisedCharts.wrapped();
+    return getFutureCharts(id);
   }
 
   @Override
   public void update(String fileId, List<Chart> charts) {
-    cache.put(fileId, charts);
+    cache.put(fileId, new Entry(charts));
+  }
+
+  @Override
+  public Stats stats() {
+    final CacheStats cs = cache.stats();
+    return new Stats(cs.hitCount(), cs.missCount(), cs.evictionCount(),
+        cache.size(), cachedBytes.get(), maxBytes,
+        builds.get(), coalesced.get(), restarts.get(), timeouts.get(),
+        inFlight.size());
+  }
+
+  /*
+   * Charts and lazily loaded sheets grow as they're used, but Guava only
+   * weighs entries when they're inserted. Re-insert entries which have grown
+   * noticeably, so the byte budget reflects what's actually retained.
+   *
+   * Sizes are measured as charts are built and sheets are loaded, so this
+   * only adds up numbers already known.
+   */
+  private void reweigh(String id, Entry entry) {
+    final long size = estimatedSize(entry.charts);
+    if (size > entry.weight + entry.weight / 4) {
+      cache.asMap().replace(id, entry, new Entry(entry.charts));
+    }
+  }
+
+  static long estimatedSize(List<Chart> charts) {
+    long size = 0;
+    // Charts from the same file share a datasource, so count each once
+    final Set<DataSource> datasources = Sets.newIdentityHashSet();
+    for (Chart chart : charts) {
+      if (chart instanceof LazyChart) {
+        final LazyChart lc = (LazyChart) chart;
+        size += lc.estimatedSize();
+        final DataSource ds = lc.getDataSource();
+        if (ds instanceof SpreadsheetDataSource && datasources.add(ds)) {
+          size += ((SpreadsheetDataSource) ds).estimatedSize();
+        }
+      } else if (chart instanceof AbstractChart) {
+        size += ((AbstractChart) chart).estimatedSize();
+      }
+    }
+    return size;
   }
 
   private List<Chart> actuallyGetCharts(String id) throws Exception {
@@ -102,36 +265,101 @@ public class ChartCacheImpl implements ChartCache {
         Collections.<Region>emptyList(), null);
   }
 
-  private F.Promise<List<Chart>> getPromiseOfCharts(final String id) {
-    // are the charts currently fetched by an already created promise?
-    // if so reuse that promise to avoid multiple datasources to be opened.
-    F.Promise<List<Chart>> p = pmap.get(id);
-    if(p == null) {
-      // Get reference to ourself, so we can update the cache asynchronously
-      final ChartCache self = TypedActor.self();
-      // Create a promise based on an asynchronous operation
-      p = F.Promise.promise(new F.Function0<List<Chart>>() {
-        @Override
-        public List<Chart> apply() throws Throwable {
-          try {
+  private Future<List<Chart>> getFutureCharts(final String id) {
+    // are the charts currently fetched by an already started build?
+    // if so wait on that to avoid multiple datasources to be opened.
+    final Flight existing = inFlight.get(id);
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      return existing.promise.future();
+    }
+    final Flight flight = new Flight();
+    final Flight raced = inFlight.putIfAbsent(id, flight);
+    if (raced != null) {
+      coalesced.incrementAndGet();
+      return raced.promise.future();
+    }
+    builds.incrementAndGet();
+    synchronized (flight) {
+      start(id, flight);
+    }
+    scheduler.scheduleOnce(Duration.create(buildTimeout, TimeUnit.SECONDS),
+        new Runnable() {
+          @Override
+          public void run() {
+            if (inFlight.remove(id, flight)) {
+              timeouts.incrementAndGet();
+              Logger.warn(String.format(
+                  "Building charts for id %s took more than %ds",
+                  id, buildTimeout));
+              flight.promise.tryFailure(new TimeoutException(
+                  "Timed out building charts for id " + id));
+              // Nobody is waiting for the charts any more
+              synchronized (flight) {
+                flight.attempt.cancel(true);
+              }
+            }
+          }
+        }, dispatcher);
+    return flight.promise.future();
+  }
+
+  /*
+   * Start a build attempt. Must hold the flight's lock.
+   */
+  private void start(final String id, final Flight flight) {
+    flight.stale = false;
+    flight.attempt = new FutureTask<List<Chart>>(
+        new Callable<List<Chart>>() {
+          @Override
+          public List<Chart> call() throws Exception {
             // Get the charts (non-modifying operation)
-            final List<Chart> charts = actuallyGetCharts(id);
-            // Schedule update of self with new cache value
-            self.update(id, charts);
-            // Fulfil promise with charts
-            return charts;
-          } finally {
-            pmap.remove(id);
+            return actuallyGetCharts(id);
           }
-        }
-      }, TypedActor.dispatcher()); // Execute on our own thread-pool
-      pmap.put(id, p);
+        }) {
+      @Override
+      protected void done() {
+        // Also called when cancelled, whether or not the attempt had started
+        finish(id, flight, this);
+      }
+    };
+    try {
+      executor.execute(flight.attempt);
+    } catch (RejectedExecutionException e) {
+      // Shutting down
+      inFlight.remove(id, flight);
+      flight.promise.tryFailure(e);
     }
-    return p;
   }
 
-  private int maxSize() {
-    return Play.application().configuration()
-        .getInt("application.chartCache.size", 100);
+  private void finish(String id, Flight flight,
+      FutureTask<List<Chart>> attempt) {
+    synchronized (flight) {
+      if (flight.promise.isCompleted() || flight.attempt != attempt) {
+        // Timed out, or superseded by a newer attempt
+        return;
+      }
+      if (flight.stale || attempt.isCancelled()) {
+        restarts.incrementAndGet();
+        Logger.debug(String.format(
+            "Id %s changed while building charts, so building again", id));
+        start(id, flight);
+        return;
+      }
+      try {
+        final List<Chart> charts = attempt.get();
+        // Only cache if we haven't timed out in the meantime
+        if (inFlight.remove(id, flight)) {
+          cache.put(id, new Entry(charts));
+        }
+        flight.promise.trySuccess(charts);
+      } catch (ExecutionException e) {
+        inFlight.remove(id, flight);
+        flight.promise.tryFailure(e.getCause());
+      } catch (InterruptedException e) {
+        // Can't happen, as the attempt is done
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 }
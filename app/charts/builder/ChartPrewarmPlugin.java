@@ -0,0 +1,43 @@
+package charts.builder;
+
+import play.Application;
+import play.Logger;
+import play.Plugin;
+import service.GuiceInjectionPlugin;
+
+import com.google.inject.Injector;
+
+public class ChartPrewarmPlugin extends Plugin {
+
+  private final static String PREWARM = "application.chartCache.prewarm.enabled";
+
+  private final Application application;
+
+  private ChartPrewarmer prewarmer;
+
+  public ChartPrewarmPlugin(Application application) {
+    this.application = application;
+  }
+
+  @Override
+  public void onStart() {
+    if (application.configuration().getBoolean(PREWARM, Boolean.FALSE)) {
+      prewarmer = injector().getInstance(ChartPrewarmer.class);
+      prewarmer.start();
+    } else {
+      Logger.debug(String.format(
+          "Charts are not pre-warmed (%s is false)", PREWARM));
+    }
+  }
+
+  @Override
+  public void onStop() {
+    if (prewarmer != null) {
+      prewarmer.stop();
+    }
+  }
+
+  private Injector injector() {
+    return GuiceInjectionPlugin.getInjector(application);
+  }
+}
@@ -0,0 +1,298 @@
+package charts.builder;
+
+import helpers.FileStoreHelper;
+
+import java.awt.Dimension;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import play.libs.F;
+import service.EventManager;
+import service.EventManager.EventReceiver;
+import service.EventManager.EventReceiverMessage;
+import service.JcrSessionFactory;
+import service.OrderedEvent;
+import service.filestore.FileStore;
+import akka.dispatch.OnComplete;
+import charts.Chart;
+import charts.representations.Format;
+import charts.representations.RenderCache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Builds and renders charts for newly uploaded spreadsheets in the
+ * background, so the first person to view them doesn't wait.
+ *
+ * Files are queued on create/update events and processed by a single
+ * low-priority thread once they have been quiet for a short delay, so rapid
+ * successive versions are only built once. The queue is bounded; when it's
+ * full new files are skipped and will be built on first view as usual.
+ *
+ * One file is built at a time, by the chart cache. The thread doesn't wait
+ * for the build, but renders the charts once the cache hands them back.
+ */
+@Singleton
+public class ChartPrewarmer {
+
+  private static final Format[] FORMATS = new Format[] {
+    Format.SVG, Format.PNG
+  };
+
+  private final EventManager eventManager;
+  private final JcrSessionFactory sessionFactory;
+  private final FileStore fileStore;
+  private final ChartCache chartCache;
+  private final RenderCache renderCache;
+  private final long delay;
+  private final int maxQueued;
+
+  // File ID -> time last queued, in queue order. Guarded by itself, as are
+  // the fields below.
+  private final LinkedHashMap<String, Long> queue =
+      new LinkedHashMap<String, Long>();
+
+  // Built charts waiting to be rendered
+  private final LinkedList<Runnable> rendering = new LinkedList<Runnable>();
+
+  // Whether a file is being built or rendered
+  private boolean building;
+
+  private final EventReceiver receiver = new EventReceiver() {
+    @Override
+    public void push(OrderedEvent oe) {
+      final String type = oe.event().type;
+      if (type.equals("file:create") || type.equals("file:update")) {
+        enqueue(oe.event().info("id"));
+      }
+    }
+
+    @Override
+    public void end() {
+    }
+
+    @Override
+    public void end(Throwable e) {
+    }
+  };
+
+  private volatile boolean run;
+
+  private Thread t;
+
+  @Inject
+  public ChartPrewarmer(EventManager eventManager,
+      JcrSessionFactory sessionFactory, FileStore fileStore,
+      ChartCache chartCache, RenderCache renderCache) {
+    this(eventManager, sessionFactory, fileStore, chartCache, renderCache,
+        Play.application().configuration()
+          .getLong("application.chartCache.prewarm.delay", 5000L),
+        Play.application().configuration()
+          .getInt("application.chartCache.prewarm.queueSize", 20));
+  }
+
+  ChartPrewarmer(EventManager eventManager,
+      JcrSessionFactory sessionFactory, FileStore fileStore,
+      ChartCache chartCache, RenderCache renderCache, long delay,
+      int maxQueued) {
+    this.eventManager = eventManager;
+    this.sessionFactory = sessionFactory;
+    this.fileStore = fileStore;
+    this.chartCache = chartCache;
+    this.renderCache = renderCache;
+    this.delay = delay;
+    this.maxQueued = maxQueued;
+  }
+
+  public void start() {
+    if (t != null) {
+      return;
+    }
+    run = true;
+    eventManager.tell(EventReceiverMessage.add(receiver, null));
+    t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (run) {
+          try {
+            final Runnable work = take();
+            if (work != null) {
+              work.run();
+            }
+          } catch (InterruptedException e) {
+            // Stopping
+          } catch (Exception e) {
+            Logger.warn("while pre-warming charts", e);
+          }
+        }
+      }
+    }, "chart pre-warmer");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  public void stop() {
+    run = false;
+    eventManager.tell(EventReceiverMessage.remove(receiver));
+    if (t != null) {
+      t.interrupt();
+      try {
+        // Rendering stops between formats
+        t.join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      t = null;
+    }
+  }
+
+  void enqueue(String id) {
+    if (id == null) {
+      return;
+    }
+    synchronized (queue) {
+      // Re-queueing moves the file to the back and restarts its delay
+      final boolean queued = queue.remove(id) != null;
+      if (!queued && queue.size() >= maxQueued) {
+        Logger.debug("Chart pre-warm queue full, so skipping " + id);
+        return;
+      }
+      queue.put(id, System.currentTimeMillis());
+      queue.notifyAll();
+    }
+  }
+
+  int queued() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /*
+   * Wait for built charts to render, or (if nothing is being built) for the
+   * oldest queued file to be quiet for the delay period.
+   */
+  private Runnable take() throws InterruptedException {
+    synchronized (queue) {
+      while (run) {
+        if (!rendering.isEmpty()) {
+          return rendering.removeFirst();
+        }
+        final Iterator<Map.Entry<String, Long>> iter =
+            queue.entrySet().iterator();
+        if (building || !iter.hasNext()) {
+          queue.wait();
+          continue;
+        }
+        final Map.Entry<String, Long> next = iter.next();
+        final long wait = next.getValue() + delay -
+            System.currentTimeMillis();
+        if (wait > 0) {
+          queue.wait(wait);
+          continue;
+        }
+        iter.remove();
+        building = true;
+        final String id = next.getKey();
+        return new Runnable() {
+          @Override
+          public void run() {
+            try {
+              build(id);
+            } catch (RuntimeException e) {
+              finished();
+              throw e;
+            }
+          }
+        };
+      }
+    }
+    return null;
+  }
+
+  private void finished() {
+    synchronized (queue) {
+      building = false;
+      queue.notifyAll();
+    }
+  }
+
+  private void build(final String id) {
+    final String digest = sessionFactory.inSession(
+        new F.Function<Session, String>() {
+          @Override
+          public String apply(Session session) throws Throwable {
+            final FileStore.FileOrFolder fof =
+                fileStore.getManager(session).getByIdentifier(id);
+            if (!(fof instanceof FileStore.File)) {
+              return null;
+            }
+            final FileStore.File file = (FileStore.File) fof;
+            final String mimeType = file.getMimeType();
+            return mimeType.equals(FileStoreHelper.XLS_MIME_TYPE) ||
+                mimeType.equals(FileStoreHelper.XLSX_MIME_TYPE) ?
+                    file.getDigest() : null;
+          }
+        });
+    if (digest == null) {
+      finished();
+      return;
+    }
+    final long started = System.currentTimeMillis();
+    chartCache.getCharts(id).onComplete(new OnComplete<List<Chart>>() {
+      @Override
+      public void onComplete(Throwable failure, final List<Chart> charts) {
+        if (failure != null) {
+          Logger.debug("while pre-warming charts for " + id, failure);
+          finished();
+          return;
+        }
+        synchronized (queue) {
+          rendering.add(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                render(id, digest, charts, started);
+              } finally {
+                finished();
+              }
+            }
+          });
+          queue.notifyAll();
+        }
+      }
+    }, Akka.system().dispatcher());
+  }
+
+  private void render(String id, String digest, List<Chart> charts,
+      long started) {
+    for (Chart chart : charts) {
+      if (!run) {
+        return;
+      }
+      for (Format format : FORMATS) {
+        try {
+          renderCache.outputAs(digest, chart, format, new Dimension());
+        } catch (Chart.UnsupportedFormatException e) {
+          // Nothing to pre-render
+        } catch (RuntimeException e) {
+          Logger.debug(String.format("while pre-rendering %s as %s",
+              chart.getDescription(), format), e);
+        }
+      }
+    }
+    Logger.debug(String.format("Pre-warmed %d charts for %s in %dms",
+        charts.size(), id, System.currentTimeMillis() - started));
+  }
+
+}
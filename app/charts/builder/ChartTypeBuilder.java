@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Map;
 
 import charts.Chart;
+import charts.ChartDescription;
 import charts.ChartType;
 import charts.Region;
 
@@ -15,4 +16,22 @@ public interface ChartTypeBuilder {
       List<Region> regions,
       Map<String, String> parameters);
 
+  /**
+   * Discover the charts this builder can produce from the datasource,
+   * without building them.
+   */
+  List<ChartDescription> describe(
+      DataSource datasource,
+      ChartType type,
+      List<Region> regions,
+      Map<String, String> parameters);
+
+  /**
+   * Build a single chart previously discovered with
+   * {@link #describe(DataSource, ChartType, List, Map)}.
+   *
+   * @return the chart, or null if it can't be built from the datasource
+   */
+  Chart build(DataSource datasource, ChartDescription description);
+
 }
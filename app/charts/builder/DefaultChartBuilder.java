@@ -5,13 +5,20 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.reflections.Reflections;
 
 import play.Logger;
 import charts.Chart;
+import charts.ChartDescription;
 import charts.ChartType;
 import charts.Region;
+import charts.builder.spreadsheet.CompiledDataSource;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -25,9 +32,27 @@ public class DefaultChartBuilder implements ChartBuilder {
 
   private final DataSourceFactory dataSourceFactory;
 
+  private final ExecutorService executor;
+
+  private final int maxConcurrency;
+
   @Inject
   public DefaultChartBuilder(DataSourceFactory dsf) {
+    this(dsf, null, 1);
+  }
+
+  /**
+   * @param executor pool used to run builders in parallel
+   * @param maxConcurrency maximum number of builders working on a single
+   *                       datasource at once (including the calling thread).
+   *                       Only compiled datasources are shared between
+   *                       threads, as POI-backed ones serialize every read.
+   */
+  public DefaultChartBuilder(DataSourceFactory dsf, ExecutorService executor,
+      int maxConcurrency) {
     this.dataSourceFactory = dsf;
+    this.executor = executor;
+    this.maxConcurrency = executor == null ? 1 : Math.max(1, maxConcurrency);
   }
 
   @Override
@@ -42,16 +67,13 @@ public class DefaultChartBuilder implements ChartBuilder {
       List<Region> regions,
       Map<String, String> parameters) {
     final List<Chart> result = Lists.newLinkedList();
-    for (final ChartTypeBuilder builder : builders) {
-      try {
-        List<Chart> charts = builder.build(datasource, type, regions, parameters);
-        if(!charts.isEmpty()) {
-          result.addAll(charts);
-        }
-      } catch(Exception e) {
-        Logger.warn(String.format("caught exception while building charts (type %s," +
-            " regions %s, parameters %s)", type, regions, parameters), e);
-      }
+    if (datasource == null) {
+      return result;
+    }
+    // Only discover charts now - each is built when first rendered
+    for (List<Chart> charts :
+        describeAll(datasource, type, regions, parameters)) {
+      result.addAll(charts);
     }
     // make sure charts are sorted by region
     // https://github.com/uq-eresearch/aorra/issues/44
@@ -67,6 +89,83 @@ public class DefaultChartBuilder implements ChartBuilder {
     return result;
   }
 
+  /**
+   * Run every builder against the datasource, using up to maxConcurrency
+   * threads if the datasource is compiled. Results are returned in builder order regardless of which
+   * finished first, so the output is deterministic. Interrupting the calling
+   * thread stops the remaining builders.
+   */
+  private List<List<Chart>> describeAll(final DataSource datasource,
+      final ChartType type, final List<Region> regions,
+      final Map<String, String> parameters) {
+    final AtomicReferenceArray<List<Chart>> results =
+        new AtomicReferenceArray<List<Chart>>(builders.size());
+    final AtomicInteger next = new AtomicInteger();
+    final Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int i;
+        while (!Thread.currentThread().isInterrupted() &&
+            (i = next.getAndIncrement()) < builders.size()) {
+          results.set(i, describe(builders.get(i), datasource, type,
+              regions, parameters));
+        }
+      }
+    };
+    final List<Future<?>> futures = Lists.newArrayList();
+    for (int i = 1; i < concurrency(datasource); i++) {
+      futures.add(executor.submit(worker));
+    }
+    // The calling thread does its share too
+    worker.run();
+    try {
+      for (Future<?> f : futures) {
+        f.get();
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    } catch (InterruptedException e) {
+      // Other workers stop once they've finished their current builder
+      next.set(builders.size());
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    final List<List<Chart>> l = Lists.newArrayList();
+    for (int i = 0; i < results.length(); i++) {
+      l.add(results.get(i));
+    }
+    return l;
+  }
+
+  /*
+   * Every read from a POI workbook holds the workbook's lock (its evaluator
+   * isn't thread-safe), so builders sharing one would just take turns.
+   */
+  private int concurrency(DataSource datasource) {
+    if (!(datasource instanceof CompiledDataSource)) {
+      return 1;
+    }
+    return Math.min(maxConcurrency, builders.size());
+  }
+
+  private List<Chart> describe(ChartTypeBuilder builder, DataSource datasource,
+      ChartType type, List<Region> regions, Map<String, String> parameters) {
+    final List<Chart> charts = Lists.newLinkedList();
+    try {
+      for (ChartDescription description :
+          builder.describe(datasource, type, regions, parameters)) {
+        charts.add(new LazyChart(description, builder, datasource));
+      }
+    } catch(Exception e) {
+      Logger.warn(String.format("caught exception while describing charts (type %s," +
+          " regions %s, parameters %s)", type, regions, parameters), e);
+    }
+    return charts;
+  }
+
   public List<ChartTypeBuilder> builders() {
     return builders;
   }
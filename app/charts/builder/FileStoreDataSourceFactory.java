@@ -1,16 +1,20 @@
 package charts.builder;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import helpers.FileStoreHelper;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import play.Play;
 import play.libs.F;
 import service.JcrSessionFactory;
 import service.filestore.FileStore;
+import charts.builder.spreadsheet.CompiledDataSource;
 import charts.builder.spreadsheet.SpreadsheetDataSource;
+import charts.builder.spreadsheet.StreamingXlsxReader;
 import charts.builder.spreadsheet.XlsDataSource;
 import charts.builder.spreadsheet.XlsxDataSource;
 
@@ -46,11 +50,37 @@ public class FileStoreDataSourceFactory implements DataSourceFactory {
     final FileStore.Manager fm = fileStore.getManager(session);
     final FileStore.FileOrFolder fof = fm.getByIdentifier(id);
     if (fof instanceof FileStore.File) {
-      return getDataSource((FileStore.File) fof);
+      final FileStore.File file = (FileStore.File) fof;
+      if (compiled() && streaming() &&
+          file.getMimeType().equals(FileStoreHelper.XLSX_MIME_TYPE)) {
+        // Parse sheets on demand, without building the workbook in memory
+        final InputStream in = file.getData();
+        try {
+          return StreamingXlsxReader.read(in);
+        } finally {
+          in.close();
+        }
+      }
+      final SpreadsheetDataSource ds = getDataSource(file);
+      if (ds != null && compiled()) {
+        // Evaluate everything now, so the workbook can be released
+        return CompiledDataSource.compile(ds);
+      }
+      return ds;
     }
     return null;
   }
 
+  private boolean compiled() {
+    return Play.application().configuration()
+        .getBoolean("application.chartBuilder.compiled", true);
+  }
+
+  private boolean streaming() {
+    return Play.application().configuration()
+        .getBoolean("application.chartBuilder.streaming", true);
+  }
+
   public static SpreadsheetDataSource getDataSource(FileStore.File file)
       throws IOException {
     // Check this is a MS spreadsheet document (no chance otherwise)
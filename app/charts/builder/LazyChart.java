@@ -0,0 +1,104 @@
+package charts.builder;
+
+import java.awt.Dimension;
+import java.util.Date;
+
+import charts.AbstractChart;
+import charts.Chart;
+import charts.ChartDescription;
+import charts.representations.Format;
+import charts.representations.Representation;
+
+/**
+ * Chart known only by its description until a representation is requested,
+ * at which point it is built by the builder which discovered it.
+ */
+public class LazyChart implements Chart {
+
+  private final ChartDescription description;
+  private final ChartTypeBuilder builder;
+  private final DataSource datasource;
+  private final Date created = new Date();
+
+  private volatile Chart chart;
+  // Set once built, even if the builder couldn't build the chart
+  private volatile boolean built;
+
+  public LazyChart(ChartDescription description, ChartTypeBuilder builder,
+      DataSource datasource) {
+    this.description = description;
+    this.builder = builder;
+    this.datasource = datasource;
+  }
+
+  @Override
+  public ChartDescription getDescription() {
+    return description;
+  }
+
+  @Override
+  public Representation outputAs(Format format, Dimension queryDimension)
+      throws UnsupportedFormatException {
+    final Chart c = get();
+    if (c == null) {
+      throw new UnsupportedFormatException();
+    }
+    return c.outputAs(format, queryDimension);
+  }
+
+  @Override
+  public Date created() {
+    return created;
+  }
+
+  /**
+   * @return the built chart, or null if it could not be built
+   */
+  public Chart get() {
+    if (!built) {
+      synchronized (this) {
+        if (!built) {
+          chart = builder.build(datasource, description);
+          built = true;
+        }
+      }
+    }
+    return chart;
+  }
+
+  public boolean isBuilt() {
+    return built;
+  }
+
+  DataSource getDataSource() {
+    return datasource;
+  }
+
+  /**
+   * @return approximate retained size of this chart in bytes, excluding the
+   *         datasource shared with other charts
+   */
+  public long estimatedSize() {
+    final Chart c = chart;
+    if (c instanceof AbstractChart) {
+      return 256 + ((AbstractChart) c).estimatedSize();
+    }
+    return 256;
+  }
+
+  /**
+   * Unwrap lazy charts, so builder-specific chart types can be inspected.
+   */
+  public static Chart unwrap(Chart chart) {
+    if (chart instanceof LazyChart) {
+      return ((LazyChart) chart).get();
+    }
+    return chart;
+  }
+
+  @Override
+  public String toString() {
+    return description.toString();
+  }
+
+}
@@ -11,6 +11,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.text.StrSubstitutor;
 
 import charts.Chart;
+import charts.ChartDescription;
 import charts.ChartType;
 import charts.Region;
 import charts.builder.ChartTypeBuilder;
@@ -68,22 +69,124 @@ public abstract class AbstractBuilder implements ChartTypeBuilder {
   @Override
   public List<Chart> build(DataSource datasource, ChartType type,
       List<Region> regions, Map<String, String> parameters) {
-    List<Chart> charts = Lists.newArrayList();
+    final List<Chart> charts = Lists.newLinkedList();
+    for (SpreadsheetDataSource ds : sheets(datasource, type).values()) {
+      for (ChartPermutation p : permutations(ds, type, regions, parameters)) {
+        final Chart chart = build(context(ds, p.chartType(), p.region(),
+            p.javaParams()));
+        if (chart != null) {
+          charts.add(chart);
+        }
+      }
+    }
+    return charts;
+  }
+
+  @Override
+  public List<ChartDescription> describe(DataSource datasource, ChartType type,
+      List<Region> regions, Map<String, String> parameters) {
+    final List<ChartDescription> descriptions = Lists.newLinkedList();
+    for (Map.Entry<Integer, SpreadsheetDataSource> sheet :
+        sheets(datasource, type).entrySet()) {
+      final SpreadsheetDataSource ds = sheet.getValue();
+      for (ChartPermutation p : permutations(ds, type, regions, parameters)) {
+        final Context context = context(ds, p.chartType(), p.region(),
+            p.javaParams());
+        final ChartDescription description = describe(context);
+        if (description != null) {
+          descriptions.add(new SheetDescription(description, sheet.getKey()));
+        }
+      }
+    }
+    return descriptions;
+  }
+
+  @Override
+  public Chart build(DataSource datasource, ChartDescription description) {
+    final Map<Integer, SpreadsheetDataSource> sheets;
+    if (description instanceof SheetDescription) {
+      sheets = sheets(datasource, description.getType(),
+          ((SheetDescription) description).sheet);
+    } else {
+      sheets = sheets(datasource, description.getType());
+    }
+    final ChartType type = description.getType();
+    for (SpreadsheetDataSource ds : sheets.values()) {
+      for (ChartPermutation p : permutations(ds, type,
+          asList(description.getRegion()), description.getParameters())) {
+        final Chart chart = build(context(ds, p.chartType(), p.region(),
+            p.javaParams()));
+        if (chart != null && matches(chart.getDescription(), description)) {
+          return chart;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Describe the chart that would be built for this context, or null if
+   * there is no such chart. The chart built here is thrown away, so
+   * builders should override this when the description can be determined
+   * without building the whole chart.
+   */
+  protected ChartDescription describe(Context context) {
+    final Chart chart = build(context);
+    return chart != null ? chart.getDescription() : null;
+  }
+
+  private static boolean matches(ChartDescription built,
+      ChartDescription wanted) {
+    // Not all builders put their parameters in the description
+    return built.getType() == wanted.getType() &&
+        built.getRegion() == wanted.getRegion();
+  }
+
+  /*
+   * Description of a chart on a particular sheet, so it's built from the
+   * same sheet it was discovered on.
+   */
+  private static class SheetDescription extends ChartDescription {
+
+    final int sheet;
+
+    SheetDescription(ChartDescription description, int sheet) {
+      super(description);
+      this.sheet = sheet;
+    }
+
+  }
+
+  private Map<Integer, SpreadsheetDataSource> sheets(DataSource datasource,
+      ChartType type) {
+    return sheets(datasource, type, -1);
+  }
+
+  /*
+   * Sheets this builder can handle, by index. If only is not negative, just
+   * that sheet is considered.
+   */
+  private Map<Integer, SpreadsheetDataSource> sheets(DataSource datasource,
+      ChartType type, int only) {
+    final Map<Integer, SpreadsheetDataSource> sheets = Maps.newLinkedHashMap();
     if((type == null) || types.contains(type)) {
       if (datasource instanceof SpreadsheetDataSource) {
         for(int i = 0; i<((SpreadsheetDataSource)datasource).sheets();i++) {
+          if (only >= 0 && i != only) {
+            continue;
+          }
           SpreadsheetDataSource ds = ((SpreadsheetDataSource)datasource).toSheet(i);
           if(canHandle(ds)) {
-            charts.addAll(build(ds, type, regions, parameters));
+            sheets.put(i, ds);
           }
         }
       }
     }
-    return charts;
+    return sheets;
   }
 
-  private List<Chart> build(SpreadsheetDataSource datasource, ChartType type,
-      List<Region> regions, Map<String, String> parameters) {
+  private List<ChartPermutation> permutations(SpreadsheetDataSource datasource,
+      ChartType type, List<Region> regions, Map<String, String> parameters) {
     checkNotNull(regions, "Regions can be empty, but not null.");
     Map<String, List<String>> m = Maps.newHashMap();
     Map<String, List<String>> supportedParameters = getParameters(datasource, type);
@@ -98,15 +201,11 @@ public abstract class AbstractBuilder implements ChartTypeBuilder {
         type == null ? types : asList(type);
     final List<Region> r =
         regions.isEmpty() ? asList(Region.values()) : regions;
-    final List<Chart> charts = Lists.newLinkedList();
+    final List<ChartPermutation> permutations = Lists.newLinkedList();
     for (Object o : ChartPermutations.apply(t, r, m)) {
-      ChartPermutation p = (ChartPermutation)o;
-      final Chart chart = build(context(datasource, p.chartType(), p.region(), p.javaParams()));
-      if (chart != null) {
-        charts.add(chart);
-      }
+      permutations.add((ChartPermutation)o);
     }
-    return charts;
+    return permutations;
   }
 
   protected boolean cellEquals(SpreadsheetDataSource datasource, String s, String cellreference) {
@@ -0,0 +1,588 @@
+package charts.builder.spreadsheet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+
+import charts.builder.Value;
+import charts.builder.spreadsheet.external.ResolvedRef;
+import charts.builder.spreadsheet.external.UnresolvedRef;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Read-only, pre-evaluated copy of a spreadsheet.
+ *
+ * Every cell is evaluated once when compiled, and the results are kept in
+ * columnar arrays per sheet (numbers as primitive doubles, strings interned).
+ * Selecting values never touches POI, so the workbook can be released as
+ * soon as the datasource has been compiled, and selection is thread-safe.
+ */
+public class CompiledDataSource extends SpreadsheetDataSource {
+
+  // Cell types
+  private static final byte NONE = 0;
+  private static final byte NUMERIC = 1;
+  private static final byte STRING = 2;
+
+  // Cell flags
+  private static final byte HAS_NUMBER = 1;
+  private static final byte PERCENT_FORMAT = 2;
+
+  static class SheetSnapshot {
+
+    final String name;
+    final int lastRowNum;
+    // Offset into cell arrays for each row, or -1 if the row doesn't exist
+    final int[] rowOffset;
+    // As per Row.getLastCellNum()
+    final short[] rowLength;
+    final byte[] types;
+    final byte[] flags;
+    final double[] numbers;
+    final String[] strings;
+    final int[] colors;
+
+    SheetSnapshot(String name, int lastRowNum, int[] rowOffset,
+        short[] rowLength, int cells) {
+      this.name = name;
+      this.lastRowNum = lastRowNum;
+      this.rowOffset = rowOffset;
+      this.rowLength = rowLength;
+      this.types = new byte[cells];
+      this.flags = new byte[cells];
+      this.numbers = new double[cells];
+      this.strings = new String[cells];
+      this.colors = new int[cells];
+    }
+
+    int index(int row, int col) {
+      if (row < 0 || row >= rowOffset.length || rowOffset[row] < 0) {
+        return -1;
+      }
+      if (col < 0 || col >= rowLength[row]) {
+        return -1;
+      }
+      return rowOffset[row] + col;
+    }
+
+    /**
+     * Store a cell value, as returned by {@link Value#getValue()}.
+     *
+     * @param numeric whether the cell holds a number, rather than text which
+     *          looks like one (which POI won't read as a date)
+     */
+    void set(int i, String value, boolean numeric, boolean percentFormat,
+        int rgb, Map<String, String> pool) {
+      final Double d = parseDouble(value);
+      if (numeric && d != null && Double.toString(d).equals(value)) {
+        // Strings for numbers can be regenerated exactly
+        types[i] = NUMERIC;
+      } else {
+        types[i] = STRING;
+        strings[i] = intern(pool, value);
+      }
+      if (d != null) {
+        numbers[i] = d;
+        flags[i] |= HAS_NUMBER;
+      }
+      if (percentFormat) {
+        flags[i] |= PERCENT_FORMAT;
+      }
+      colors[i] = rgb;
+    }
+
+    boolean hasRow(int row) {
+      return row >= 0 && row < rowOffset.length && rowOffset[row] >= 0;
+    }
+
+    long estimatedSize() {
+      long size = types.length * (1L + 1 + 8 + 4 + 4) + rowOffset.length * 6L;
+      for (String s : strings) {
+        if (s != null) {
+          size += 40 + s.length() * 2;
+        }
+      }
+      return size;
+    }
+
+  }
+
+  private class CompiledValue implements Value {
+
+    private final SheetSnapshot sheet;
+    private final int i;
+
+    public CompiledValue(SheetSnapshot sheet, int i) {
+      this.sheet = sheet;
+      this.i = i;
+    }
+
+    @Override
+    public String getValue() {
+      switch (sheet.types[i]) {
+      case NUMERIC:
+        return Double.toString(sheet.numbers[i]);
+      case STRING:
+        return sheet.strings[i];
+      default:
+        return null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return asString();
+    }
+
+    @Override
+    public String asString() {
+      return getValue();
+    }
+
+    @Override
+    public Double asDouble() {
+      return hasNumber() ? sheet.numbers[i] : null;
+    }
+
+    @Override
+    public Integer asInteger() {
+      return hasNumber() ? Math.round((float) sheet.numbers[i]) : null;
+    }
+
+    @Override
+    public java.awt.Color asColor() {
+      final int rgb = sheet.colors[i];
+      return rgb == 0 ? null : new java.awt.Color(rgb);
+    }
+
+    @Override
+    public Date asDate() {
+      if (sheet.types[i] == NUMERIC) {
+        return DateUtil.getJavaDate(sheet.numbers[i], date1904);
+      }
+      final String s = getValue();
+      if (StringUtils.isEmpty(s)) {
+        return null;
+      }
+      final SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
+      try {
+        return sdf.parse(s);
+      } catch (Exception e) {
+        throw new IllegalStateException(
+            "Cannot get a date value from a text cell", e);
+      }
+    }
+
+    @Override
+    public Double asPercent() {
+      if (!hasNumber()) {
+        return null;
+      }
+      final double value = sheet.numbers[i];
+      return (sheet.flags[i] & PERCENT_FORMAT) != 0 ? value : value / 100.0;
+    }
+
+    private boolean hasNumber() {
+      return (sheet.flags[i] & HAS_NUMBER) != 0;
+    }
+
+  }
+
+  private static final Value EMPTY = new Value() {
+    @Override
+    public String getValue() {
+      return null;
+    }
+    @Override
+    public String asString() {
+      return null;
+    }
+    @Override
+    public Double asDouble() {
+      return null;
+    }
+    @Override
+    public Integer asInteger() {
+      return null;
+    }
+    @Override
+    public java.awt.Color asColor() {
+      return null;
+    }
+    @Override
+    public Date asDate() {
+      return null;
+    }
+    @Override
+    public Double asPercent() {
+      return null;
+    }
+  };
+
+  /**
+   * Loads sheet snapshots on first access.
+   */
+  interface SheetLoader {
+    SheetSnapshot load(int sheet) throws IOException;
+
+    /**
+     * Release whatever's held for loading sheets. Sheets not yet loaded
+     * can't be loaded afterwards.
+     */
+    void close();
+  }
+
+  private final String[] names;
+  // Shared by all sheet views of the same spreadsheet
+  private final AtomicReferenceArray<SheetSnapshot> sheets;
+  // Estimated size of the sheets loaded so far, added as each is loaded
+  private final AtomicLong loadedSize;
+  private final SheetLoader loader;
+  private final int defaultSheet;
+  private final boolean date1904;
+
+  CompiledDataSource(String[] names, SheetLoader loader, boolean date1904) {
+    this(names, new AtomicReferenceArray<SheetSnapshot>(names.length),
+        new AtomicLong(), loader, 0, date1904);
+  }
+
+  private CompiledDataSource(String[] names,
+      AtomicReferenceArray<SheetSnapshot> sheets, AtomicLong loadedSize,
+      SheetLoader loader, int defaultSheet, boolean date1904) {
+    this.names = names;
+    this.sheets = sheets;
+    this.loadedSize = loadedSize;
+    this.loader = loader;
+    this.defaultSheet = defaultSheet;
+    this.date1904 = date1904;
+  }
+
+  /**
+   * Evaluate every sheet of the source datasource. The source isn't needed
+   * afterwards, so can be discarded along with its workbook.
+   */
+  public static CompiledDataSource compile(SpreadsheetDataSource source) {
+    final Workbook workbook = source.workbook();
+    final Map<String, String> pool = Maps.newHashMap();
+    final Map<Short, Integer> styleColors = Maps.newHashMap();
+    final String[] names = new String[workbook.getNumberOfSheets()];
+    final AtomicReferenceArray<SheetSnapshot> sheets =
+        new AtomicReferenceArray<SheetSnapshot>(names.length);
+    boolean date1904 = false;
+    long size = 0;
+    for (int si = 0; si < names.length; si++) {
+      names[si] = workbook.getSheetName(si);
+      sheets.set(si, compileSheet(source, si, pool, styleColors));
+      size += sheets.get(si).estimatedSize();
+      date1904 |= isDate1904(workbook.getSheetAt(si));
+    }
+    return new CompiledDataSource(names, sheets, new AtomicLong(size), null,
+        0, date1904);
+  }
+
+  static SheetSnapshot compileSheet(SpreadsheetDataSource source, int si,
+      Map<String, String> pool, Map<Short, Integer> styleColors) {
+    final Sheet sheet = source.workbook().getSheetAt(si);
+    final int lastRowNum = sheet.getLastRowNum();
+    final int[] rowOffset = new int[lastRowNum + 1];
+    final short[] rowLength = new short[lastRowNum + 1];
+    int cells = 0;
+    for (int r = 0; r <= lastRowNum; r++) {
+      final Row row = sheet.getRow(r);
+      if (row == null) {
+        rowOffset[r] = -1;
+      } else {
+        rowOffset[r] = cells;
+        rowLength[r] = row.getLastCellNum();
+        cells += Math.max(0, row.getLastCellNum());
+      }
+    }
+    final SheetSnapshot snapshot = new SheetSnapshot(
+        sheet.getSheetName(), lastRowNum, rowOffset, rowLength, cells);
+    for (int r = 0; r <= lastRowNum; r++) {
+      final Row row = sheet.getRow(r);
+      if (row == null) {
+        continue;
+      }
+      for (Cell cell : row) {
+        final int i = snapshot.index(r, cell.getColumnIndex());
+        if (i < 0) {
+          continue;
+        }
+        final CellStyle style = cell.getCellStyle();
+        Integer rgb = styleColors.get(style.getIndex());
+        if (rgb == null) {
+          rgb = rgb(SpreadsheetDataSource.color(style));
+          styleColors.put(style.getIndex(), rgb);
+        }
+        snapshot.set(i, source.value(cell).getValue(), isNumeric(cell),
+            isPercentFormat(style.getDataFormatString()), rgb, pool);
+      }
+    }
+    return snapshot;
+  }
+
+  /*
+   * As per Cell.getDateCellValue(), which only reads numbers or the cached
+   * results of numeric formulas.
+   */
+  private static boolean isNumeric(Cell cell) {
+    return cell.getCellType() == Cell.CELL_TYPE_NUMERIC ||
+        (cell.getCellType() == Cell.CELL_TYPE_FORMULA &&
+         cell.getCachedFormulaResultType() == Cell.CELL_TYPE_NUMERIC);
+  }
+
+  static boolean isPercentFormat(String format) {
+    return format != null && format.contains("%");
+  }
+
+  static int rgb(java.awt.Color c) {
+    return c == null ? 0 : c.getRGB();
+  }
+
+  private static Double parseDouble(String s) {
+    if (s == null) {
+      return null;
+    }
+    try {
+      return new Double(s);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static String intern(Map<String, String> pool, String s) {
+    final String existing = pool.get(s);
+    if (existing != null) {
+      return existing;
+    }
+    pool.put(s, s);
+    return s;
+  }
+
+  /*
+   * POI doesn't expose the workbook's date windowing consistently across
+   * formats, so infer it from how POI converts the first numeric cell.
+   */
+  private static boolean isDate1904(Sheet sheet) {
+    for (Row row : sheet) {
+      for (Cell cell : row) {
+        if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+          final Date d = cell.getDateCellValue();
+          return d != null && !d.equals(
+              DateUtil.getJavaDate(cell.getNumericCellValue(), false));
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return approximate retained size of the sheets loaded so far in bytes
+   */
+  @Override
+  public long estimatedSize() {
+    return loadedSize.get();
+  }
+
+  @Override
+  public Value select(String selector) throws MissingDataException {
+    final CellReference cr = new CellReference(selector);
+    return select(cr.getSheetName(), cr.getRow(), cr.getCol());
+  }
+
+  @Override
+  public Value select(int row, int col) throws MissingDataException {
+    return select(sheet(defaultSheet), row, col);
+  }
+
+  @Override
+  public Value select(String sheetname, int row, int col)
+      throws MissingDataException {
+    if (StringUtils.isBlank(sheetname)) {
+      return select(row, col);
+    }
+    final int si = getSheet(sheetname);
+    if (si < 0) {
+      throw new MissingDataException(String.format(
+          "Sheet '%s' does not exist in workbook", sheetname));
+    }
+    return select(sheet(si), row, col);
+  }
+
+  private SheetSnapshot sheet(int i) {
+    SheetSnapshot sheet = sheets.get(i);
+    if (sheet == null) {
+      synchronized (sheets) {
+        sheet = sheets.get(i);
+        if (sheet == null) {
+          try {
+            sheet = loader.load(i);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          loadedSize.addAndGet(sheet.estimatedSize());
+          sheets.set(i, sheet);
+        }
+      }
+    }
+    return sheet;
+  }
+
+  private Value select(SheetSnapshot sheet, int row, int col) {
+    final int i = sheet.index(row, col);
+    if (i < 0 || sheet.types[i] == NONE) {
+      return EMPTY;
+    }
+    return new CompiledValue(sheet, i);
+  }
+
+  /**
+   * @return index of the named sheet, or -1 if it doesn't exist
+   */
+  private int getSheet(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    final String strippedName = StringUtils.strip(name);
+    for (int i = 0; i < names.length; i++) {
+      if (strippedName.equalsIgnoreCase(StringUtils.strip(names[i]))) {
+        return i;
+      }
+    }
+    for (int i = 0; i < names.length; i++) {
+      if (StringUtils.containsIgnoreCase(StringUtils.strip(names[i]),
+          strippedName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean hasSheet(String name) {
+    return getSheet(name) >= 0;
+  }
+
+  @Override
+  public String getSheetname(int i) {
+    return names[i];
+  }
+
+  @Override
+  public int sheets() {
+    return names.length;
+  }
+
+  /**
+   * Release the spreadsheet this datasource reads sheets from, rather than
+   * waiting for it to be garbage collected. Every view of the datasource is
+   * affected, and sheets not yet loaded can't be read afterwards.
+   */
+  public void close() {
+    if (loader != null) {
+      synchronized (sheets) {
+        loader.close();
+      }
+    }
+  }
+
+  @Override
+  public SpreadsheetDataSource toSheet(int sheet) {
+    return new CompiledDataSource(names, sheets, loadedSize, loader, sheet,
+        date1904);
+  }
+
+  @Override
+  public SpreadsheetDataSource toSheet(String sheetname) {
+    final int si = getSheet(sheetname);
+    return si < 0 ? null : toSheet(si);
+  }
+
+  @Override
+  public String getDefaultSheet() {
+    return names[defaultSheet];
+  }
+
+  @Override
+  public Integer getColumnCount(int row) {
+    return getColumnCount(defaultSheet, row);
+  }
+
+  @Override
+  public Integer getColumnCount(int i, int row) {
+    final SheetSnapshot sheet = sheet(i);
+    return sheet.hasRow(row) ? Integer.valueOf(sheet.rowLength[row]) : null;
+  }
+
+  @Override
+  public List<Value> selectColumn(int column, int limit)
+      throws MissingDataException {
+    final List<Value> result = Lists.newArrayList();
+    final int max = Math.min(sheet(defaultSheet).lastRowNum, limit);
+    for (int row = 0; row <= max; row++) {
+      result.add(select(row, column));
+    }
+    return result;
+  }
+
+  @Override
+  public int getColumns(int row) {
+    final Integer columns = getColumnCount(row);
+    return columns == null ? 0 : columns;
+  }
+
+  @Override
+  public int getRows() {
+    return sheet(defaultSheet).lastRowNum;
+  }
+
+  /*
+   * Only values are compiled, so there are no formulas left to refer to
+   * other spreadsheets. External references are resolved and updated on
+   * the source workbook instead.
+   */
+
+  @Override
+  public boolean hasExternalReferences() {
+    return false;
+  }
+
+  @Override
+  public Set<UnresolvedRef> externalReferences() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public InputStream updateExternalReferences(Set<ResolvedRef> refs)
+      throws IOException {
+    // Nothing to update, so the original spreadsheet stands
+    return null;
+  }
+
+  @Override
+  UnresolvedRef externalReference(Cell cell) {
+    return null;
+  }
+
+}
@@ -56,6 +56,18 @@ public abstract class JFreeBuilder extends AbstractBuilder {
     }
   }
 
+  @Override
+  protected ChartDescription describe(final Context context) {
+    if(context == null) {
+      return null;
+    }
+    // The dataset has already been created, which is enough to know the
+    // chart exists without configuring or drawing it
+    final JFreeContext ctx = (JFreeContext)context;
+    return new ChartDescription(ctx.type(), ctx.region(), ctx.parameters(),
+        title(ctx));
+  }
+
   private String fetchCsv(JFreeContext ctx) {
     try {
       return getCsv(ctx);
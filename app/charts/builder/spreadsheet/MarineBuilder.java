@@ -142,6 +142,12 @@ public class MarineBuilder extends AbstractBuilder {
     public abstract BeerCoaster beercoaster();
   }
 
+  @Override
+  protected ChartDescription describe(Context context) {
+    // Every region has a beer coaster, even if it isn't evaluated
+    return new ChartDescription(context.type(), context.region());
+  }
+
   @Override
   public Chart build(final Context context) {
     AttributedDataset a = new AttributedDatasetImpl();
@@ -143,6 +143,12 @@ public class MarineV2Builder extends AbstractBuilder {
     public abstract BeerCoasterV2 beercoaster();
   }
 
+  @Override
+  protected ChartDescription describe(Context context) {
+    // Every region has a beer coaster, even if it isn't evaluated
+    return new ChartDescription(context.type(), context.region());
+  }
+
   @Override
   public Chart build(final Context context) {
     AttributedDataset a = new AttributedDatasetImpl();
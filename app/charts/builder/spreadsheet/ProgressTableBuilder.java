@@ -46,6 +46,15 @@ public class ProgressTableBuilder extends AbstractProgressTableBuilder {
     public abstract ProgressTable.Dataset dataset();
   }
 
+  @Override
+  protected ChartDescription describe(Context ctx) {
+    if (ctx.region() == Region.GBR
+        || ctx.type() == ChartType.PROGRESS_TABLE_REGION) {
+      return new ChartDescription(ctx.type(), ctx.region());
+    }
+    return null;
+  }
+
   @Override
   public Chart build(Context ctx) {
     final SpreadsheetDataSource datasource = ctx.datasource();
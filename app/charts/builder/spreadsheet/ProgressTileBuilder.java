@@ -41,6 +41,26 @@ public class ProgressTileBuilder extends AbstractProgressTableBuilder {
     return Collections.singletonMap("indicator", indicators);
   }
 
+  @Override
+  protected ChartDescription describe(Context ctx) {
+    final Map<String, String> parameters = ctx.parameters();
+    if (!parameters.containsKey("indicator")) {
+      return null;
+    }
+    final ProgressTable.Indicator indicator =
+        ProgressTable.Indicator.valueOf(parameters.get("indicator"));
+    try {
+      // Finding the cell is enough, without building the table around it
+      if (getIndicatorCell(ctx.datasource(), ctx.region(), indicator) == null) {
+        return null;
+      }
+    } catch (MissingDataException e) {
+      return null;
+    }
+    return new ChartDescription(ctx.type(), ctx.region(), parameters,
+        "Progress Tile - "+indicator.getLabel());
+  }
+
   @Override
   public Chart build(Context ctx) {
     final SpreadsheetDataSource datasource = ctx.datasource();
@@ -17,6 +17,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.poi.hssf.util.HSSFColor;
 import org.apache.poi.ss.formula.eval.ErrorEval;
 import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CellValue;
 import org.apache.poi.ss.usermodel.Color;
 import org.apache.poi.ss.usermodel.FormulaError;
@@ -46,6 +47,9 @@ public abstract class SpreadsheetDataSource implements DataSource {
 
   private final int defaultSheet;
 
+  // Workbooks don't grow as they're read, so only measured once
+  private volatile long size = -1;
+
   private class SpreadsheetCellValue implements Value {
 
     private final Cell cell;
@@ -56,9 +60,15 @@ public abstract class SpreadsheetDataSource implements DataSource {
 
     @Override
     public String getValue() {
+      synchronized (lock()) {
+        return read();
+      }
+    }
+
+    private String read() {
       String result = "";
       try {
-        CellValue cellValue = evaluator().evaluate(cell);
+        final CellValue cellValue = evaluate(cell);
         if (cellValue == null) {
           return "";
         }
@@ -143,25 +153,17 @@ public abstract class SpreadsheetDataSource implements DataSource {
 
     @Override
     public java.awt.Color asColor() {
-      for(Color c : Lists.newArrayList(cell.getCellStyle().getFillForegroundColorColor(),
-          cell.getCellStyle().getFillBackgroundColorColor())) {
-        if (c instanceof HSSFColor && (((HSSFColor)c).getTriplet() != null)) {
-          final short[] rgb = ((HSSFColor)c).getTriplet();
-          return new java.awt.Color(rgb[0], rgb[1], rgb[2]);
-        }
-        if (c instanceof XSSFColor && (((XSSFColor)c).getRgb() != null)) {
-          final byte[] rgb = ((XSSFColor)c).getRgb();
-          // Convert bytes to unsigned integers
-          return new java.awt.Color(rgb[0] & 0xFF, rgb[1] & 0xFF, rgb[2] & 0xFF);
-        }
+      synchronized (lock()) {
+        return color(cell.getCellStyle());
       }
-      return null;
     }
 
     @Override
     public Date asDate() {
       try {
-        return cell.getDateCellValue();
+        synchronized (lock()) {
+          return cell.getDateCellValue();
+        }
       } catch(Exception e) {
         final String s = getValue();
         // TODO it would be better if we could somehow parse an arbitrary date format
@@ -179,13 +181,33 @@ public abstract class SpreadsheetDataSource implements DataSource {
     @Override
     public Double asPercent() {
       Double value = asDouble();
-      if(!cell.getCellStyle().getDataFormatString().contains("%") && (value!=null)) {
+      final String format;
+      synchronized (lock()) {
+        format = cell.getCellStyle().getDataFormatString();
+      }
+      if(!format.contains("%") && (value!=null)) {
         value = value / 100.0;
       }
       return value;
     }
   }
 
+  static java.awt.Color color(CellStyle style) {
+    for(Color c : Lists.newArrayList(style.getFillForegroundColorColor(),
+        style.getFillBackgroundColorColor())) {
+      if (c instanceof HSSFColor && (((HSSFColor)c).getTriplet() != null)) {
+        final short[] rgb = ((HSSFColor)c).getTriplet();
+        return new java.awt.Color(rgb[0], rgb[1], rgb[2]);
+      }
+      if (c instanceof XSSFColor && (((XSSFColor)c).getRgb() != null)) {
+        final byte[] rgb = ((XSSFColor)c).getRgb();
+        // Convert bytes to unsigned integers
+        return new java.awt.Color(rgb[0] & 0xFF, rgb[1] & 0xFF, rgb[2] & 0xFF);
+      }
+    }
+    return null;
+  }
+
   private static class EmptyCell implements Value {
     @Override
     public String getValue() {
@@ -239,6 +261,29 @@ public abstract class SpreadsheetDataSource implements DataSource {
     this.evaluator = evaluator;
   }
 
+  /**
+   * @return approximate retained size of the workbook in bytes
+   */
+  public long estimatedSize() {
+    if (size < 0) {
+      size = measure();
+    }
+    return size;
+  }
+
+  private long measure() {
+    long cells = 0;
+    synchronized (lock()) {
+      for (int i = 0; i < workbook().getNumberOfSheets(); i++) {
+        for (Row row : workbook().getSheetAt(i)) {
+          cells += row.getPhysicalNumberOfCells();
+        }
+      }
+    }
+    // POI cell objects (with their XML beans for XLSX) are heavyweight
+    return cells * 500;
+  }
+
   /**
    * select value from 1st sheet
    *
@@ -267,7 +312,10 @@ public abstract class SpreadsheetDataSource implements DataSource {
 
   @Override
   public Value select(String selector) throws MissingDataException {
-    Cell cell = selectCell(selector);
+    final Cell cell;
+    synchronized (lock()) {
+      cell = selectCell(selector);
+    }
     return cell!=null?new SpreadsheetCellValue(cell):new EmptyCell();
   }
 
@@ -328,35 +376,46 @@ public abstract class SpreadsheetDataSource implements DataSource {
   }
 
   public boolean hasSheet(String name) {
+    synchronized (lock()) {
       return getSheet(name) != null;
+    }
   }
 
   public String getSheetname(int i) {
+    synchronized (lock()) {
       Sheet sheet = workbook.getSheetAt(i);
       if(sheet != null) {
           return sheet.getSheetName();
       } else {
           return null;
       }
+    }
   }
 
   public int sheets() {
+    synchronized (lock()) {
       return workbook.getNumberOfSheets();
+    }
   }
 
   public abstract SpreadsheetDataSource toSheet(int sheet);
 
   public SpreadsheetDataSource toSheet(String sheetname) {
-    Sheet s = getSheet(sheetname);
-    if(s!= null) {
-      return toSheet(workbook.getSheetIndex(s));
-    } else {
-      return null;
+    final int i;
+    synchronized (lock()) {
+      Sheet s = getSheet(sheetname);
+      if(s == null) {
+        return null;
+      }
+      i = workbook.getSheetIndex(s);
     }
+    return toSheet(i);
   }
 
   public String getDefaultSheet() {
+    synchronized (lock()) {
       return workbook.getSheetName(defaultSheet);
+    }
   }
 
   public Integer getColumnCount(int row) {
@@ -364,6 +423,7 @@ public abstract class SpreadsheetDataSource implements DataSource {
   }
 
   public Integer getColumnCount(int i, int row) {
+    synchronized (lock()) {
       Sheet sheet = workbook.getSheetAt(i);
       if(sheet != null) {
           Row r = sheet.getRow(row);
@@ -372,6 +432,7 @@ public abstract class SpreadsheetDataSource implements DataSource {
           }
       }
       return null;
+    }
   }
 
   public List<Value> selectRow(int row) throws MissingDataException {
@@ -392,8 +453,10 @@ public abstract class SpreadsheetDataSource implements DataSource {
 
   public List<Value> selectColumn(int column, int limit) throws MissingDataException {
       List<Value> result = Lists.newArrayList();
-      Sheet sheet = workbook.getSheetAt(defaultSheet);
-      int max = Math.min(sheet.getLastRowNum(), limit);
+      final int max;
+      synchronized (lock()) {
+        max = Math.min(workbook.getSheetAt(defaultSheet).getLastRowNum(), limit);
+      }
       for(int row = 0; row <= max;row++) {
           result.add(select(row, column));
       }
@@ -413,36 +476,61 @@ public abstract class SpreadsheetDataSource implements DataSource {
     return workbook;
   }
 
+  Value value(Cell cell) {
+    return new SpreadsheetCellValue(cell);
+  }
+
   FormulaEvaluator evaluator() {
     return evaluator;
   }
 
+  /**
+   * POI workbooks (and the evaluator, which caches intermediate results)
+   * aren't thread-safe, but are shared by every sheet view, so charts built
+   * in parallel must hold this lock while reading from the workbook. Reads
+   * are serialized, so only a {@link CompiledDataSource} gains anything from
+   * being read by several threads.
+   */
+  private Object lock() {
+    return workbook;
+  }
+
+  private CellValue evaluate(Cell cell) {
+    synchronized (lock()) {
+      return evaluator().evaluate(cell);
+    }
+  }
+
   public boolean hasExternalReferences() {
-    for (int si = 0; si < workbook.getNumberOfSheets();si++) {
-      Sheet sheet = workbook.getSheetAt(si);
-      for (Row row : sheet) {
-        for (Cell cell : row) {
-          if (externalReference(cell) != null) {
-            return true;
+    synchronized (lock()) {
+      for (int si = 0; si < workbook.getNumberOfSheets();si++) {
+        Sheet sheet = workbook.getSheetAt(si);
+        for (Row row : sheet) {
+          for (Cell cell : row) {
+            if (externalReference(cell) != null) {
+              return true;
+            }
           }
         }
       }
+      return false;
     }
-    return false;
   }
 
   public Set<UnresolvedRef> externalReferences() {
     Set<UnresolvedRef> urefs = Sets.newHashSet();
-    for(int si = 0; si < workbook.getNumberOfSheets();si++) {
-      Sheet sheet = workbook.getSheetAt(si);
-      for(Row row : sheet) {
-        for(Cell cell : row) {
-          UnresolvedRef uref = externalReference(cell);
-          if(uref != null) {
-            //Logger.debug(String.format(
-            //    "found external reference source '%s', source cell '%s', destination cell '%s'",
-            //    uref.source(), uref.link().source(), uref.link().destination()));
-            urefs.add(uref);
+    synchronized (lock()) {
+      for(int si = 0; si < workbook.getNumberOfSheets();si++) {
+        Sheet sheet = workbook.getSheetAt(si);
+        for(Row row : sheet) {
+          for(Cell cell : row) {
+            UnresolvedRef uref = externalReference(cell);
+            if(uref != null) {
+              //Logger.debug(String.format(
+              //    "found external reference source '%s', source cell '%s', destination cell '%s'",
+              //    uref.source(), uref.link().source(), uref.link().destination()));
+              urefs.add(uref);
+            }
           }
         }
       }
@@ -664,11 +752,15 @@ public abstract class SpreadsheetDataSource implements DataSource {
   }
 
   public int getColumns(int row) {
-    return workbook.getSheetAt(defaultSheet).getRow(row).getLastCellNum();
+    synchronized (lock()) {
+      return workbook.getSheetAt(defaultSheet).getRow(row).getLastCellNum();
+    }
   }
 
   public int getRows() {
-    return workbook.getSheetAt(defaultSheet).getLastRowNum();
+    synchronized (lock()) {
+      return workbook.getSheetAt(defaultSheet).getLastRowNum();
+    }
   }
 
   public Iterable<Value> rangeSelect(final int row1, final int column1,
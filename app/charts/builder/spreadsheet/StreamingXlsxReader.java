@@ -0,0 +1,434 @@
+package charts.builder.spreadsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.model.ThemesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.xmlbeans.XmlException;
+import org.openxmlformats.schemas.drawingml.x2006.main.ThemeDocument;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import play.Logger;
+import charts.builder.spreadsheet.CompiledDataSource.SheetLoader;
+import charts.builder.spreadsheet.CompiledDataSource.SheetSnapshot;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Reads XLSX spreadsheets into a {@link CompiledDataSource} without building
+ * the POI object model.
+ *
+ * Sheets are SAX-parsed on first access, using the cached results Excel
+ * stores for formula cells. Only if a formula has no cached result is the
+ * full workbook loaded, so the formula can be evaluated the same way
+ * {@link XlsxDataSource} does.
+ *
+ * The package is read from a temporary copy of the spreadsheet, so only its
+ * directory is kept in memory until the sheets are needed. The package, the
+ * copy and any workbook are released when the datasource is closed, or once
+ * it's been garbage collected (checked whenever another spreadsheet is
+ * read). Reading every sheet releases them early, as nothing more is needed.
+ */
+public class StreamingXlsxReader implements SheetLoader {
+
+  /*
+   * What has to be released for a reader. It mustn't refer to the reader, so
+   * it can tell when the reader (and so every view of its datasource) has
+   * been collected.
+   */
+  private static class Resources
+      extends PhantomReference<StreamingXlsxReader> {
+    private final File file;
+    private OPCPackage pkg;
+
+    Resources(StreamingXlsxReader reader, File file) {
+      super(reader, COLLECTED);
+      this.file = file;
+    }
+
+    synchronized void release() {
+      if (pkg != null) {
+        // Read-only, so close without saving
+        pkg.revert();
+        pkg = null;
+      }
+      FileUtils.deleteQuietly(file);
+      OUTSTANDING.remove(this);
+    }
+  }
+
+  private static final ReferenceQueue<StreamingXlsxReader> COLLECTED =
+      new ReferenceQueue<StreamingXlsxReader>();
+  // Keeps resources reachable until they've been released
+  private static final Set<Resources> OUTSTANDING = Sets.newConcurrentHashSet();
+
+  private final Resources resources;
+  // Dropped once released
+  private OPCPackage pkg;
+  private XSSFReader reader;
+  private ReadOnlySharedStringsTable sharedStrings;
+  private StylesTable styles;
+  private final String[] names;
+  private final Map<String, String> pool = Maps.newHashMap();
+  private final Map<Short, Integer> styleColors = Maps.newHashMap();
+  private final Map<Integer, Boolean> percentFormats = Maps.newHashMap();
+  private int loaded = 0;
+
+  // Only loaded if cached formula results are missing
+  private SpreadsheetDataSource fallback;
+
+  private StreamingXlsxReader(File file) throws IOException,
+      OpenXML4JException, SAXException {
+    this.resources = new Resources(this, file);
+    OUTSTANDING.add(resources);
+    this.pkg = OPCPackage.open(file.getPath(), PackageAccess.READ);
+    resources.pkg = pkg;
+    this.reader = new XSSFReader(pkg);
+    this.sharedStrings = new ReadOnlySharedStringsTable(pkg);
+    this.styles = reader.getStylesTable();
+    final InputStream themes = reader.getThemesData();
+    if (themes != null) {
+      try {
+        styles.setTheme(new ThemesTable(ThemeDocument.Factory.parse(themes)));
+      } catch (XmlException e) {
+        throw new IOException(e);
+      } finally {
+        IOUtils.closeQuietly(themes);
+      }
+    }
+    this.names = sheetNames();
+  }
+
+  public static CompiledDataSource read(InputStream in) throws IOException {
+    releaseCollected();
+    final File file = File.createTempFile("streaming", ".xlsx");
+    StreamingXlsxReader r = null;
+    try {
+      FileUtils.copyInputStreamToFile(in, file);
+      r = new StreamingXlsxReader(file);
+      final CompiledDataSource ds =
+          new CompiledDataSource(r.names, r, r.isDate1904());
+      if (r.names.length == 0) {
+        r.close();
+      }
+      return ds;
+    } catch (OpenXML4JException e) {
+      release(r, file);
+      throw new IOException(e);
+    } catch (SAXException e) {
+      release(r, file);
+      throw new IOException(e);
+    } catch (IOException | RuntimeException e) {
+      release(r, file);
+      throw e;
+    }
+  }
+
+  private static void release(StreamingXlsxReader r, File file) {
+    if (r == null) {
+      FileUtils.deleteQuietly(file);
+    } else {
+      r.close();
+    }
+  }
+
+  /*
+   * Release the resources of readers nobody can use any more.
+   */
+  private static void releaseCollected() {
+    Reference<? extends StreamingXlsxReader> ref;
+    while ((ref = COLLECTED.poll()) != null) {
+      ((Resources) ref).release();
+    }
+  }
+
+  private String[] sheetNames() throws IOException, OpenXML4JException {
+    final List<String> names = Lists.newArrayList();
+    final XSSFReader.SheetIterator iter =
+        (XSSFReader.SheetIterator) reader.getSheetsData();
+    while (iter.hasNext()) {
+      IOUtils.closeQuietly(iter.next());
+      names.add(iter.getSheetName());
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  private boolean isDate1904() throws IOException, OpenXML4JException,
+      SAXException {
+    final boolean[] result = new boolean[1];
+    parse(reader.getWorkbookData(), new DefaultHandler() {
+      @Override
+      public void startElement(String uri, String localName, String qName,
+          Attributes attributes) {
+        if ("workbookPr".equals(localName)) {
+          final String v = attributes.getValue("date1904");
+          result[0] = "1".equals(v) || "true".equalsIgnoreCase(v);
+        }
+      }
+    });
+    return result[0];
+  }
+
+  /**
+   * Called at most once per sheet, by one thread at a time.
+   */
+  @Override
+  public SheetSnapshot load(int sheet) throws IOException {
+    if (pkg == null) {
+      throw new IOException("Spreadsheet has been closed");
+    }
+    final SheetSnapshot snapshot = parseSheet(sheet);
+    if (++loaded == names.length) {
+      // Everything we need is in the snapshots now
+      close();
+    }
+    return snapshot;
+  }
+
+  private SheetSnapshot parseSheet(int sheet) throws IOException {
+    try {
+      if (fallback == null) {
+        final SheetHandler handler = new SheetHandler();
+        parse(sheetData(sheet), handler);
+        if (!handler.uncachedFormula) {
+          return handler.snapshot(names[sheet]);
+        }
+        Logger.debug("Formula without cached value, so loading workbook");
+        fallback = new XlsxDataSource(new XSSFWorkbook(pkg));
+      }
+      return CompiledDataSource.compileSheet(fallback, sheet, pool,
+          styleColors);
+    } catch (OpenXML4JException e) {
+      throw new IOException(e);
+    } catch (SAXException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Called by one thread at a time, as for {@link #load(int)}.
+   */
+  @Override
+  public void close() {
+    resources.release();
+    pkg = null;
+    reader = null;
+    sharedStrings = null;
+    styles = null;
+    fallback = null;
+    pool.clear();
+    styleColors.clear();
+    percentFormats.clear();
+  }
+
+  private InputStream sheetData(int sheet) throws IOException,
+      OpenXML4JException {
+    final Iterator<InputStream> iter = reader.getSheetsData();
+    for (int i = 0; i < sheet; i++) {
+      IOUtils.closeQuietly(iter.next());
+    }
+    return iter.next();
+  }
+
+  private static void parse(InputStream in, DefaultHandler handler)
+      throws IOException, SAXException {
+    try {
+      final SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setNamespaceAware(true);
+      final XMLReader xml = factory.newSAXParser().getXMLReader();
+      xml.setContentHandler(handler);
+      xml.parse(new InputSource(in));
+    } catch (ParserConfigurationException e) {
+      throw new RuntimeException(e);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private static class Cell {
+    final int row;
+    final int col;
+    final String value;
+    final boolean numeric;
+    final int style;
+
+    Cell(int row, int col, String value, boolean numeric, int style) {
+      this.row = row;
+      this.col = col;
+      this.value = value;
+      this.numeric = numeric;
+      this.style = style;
+    }
+  }
+
+  /*
+   * Collects cell values in document order, converting them to the strings
+   * SpreadsheetDataSource would return.
+   */
+  private class SheetHandler extends DefaultHandler {
+
+    private final List<Cell> cells = Lists.newArrayList();
+    // Row number -> last cell num (as per Row.getLastCellNum())
+    private final TreeMap<Integer, Integer> rows = Maps.newTreeMap();
+    private final StringBuilder text = new StringBuilder();
+    private boolean uncachedFormula = false;
+
+    private int row = -1;
+    private int col = -1;
+    private String type;
+    private int style;
+    private boolean hasFormula;
+    private boolean hasValue;
+    private boolean inText;
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attributes) {
+      if ("row".equals(localName)) {
+        final String r = attributes.getValue("r");
+        row = r == null ? row + 1 : Integer.parseInt(r) - 1;
+        col = -1;
+        if (!rows.containsKey(row)) {
+          rows.put(row, -1);
+        }
+      } else if ("c".equals(localName)) {
+        final String r = attributes.getValue("r");
+        col = r == null ? col + 1 : new CellReference(r).getCol();
+        type = attributes.getValue("t");
+        final String s = attributes.getValue("s");
+        style = s == null ? 0 : Integer.parseInt(s);
+        hasFormula = false;
+        hasValue = false;
+        text.setLength(0);
+      } else if ("f".equals(localName)) {
+        hasFormula = true;
+      } else if ("v".equals(localName)) {
+        hasValue = true;
+        inText = true;
+      } else if ("t".equals(localName) && "inlineStr".equals(type)) {
+        hasValue = true;
+        inText = true;
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if ("v".equals(localName) || "t".equals(localName)) {
+        inText = false;
+      } else if ("c".equals(localName)) {
+        if (hasFormula && !hasValue) {
+          uncachedFormula = true;
+        }
+        // Untyped cells hold numbers, including numeric formula results
+        cells.add(new Cell(row, col, value(),
+            hasValue && (type == null || "n".equals(type)), style));
+        rows.put(row, Math.max(rows.get(row), col + 1));
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (inText) {
+        text.append(ch, start, length);
+      }
+    }
+
+    private String value() {
+      if (!hasValue) {
+        return "";
+      }
+      final String v = text.toString();
+      if ("s".equals(type)) {
+        return sharedStrings.getEntryAt(Integer.parseInt(v.trim()));
+      } else if ("b".equals(type)) {
+        return Boolean.toString("1".equals(v.trim()));
+      } else if ("e".equals(type) || "str".equals(type) ||
+          "inlineStr".equals(type)) {
+        return v;
+      }
+      try {
+        return Double.toString(Double.parseDouble(v));
+      } catch (NumberFormatException e) {
+        return v;
+      }
+    }
+
+    SheetSnapshot snapshot(String name) {
+      final int lastRowNum = rows.isEmpty() ? 0 : rows.lastKey();
+      final int[] rowOffset = new int[lastRowNum + 1];
+      final short[] rowLength = new short[lastRowNum + 1];
+      int total = 0;
+      for (int r = 0; r <= lastRowNum; r++) {
+        final Integer length = rows.get(r);
+        if (length == null) {
+          rowOffset[r] = -1;
+        } else {
+          rowOffset[r] = total;
+          rowLength[r] = length.shortValue();
+          total += Math.max(0, length);
+        }
+      }
+      final SheetSnapshot snapshot = new SheetSnapshot(name, lastRowNum,
+          rowOffset, rowLength, total);
+      for (Cell cell : cells) {
+        final int i = snapshot.index(cell.row, cell.col);
+        if (i < 0) {
+          continue;
+        }
+        final XSSFCellStyle cs = styles.getStyleAt(cell.style);
+        snapshot.set(i, cell.value, cell.numeric,
+            isPercentFormat(cell.style, cs), rgb(cs), pool);
+      }
+      return snapshot;
+    }
+
+  }
+
+  private boolean isPercentFormat(int style, XSSFCellStyle cs) {
+    Boolean percent = percentFormats.get(style);
+    if (percent == null) {
+      percent = CompiledDataSource.isPercentFormat(cs.getDataFormatString());
+      percentFormats.put(style, percent);
+    }
+    return percent;
+  }
+
+  private int rgb(XSSFCellStyle cs) {
+    Integer rgb = styleColors.get(cs.getIndex());
+    if (rgb == null) {
+      rgb = CompiledDataSource.rgb(SpreadsheetDataSource.color(cs));
+      styleColors.put(cs.getIndex(), rgb);
+    }
+    return rgb;
+  }
+
+}
@@ -57,6 +57,13 @@ public class XlsxDataSource extends SpreadsheetDataSource {
     initWorkbook(initExternalRefs(in));
   }
 
+  /**
+   * Wraps an already loaded workbook, without external reference support.
+   */
+  XlsxDataSource(XSSFWorkbook workbook) {
+    initWorkbook(workbook);
+  }
+
   private InputStream initExternalRefs(InputStream in) throws IOException {
     final File tmpDir = Files.createTempDir();
     File fSpreadsheet = new File(tmpDir, "spreadsheet.xlsx");
@@ -112,7 +119,10 @@ public class XlsxDataSource extends SpreadsheetDataSource {
   }
 
   private void initWorkbook(InputStream in) throws IOException {
-    XSSFWorkbook workbook = new XSSFWorkbook(in);
+    initWorkbook(new XSSFWorkbook(in));
+  }
+
+  private void initWorkbook(XSSFWorkbook workbook) {
     XSSFFormulaEvaluator evaluator = new XSSFFormulaEvaluator(workbook);
     evaluator.setIgnoreMissingWorkbooks(true);
     init(workbook, evaluator);
@@ -0,0 +1,322 @@
+package charts.representations;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import play.Logger;
+import charts.AbstractChart;
+import charts.Chart;
+import charts.Chart.UnsupportedFormatException;
+import charts.ChartDescription;
+import charts.builder.LazyChart;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Bytes;
+
+/**
+ * Disk-backed cache of rendered chart representations.
+ *
+ * Entries are content-addressed: the key is derived from the SHA-512 digest
+ * of the source file plus everything that identifies the rendered output
+ * (chart type, region, parameters, format and requested dimensions). As a
+ * new file version has a new digest, entries never need invalidating - stale
+ * ones simply age out of the LRU ordering once the size budget is reached.
+ */
+public class RenderCache {
+
+  private static final String SUFFIX = ".rep";
+  private static final String TEMP_SUFFIX = SUFFIX + ".tmp";
+
+  public static class Key {
+
+    private final String digest;
+    private final String description;
+    private final Format format;
+    private final Dimension dimensions;
+
+    public Key(String digest, ChartDescription description, Format format,
+        Dimension dimensions) {
+      this.digest = digest;
+      this.description = String.format("%s:%s:%s",
+          description.getType().name(),
+          description.getRegion().name(),
+          description.getParameterString());
+      this.format = format;
+      this.dimensions = dimensions == null ? new Dimension() : dimensions;
+    }
+
+    /**
+     * @return filesystem-safe name for this key
+     */
+    public String filename() {
+      return DigestUtils.sha1Hex(toString()) + SUFFIX;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s/%s/%s/%dx%d", digest, description, format,
+          Math.round(dimensions.getWidth()),
+          Math.round(dimensions.getHeight()));
+    }
+
+  }
+
+  public static class Stats {
+
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final int entries;
+    public final long bytes;
+    public final long maxBytes;
+
+    protected Stats(long hits, long misses, long evictions, int entries,
+        long bytes, long maxBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.entries = entries;
+      this.bytes = bytes;
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "hits: %d, misses: %d, evictions: %d, entries: %d, bytes: %d/%d",
+          hits, misses, evictions, entries, bytes, maxBytes);
+    }
+
+  }
+
+  private final File directory;
+  private final long maxBytes;
+  private final boolean rasterizeDirectly;
+
+  // Access-ordered, so iteration starts with the least-recently used entry
+  private final LinkedHashMap<String, Long> index =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public RenderCache(File directory, long maxBytes) {
+    this(directory, maxBytes, false);
+  }
+
+  /**
+   * @param rasterizeDirectly draw PNGs directly with Java2D, instead of
+   *          transcoding the SVG
+   */
+  public RenderCache(File directory, long maxBytes,
+      boolean rasterizeDirectly) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.rasterizeDirectly = rasterizeDirectly;
+    try {
+      FileUtils.forceMkdir(directory);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    loadIndex();
+  }
+
+  /**
+   * Get the representation from the cache, or render it from the chart and
+   * cache the result.
+   *
+   * @param digest SHA-512 digest of the chart's source file
+   */
+  public Representation outputAs(String digest, Chart chart, Format format,
+      Dimension dimensions) throws UnsupportedFormatException {
+    if (digest == null) {
+      return render(chart, format, dimensions);
+    }
+    final Key key = new Key(digest, chart.getDescription(), format,
+        dimensions);
+    final Representation cached = get(key);
+    if (cached != null) {
+      return cached;
+    }
+    final Representation r = render(chart, format, dimensions);
+    put(key, r);
+    return r;
+  }
+
+  public Representation get(Key key) {
+    final String filename = key.filename();
+    synchronized (index) {
+      if (index.get(filename) == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    final File f = new File(directory, filename);
+    try {
+      final Representation r = read(FileUtils.readFileToByteArray(f));
+      hits.incrementAndGet();
+      return r;
+    } catch (IOException e) {
+      // Removed underneath us, so drop it from the index
+      Logger.debug("while reading render cache entry "+f, e);
+      remove(filename);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  public void put(Key key, Representation r) {
+    final String filename = key.filename();
+    final byte[] data = write(r);
+    if (data.length > maxBytes) {
+      return;
+    }
+    final File f = new File(directory, filename);
+    File tmp = null;
+    try {
+      // Unique per put, as the same key may be rendered concurrently
+      tmp = File.createTempFile("render", TEMP_SUFFIX, directory);
+      FileUtils.writeByteArrayToFile(tmp, data);
+      java.nio.file.Files.move(tmp.toPath(), f.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Logger.warn("while writing render cache entry "+f, e);
+      FileUtils.deleteQuietly(tmp);
+      return;
+    }
+    final List<String> evicted = Lists.newLinkedList();
+    synchronized (index) {
+      final Long previous = index.put(filename, (long) data.length);
+      if (previous != null) {
+        totalBytes -= previous;
+      }
+      totalBytes += data.length;
+      final Iterator<Map.Entry<String, Long>> iter =
+          index.entrySet().iterator();
+      while (totalBytes > maxBytes && iter.hasNext()) {
+        final Map.Entry<String, Long> e = iter.next();
+        if (e.getKey().equals(filename)) {
+          continue;
+        }
+        totalBytes -= e.getValue();
+        evicted.add(e.getKey());
+        iter.remove();
+      }
+    }
+    for (String name : evicted) {
+      FileUtils.deleteQuietly(new File(directory, name));
+      evictions.incrementAndGet();
+    }
+  }
+
+  public void clear() {
+    synchronized (index) {
+      for (String name : index.keySet()) {
+        FileUtils.deleteQuietly(new File(directory, name));
+      }
+      index.clear();
+      totalBytes = 0;
+    }
+  }
+
+  public Stats stats() {
+    synchronized (index) {
+      return new Stats(hits.get(), misses.get(), evictions.get(),
+          index.size(), totalBytes, maxBytes);
+    }
+  }
+
+  private Representation render(Chart chart, Format format,
+      Dimension dimensions) throws UnsupportedFormatException {
+    if (rasterizeDirectly && format == Format.PNG) {
+      final Chart c = LazyChart.unwrap(chart);
+      if (c instanceof AbstractChart) {
+        return ((AbstractChart) c).outputAs(format, dimensions, true);
+      }
+    }
+    return chart.outputAs(format, dimensions);
+  }
+
+  private void remove(String filename) {
+    synchronized (index) {
+      final Long size = index.remove(filename);
+      if (size != null) {
+        totalBytes -= size;
+      }
+    }
+  }
+
+  private void loadIndex() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    // Oldest first, so least-recently written entries are evicted first
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+      }
+    });
+    synchronized (index) {
+      for (File f : files) {
+        if (f.isFile() && f.getName().endsWith(SUFFIX)) {
+          index.put(f.getName(), f.length());
+          totalBytes += f.length();
+        } else if (f.isFile() && f.getName().endsWith(TEMP_SUFFIX)) {
+          // Left by an interrupted put. Anything else isn't ours to delete.
+          FileUtils.deleteQuietly(f);
+        }
+      }
+    }
+    Logger.debug(String.format("Loaded %d render cache entries from %s",
+        index.size(), directory));
+  }
+
+  /*
+   * Entries are stored as the content type, a newline, then the content.
+   */
+  private static byte[] write(Representation r) {
+    try {
+      return Bytes.concat((r.getContentType() + "\n").getBytes("UTF-8"),
+          r.getContent());
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Should never happen
+    }
+  }
+
+  private static Representation read(byte[] data) throws IOException {
+    final int i = Bytes.indexOf(data, (byte) '\n');
+    if (i < 0) {
+      throw new IOException("Corrupt render cache entry");
+    }
+    final String contentType = new String(data, 0, i, "UTF-8");
+    final byte[] content = Arrays.copyOfRange(data, i + 1, data.length);
+    return new Representation() {
+      @Override
+      public byte[] getContent() {
+        return content;
+      }
+      @Override
+      public String getContentType() {
+        return contentType;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,51 @@
+package charts.representations;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads rendering charts for archive downloads. Shared by all requests,
+ * so concurrent downloads can't swamp the server with renders.
+ */
+public class RenderPool {
+
+  private final ExecutorService executor;
+  private final int threads;
+
+  public RenderPool(int threads) {
+    this.threads = threads;
+    this.executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r,
+                "chart archive renderer " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  public <T> Future<T> submit(Callable<T> task) {
+    return executor.submit(task);
+  }
+
+  /**
+   * @return renders a single request should have queued or in flight at
+   *         once, so its memory use stays bounded
+   */
+  public int window() {
+    return threads * 2;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+}
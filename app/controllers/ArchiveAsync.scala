@@ -1,8 +1,11 @@
 package controllers
 
 import java.awt.Dimension
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
+import scala.collection.mutable
 import scala.collection.JavaConversions.asScalaBuffer
 import scala.collection.JavaConversions.seqAsJavaList
 import scala.util.Try
@@ -14,6 +17,8 @@ import charts.ChartDescription
 import charts.Region
 import charts.builder.ChartBuilder
 import charts.representations.Format
+import charts.representations.RenderCache
+import charts.representations.RenderPool
 import javax.jcr.Session
 import models.CacheableUser
 import play.api.libs.concurrent.Execution.Implicits.defaultContext
@@ -30,7 +35,9 @@ class ArchiveAsync @Inject() (
   val jcrom: Jcrom,
   val filestore: service.filestore.FileStore,
   val sessionFactory: service.JcrSessionFactory,
-  val chartBuilder: ChartBuilder)
+  val chartBuilder: ChartBuilder,
+  val renderCache: RenderCache,
+  val renderPool: RenderPool)
   extends Controller {
 
   def chartArchive(id: String): EssentialAction = isAuthenticated { user =>
@@ -50,25 +57,52 @@ class ArchiveAsync @Inject() (
       zip.close()
     }
 
+  // Renders run on the pool while this thread writes finished entries in
+  // order. At most "window" renders are queued or in flight at once, so
+  // memory stays bounded however many charts there are.
   protected def addChartFilesToArchive(
     user: CacheableUser, id: String)(zos: ZipArchiveOutputStream) {
-    inSession(user) { session =>
-      val manager = filestore.getManager(session)
+    val files = inSession(user) { session =>
+      val folderPaths = mutable.Map[String, String]()
+      controllers.Chart.getFilesFromID(filestore, session, id).map { file =>
+        (file.getIdentifier(), file.getDigest(),
+          path(folderPaths, id, file))
+      }
+    }
+    val pending = mutable.Queue[(String, Future[Option[Array[Byte]]])]()
+    def writeNext() {
+      val (filepath, result) = pending.dequeue()
+      result.get().foreach { data =>
+        zos.putArchiveEntry(new ZipArchiveEntry(filepath))
+        zos.write(data)
+        zos.closeArchiveEntry()
+      }
+    }
+    try {
       for (
-        file <- controllers.Chart.getFilesFromID(filestore, session, id);
+        (fileId, digest, filePath) <- files;
         chart <- chartBuilder.getCharts(
-            file.getIdentifier(), null, Region.values.toSeq, null);
-        f <- Format.values;
-        data <- Try(chart.outputAs(f, new Dimension).getContent()) // skip if unsupported
+            fileId, null, Region.values.toSeq, null);
+        f <- Format.values
       ) {
+        if (pending.size >= renderPool.window) {
+          writeNext()
+        }
         val filepath = "%s/%s.%s".format(
-          path(manager, id, file.getIdentifier()),
-          name(chart.getDescription()),
-          f.name()).toLowerCase()
-        zos.putArchiveEntry(new ZipArchiveEntry(filepath))
-        zos.write(data)
-        zos.closeArchiveEntry()
+          filePath, name(chart.getDescription()), f.name()).toLowerCase()
+        pending.enqueue((filepath, renderPool.submit(
+          new Callable[Option[Array[Byte]]] {
+            // skip if unsupported
+            override def call() = Try(renderCache.outputAs(
+              digest, chart, f, new Dimension).getContent()).toOption
+          })))
+      }
+      while (!pending.isEmpty) {
+        writeNext()
       }
+    } finally {
+      // Client went away or something failed, so stop rendering
+      pending.foreach { case (_, result) => result.cancel(true) }
     }
   }
 
@@ -76,12 +110,15 @@ class ArchiveAsync @Inject() (
     "%s-%s".format(description.getRegion().getName().toLowerCase(), description.getTitle())
   }
 
-  protected def path(manager : FileStore.Manager, rootId : String, id: String) : String = {
-    val fof = manager.getByIdentifier(id)
-    if(rootId.equals(id)) {
+  // Folder paths are memoised, so each folder is only resolved once
+  protected def path(folderPaths : mutable.Map[String, String],
+      rootId : String, fof : FileStore.FileOrFolder) : String = {
+    if(rootId.equals(fof.getIdentifier())) {
       fof.getName()
     } else {
-      path(manager, rootId, fof.getParent().getIdentifier())+"/"+fof.getName()
+      val parent = fof.getParent()
+      folderPaths.getOrElseUpdate(parent.getIdentifier(),
+        path(folderPaths, rootId, parent))+"/"+fof.getName()
     }
   }
 
@@ -101,4 +138,4 @@ class ArchiveAsync @Inject() (
       new F.Function[Session, A] {
         override def apply(session: Session) = f(session)
       })
-}
\ No newline at end of file
+}
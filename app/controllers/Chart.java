@@ -2,6 +2,7 @@ package controllers;
 
 import static com.google.common.base.Objects.firstNonNull;
 import static com.google.common.collect.Iterables.getFirst;
+import static service.filestore.roles.Admin.isAdmin;
 import helpers.FileStoreHelper;
 
 import java.awt.Dimension;
@@ -12,6 +13,8 @@ import java.util.Set;
 
 import javax.jcr.Session;
 
+import models.UserDAO;
+
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.message.BasicNameValuePair;
 import org.jcrom.Jcrom;
@@ -28,7 +31,9 @@ import charts.ChartDescription;
 import charts.ChartType;
 import charts.Region;
 import charts.builder.ChartBuilder;
+import charts.builder.ChartCache;
 import charts.representations.Format;
+import charts.representations.RenderCache;
 import charts.representations.Representation;
 
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -45,13 +50,20 @@ public class Chart extends SessionAwareController {
 
   private final ChartBuilder chartBuilder;
 
+  private final RenderCache renderCache;
+
+  private final ChartCache chartCache;
+
   @Inject
   public Chart(final JcrSessionFactory sessionFactory, final Jcrom jcrom,
       final CacheableUserProvider sessionHandler, final FileStore fileStore,
-      final ChartBuilder chartBuilder) {
+      final ChartBuilder chartBuilder, final RenderCache renderCache,
+      final ChartCache chartCache) {
     super(sessionFactory, jcrom, sessionHandler);
     this.fileStore = fileStore;
     this.chartBuilder = chartBuilder;
+    this.renderCache = renderCache;
+    this.chartCache = chartCache;
   }
 
   @SubjectPresent
@@ -85,8 +97,12 @@ public class Chart extends SessionAwareController {
   }
 
   private Map<String, String> getParameters() {
+      return getParameters(request().queryString());
+  }
+
+  public static Map<String, String> getParameters(Map<String, String[]> query) {
       Map<String, String> parameters = Maps.newHashMap();
-      for(Map.Entry<String, String[]> me : request().queryString().entrySet()) {
+      for(Map.Entry<String, String[]> me : query.entrySet()) {
         if(me.getValue() != null && me.getValue().length > 0) {
           parameters.put(me.getKey(), me.getValue()[0]);
         }
@@ -97,7 +113,8 @@ public class Chart extends SessionAwareController {
   @SubjectPresent
   public Result chart(final String chartType,
       final String formatStr, final String id) throws Exception {
-    if (!fileIsAccessible(id)) {
+    final String digest = getFileDigest(id);
+    if (digest == null) {
       return notFound();
     }
     final ChartType type;
@@ -121,7 +138,7 @@ public class Chart extends SessionAwareController {
         }
       } catch(Exception e) {}
       try {
-        final Representation r = chart.outputAs(format,
+        final Representation r = renderCache.outputAs(digest, chart, format,
             getQueryDimensions(request().queryString()));
         ctx().response().setHeader("Last-Modified", asHttpDate(chart.created()));
         return ok(r.getContent()).as(r.getContentType());
@@ -132,13 +149,60 @@ public class Chart extends SessionAwareController {
     return notFound();
   }
 
+  @SubjectPresent
+  public Result cacheStats() {
+    return inUserSession(new F.Function<Session, Result>() {
+      @Override
+      public Result apply(Session session) throws Throwable {
+        final UserDAO dao = new UserDAO(session, jcrom);
+        if (!isAdmin(session, dao, dao.get(getUser()))) {
+          return forbidden();
+        }
+        final ChartCache.Stats cs = chartCache.stats();
+        final RenderCache.Stats rs = renderCache.stats();
+        final ObjectNode json = Json.newObject();
+        final ObjectNode charts = json.putObject("chartCache");
+        charts.put("hits", cs.hits);
+        charts.put("misses", cs.misses);
+        charts.put("evictions", cs.evictions);
+        charts.put("entries", cs.entries);
+        charts.put("bytes", cs.bytes);
+        charts.put("maxBytes", cs.maxBytes);
+        charts.put("builds", cs.builds);
+        charts.put("coalesced", cs.coalesced);
+        charts.put("restarts", cs.restarts);
+        charts.put("timeouts", cs.timeouts);
+        charts.put("inFlight", cs.inFlight);
+        final ObjectNode renders = json.putObject("renderCache");
+        renders.put("hits", rs.hits);
+        renders.put("misses", rs.misses);
+        renders.put("evictions", rs.evictions);
+        renders.put("entries", rs.entries);
+        renders.put("bytes", rs.bytes);
+        renders.put("maxBytes", rs.maxBytes);
+        return ok(json).as("application/json; charset=utf-8");
+      }
+    });
+  }
+
   private boolean fileIsAccessible(final String id) {
-    return inUserSession(new F.Function<Session, Boolean>() {
+    return inUserReadSession(new F.Function<Session, Boolean>() {
       @Override
       public Boolean apply(Session session) throws Throwable {
-        final FileStore.FileOrFolder fof = fileStore.getManager(session)
-            .getByIdentifier(id);
-        return fof != null && fof instanceof FileStore.File;
+        final FileStore.TreeEntry entry = fileStore.getManager(session)
+            .getEntry(id);
+        return entry != null && !entry.isFolder();
+      }
+    });
+  }
+
+  private String getFileDigest(final String id) {
+    return inUserReadSession(new F.Function<Session, String>() {
+      @Override
+      public String apply(Session session) throws Throwable {
+        final FileStore.TreeEntry entry = fileStore.getManager(session)
+            .getEntry(id);
+        return entry != null && !entry.isFolder() ? entry.getDigest() : null;
       }
     });
   }
@@ -185,11 +249,11 @@ public class Chart extends SessionAwareController {
     return ImmutableSet.copyOf(firstNonNull(m.get(key), new String[0]));
   }
 
-  protected static List<Region> getRegions(Map<String, String[]> query) {
+  public static List<Region> getRegions(Map<String, String[]> query) {
     return Lists.newArrayList(Region.getRegions(getValues(query, "region")));
   }
 
-  protected static Dimension getQueryDimensions(Map<String, String[]> query) {
+  public static Dimension getQueryDimensions(Map<String, String[]> query) {
     final Dimension queryDimensions = new Dimension();
     try {
       double w = Double.parseDouble(getFirst(getValues(query, "width"), ""));
@@ -1,6 +1,8 @@
 package controllers
 
 import java.text.DateFormat
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
 import scala.collection.JavaConversions.iterableAsScalaIterable
 import scala.concurrent.ExecutionContext.Implicits.global
@@ -29,6 +31,7 @@ import play.api.mvc.AnyContent
 import play.api.mvc.Controller
 import play.api.mvc.EssentialAction
 import play.api.mvc.Request
+import service.EventManager.BatchEventReceiver
 import service.EventManager.EventReceiver;
 import service.EventManager.EventReceiverMessage;
 import service.EventManager.{Event => EmEvent}
@@ -101,10 +104,11 @@ import scala.concurrent.duration._
 
   private def fsEvents(lastEventId: String) = {
     val em = filestore.getEventManager
-    var er: EventReceiver = null;
-    Concurrent.unicast[OrderedEvent](
-      onStart = { channel: Channel[OrderedEvent] =>
-        er = ChannelEventReceiver(channel)
+    var er: ChannelEventReceiver = null;
+    Concurrent.unicast[Seq[OrderedEvent]](
+      onStart = { channel: Channel[Seq[OrderedEvent]] =>
+        er = new ChannelEventReceiver(channel, em)
+        // Browsers reconnect with their last event ID, so can catch up
         em tell EventReceiverMessage.add(er, lastEventId)
       },
       // This is a pass-by-name (ie. lazy evaluation) parameter
@@ -114,10 +118,14 @@ import scala.concurrent.duration._
         // not when the socket closes.
         em tell EventReceiverMessage.remove(er)
       },
-      onError = { (s: String, i: Input[OrderedEvent]) =>
+      onError = { (s: String, i: Input[Seq[OrderedEvent]]) =>
         em tell EventReceiverMessage.remove(er)
       }
-    )
+    ) &> Enumeratee.map[Seq[OrderedEvent]] { batch =>
+      // Only reached once the previous batch has been written
+      er.sent(batch.size)
+      batch
+    }
   }
 
   private def pingEnumerator(): Enumerator[String] = ssePingBroadcast
@@ -127,16 +135,51 @@ import scala.concurrent.duration._
   private def eventSourceFormatter = {
     // Play Framework uses structural types to implement the Enumeratee
 import scala.language.reflectiveCalls
-    Enumeratee.map[OrderedEvent] {
-      case OrderedEvent(id, event) => sseMessage(id, event)
+    // Each batch of events is sent in a single write
+    Enumeratee.map[Seq[OrderedEvent]] { batch =>
+      batch.map {
+        case OrderedEvent(id, event) => sseMessage(id, event)
+      }.mkString
     }
   }
 
-  private case class ChannelEventReceiver(val c: Channel[OrderedEvent])
-      extends EventReceiver {
-    def push(oe: OrderedEvent) = c.push(oe)
-    def end = c.end
-    def end(e: Throwable) = c.end(e)
+  /*
+   * Pushing to the channel never blocks, so the dispatcher never sees this
+   * receiver fall behind. Instead, events pushed but not yet written are
+   * counted here, and the stream is ended once a slow client has too many.
+   */
+  private class ChannelEventReceiver(
+      val c: Channel[Seq[OrderedEvent]],
+      val em: service.EventManager) extends BatchEventReceiver {
+    private val unsent = new AtomicInteger()
+    private val ended = new AtomicBoolean()
+
+    def push(oe: OrderedEvent) = send(Seq(oe))
+    def push(batch: java.util.List[OrderedEvent]) = send(batch.toList)
+    def end = if (ended.compareAndSet(false, true)) c.end
+    def end(e: Throwable) = if (ended.compareAndSet(false, true)) c.end(e)
+
+    def sent(n: Int) = unsent.addAndGet(-n)
+
+    private def send(batch: Seq[OrderedEvent]) {
+      if (unsent.addAndGet(batch.size) > FileStoreAsync.maxUnsent) {
+        // It reconnects with its last event ID and catches up from history
+        em tell EventReceiverMessage.remove(this)
+        end(new FileStoreAsync.SlowReceiverException(
+            "More than " + FileStoreAsync.maxUnsent + " events unsent"))
+      } else if (!ended.get) {
+        c.push(batch)
+      }
+    }
   }
 
-}
\ No newline at end of file
+}
+
+object FileStoreAsync {
+
+  lazy val maxUnsent: Int = play.Play.application().configuration().getInt(
+    "application.events.receiverQueueSize", 1000)
+
+  class SlowReceiverException(message: String) extends Exception(message)
+
+}
@@ -2,19 +2,22 @@ package controllers;
 
 import static helpers.FileStoreHelper.getNameWithExt;
 import static service.filestore.roles.Admin.isAdmin;
-import helpers.ExtractionHelper;
 import helpers.FileStoreHelper;
 import helpers.FileStoreHelper.FileOrFolderException;
+import helpers.ZipHelper;
 import jackrabbit.AorraAccessManager;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemExistsException;
@@ -26,6 +29,7 @@ import models.GroupManager;
 import models.User;
 import models.UserDAO;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.jcrom.Jcrom;
@@ -40,6 +44,7 @@ import play.mvc.Http.MultipartFormData;
 import play.mvc.Result;
 import play.mvc.With;
 import providers.CacheableUserProvider;
+import service.EventManager;
 import service.EventManager.Event;
 import service.JcrSessionFactory;
 import service.filestore.FileStore;
@@ -49,6 +54,7 @@ import service.filestore.FileStoreImpl;
 import service.filestore.FlagStore;
 import service.filestore.FlagStore.FlagType;
 import service.filestore.JsonBuilder;
+import service.filestore.TextExtractor;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -62,33 +68,59 @@ public final class FileStoreController extends SessionAwareController {
 
   private final FileStore fileStoreImpl;
   private final FlagStore flagStoreImpl;
+  private final TextExtractor textExtractor;
 
   @Inject
   public FileStoreController(final JcrSessionFactory sessionFactory,
       final Jcrom jcrom,
       final CacheableUserProvider sessionHandler,
       final FileStore fileStoreImpl,
-      final FlagStore flagStoreImpl) {
+      final FlagStore flagStoreImpl,
+      final TextExtractor textExtractor) {
     super(sessionFactory, jcrom, sessionHandler);
     this.fileStoreImpl = fileStoreImpl;
     this.flagStoreImpl = flagStoreImpl;
+    this.textExtractor = textExtractor;
   }
 
   @SubjectPresent
   public Result index() {
-    return inUserSession(new F.Function<Session, Result>() {
+    return inUserReadSession(new F.Function<Session, Result>() {
       @Override
       public final Result apply(Session session) throws RepositoryException {
         final JsonBuilder jb = new JsonBuilder();
         final FileStore.Manager fm = fileStoreImpl.getManager(session);
         return ok(views.html.FileStoreController.index.render(
             fileStoreImpl.getEventManager().getLastEventId(),
-            jb.toJson(fm.getFolders()),
+            jb.toJsonTree(fm.getTree()),
             getUsersJson(session))).as("text/html; charset=utf-8");
       }
     });
   }
 
+  @SubjectPresent
+  public Result eventStats() {
+    return inUserSession(new F.Function<Session, Result>() {
+      @Override
+      public Result apply(Session session) throws Throwable {
+        final UserDAO dao = getUserDAO(session);
+        if (!isAdmin(session, dao, dao.get(getUser()))) {
+          return forbidden();
+        }
+        final ArrayNode json = JsonNodeFactory.instance.arrayNode();
+        for (EventManager.ReceiverStats rs :
+            fileStoreImpl.getEventManager().getReceiverStats()) {
+          final ObjectNode receiver = json.addObject();
+          receiver.put("receiver", rs.receiver);
+          receiver.put("queued", rs.queued);
+          receiver.put("delivered", rs.delivered);
+          receiver.put("lag", rs.lag);
+        }
+        return ok(json).as("application/json; charset=utf-8");
+      }
+    });
+  }
+
   @SubjectPresent
   public Result mkdir(final String folderId, final String path) {
     return inUserSession(new F.Function<Session, Result>() {
@@ -150,7 +182,7 @@ public final class FileStoreController extends SessionAwareController {
       public final Result apply(Session session) throws RepositoryException {
         final JsonBuilder jb = new JsonBuilder();
         final FileStore.Manager fm = fileStoreImpl.getManager(session);
-        return ok(jb.toJson(fm.getFolders()))
+        return ok(jb.toJsonTree(fm.getTree()))
             .as("application/json; charset=utf-8");
       }
     });
@@ -231,23 +263,28 @@ public final class FileStoreController extends SessionAwareController {
   }
 
   protected Result folderJson(final String folderId) {
-    return folderBasedResult(folderId, new FolderOp() {
-      @Override
-      public final Result apply(Session session, FileStore.Folder f)
-          throws RepositoryException {
-        final JsonBuilder jb = new JsonBuilder();
-        return ok(jb.toJsonShallow(f, false));
-      }
-    });
+    return entryJson(folderId, true);
   }
 
   protected Result fileJson(final String fileId) {
-    return fileBasedResult(fileId, new FileOp() {
+    return entryJson(fileId, false);
+  }
+
+  private Result entryJson(final String fofId, final boolean folder) {
+    return inUserReadSession(new F.Function<Session, Result>() {
       @Override
-      public final Result apply(Session session, FileStore.File f)
-          throws RepositoryException {
+      public final Result apply(Session session) throws RepositoryException {
+        final FileStore.TreeEntry entry =
+            fileStoreImpl.getManager(session).getEntry(fofId);
+        if (entry == null) {
+          return notFoundOfRequestedType();
+        } else if (entry.isFolder() != folder) {
+          return badRequest(fofId+" is not a "+(folder ? "folder" : "file")+".")
+              .as("text/plain");
+        }
         final JsonBuilder jb = new JsonBuilder();
-        return ok(jb.toJsonShallow(f)).as("application/json; charset=utf-8");
+        return ok(jb.toJsonShallow(entry))
+            .as("application/json; charset=utf-8");
       }
     });
   }
@@ -356,11 +393,35 @@ public final class FileStoreController extends SessionAwareController {
       @Override
       public Result apply(Session session, Folder folder)
           throws RepositoryException, IOException {
-        final FileStoreHelper fh = new FileStoreHelper(session);
+        final String userId = session.getUserID();
+        // Written as the client reads it, using a pooled read session
+        final InputStream zip;
+        try {
+          zip = ZipHelper.streamZip("zip of folder "+folderId,
+              new ZipHelper.ZipWriter() {
+            @Override
+            public void write(final ZipArchiveOutputStream zos) {
+              sessionFactory.inReadSession(userId,
+                  new F.Function<Session, Void>() {
+                @Override
+                public Void apply(final Session session) throws Throwable {
+                  final FileStore.Folder f = (FileStore.Folder) fileStoreImpl
+                      .getManager(session).getByIdentifier(folderId);
+                  new FileStoreHelper(session).addFolderToZip(zos, f);
+                  return null;
+                }
+              });
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          return status(SERVICE_UNAVAILABLE, "Too many folder downloads in " +
+              "progress. Please try again later.")
+              .as("text/plain; charset=utf-8");
+        }
         ctx().response().setContentType("application/zip");
         ctx().response().setHeader("Content-Disposition",
             ContentDispositionSupport.attachment(folder.getName()+".zip"));
-        return ok(fh.createZipFile(folder));
+        return ok(zip);
       }
     });
   }
@@ -441,8 +502,14 @@ public final class FileStoreController extends SessionAwareController {
           final FileStore.File file,
           final FileStore.File version)
           throws RepositoryException, IOException {
-        final ExtractionHelper eh = new ExtractionHelper(version);
-        return ok(eh.getPlainText()).as("text/plain; charset=utf-8");
+        final File text;
+        try {
+          text = textExtractor.getText(version);
+        } catch (TextExtractor.ExtractionException e) {
+          return status(SERVICE_UNAVAILABLE, e.getMessage())
+              .as("text/plain; charset=utf-8");
+        }
+        return ok(text).as("text/plain; charset=utf-8");
       }
     });
   }
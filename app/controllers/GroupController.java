@@ -115,6 +115,8 @@ public class GroupController extends SessionAwareController {
           }
         }
         session.save();
+        // Pooled sessions only have the groups they were created with
+        sessionFactory.invalidateReadSessions();
         return ok(groupJson(session, g))
             .as("application/json; charset=utf-8");
       }
@@ -128,6 +130,10 @@ public class GroupController extends SessionAwareController {
       public final Result apply(Session session) throws RepositoryException {
         final GroupManager groupManager = new GroupManager(session);
         groupManager.delete(id);
+        // Save before invalidating, or sessions pooled in between would
+        // still have the deleted group
+        session.save();
+        sessionFactory.invalidateReadSessions();
         return noContent();
       }
     });
@@ -1,5 +1,8 @@
 package controllers;
 
+import html.AssetResolver;
+import html.HttpAssetResolver;
+import html.LocalAssetResolver;
 import html.TempFiles;
 import html.HtmlToPdf;
 import html.HtmlZip;
@@ -16,6 +19,8 @@ import play.mvc.With;
 import providers.CacheableUserProvider;
 import service.JcrSessionFactory;
 import service.filestore.FileStore;
+import charts.builder.ChartBuilder;
+import charts.representations.RenderCache;
 
 import com.google.inject.Inject;
 
@@ -23,12 +28,22 @@ import com.google.inject.Inject;
 public class HtmlController extends SessionAwareController {
 
     private final FileStore fileStore;
+    private final ChartBuilder chartBuilder;
+    private final RenderCache renderCache;
+    private final HtmlToPdf htmlToPdf;
+    private final HtmlZip htmlZip;
 
     @Inject
     public HtmlController(final JcrSessionFactory sessionFactory, final Jcrom jcrom,
-        final CacheableUserProvider sessionHandler, final FileStore fileStore) {
+        final CacheableUserProvider sessionHandler, final FileStore fileStore,
+        final ChartBuilder chartBuilder, final RenderCache renderCache,
+        final HtmlToPdf htmlToPdf, final HtmlZip htmlZip) {
       super(sessionFactory, jcrom, sessionHandler);
       this.fileStore = fileStore;
+      this.chartBuilder = chartBuilder;
+      this.renderCache = renderCache;
+      this.htmlToPdf = htmlToPdf;
+      this.htmlZip = htmlZip;
     }
 
     @SubjectPresent
@@ -42,8 +57,8 @@ public class HtmlController extends SessionAwareController {
     public Result toHtmlZip(final String fileId) {
       String h = html(fileId);
       if(h!=null) {
-        try (TempFiles files = new HtmlZip().toHtmlZip(filename(fileId),
-            h, request().cookie("PLAY_SESSION").value())) {
+        try (TempFiles files = htmlZip.toHtmlZip(filename(fileId),
+            h, assetResolver())) {
           ctx().response().setHeader("Content-Disposition",
               ContentDispositionSupport.attachment(filename(fileId)+".zip"));
           return ok(files.result()).as("application/zip");
@@ -59,11 +74,13 @@ public class HtmlController extends SessionAwareController {
     public Result toPdf(final String fileId, String copts) {
       String h = html(fileId);
       if(h!=null) {
-        try (TempFiles files = new HtmlToPdf().toPdf(filename(fileId),
-            h, request().cookie("PLAY_SESSION").value(), copts)) {
+        try (TempFiles files = htmlToPdf.toPdf(filename(fileId),
+            h, assetResolver(), copts)) {
           ctx().response().setHeader("Content-Disposition",
               ContentDispositionSupport.attachment(filename(fileId)+".pdf"));
           return ok(files.result()).as("application/pdf");
+        } catch(HtmlToPdf.ConversionException e) {
+          return status(SERVICE_UNAVAILABLE, e.getMessage());
         } catch(Exception e) {
           throw new RuntimeException(e);
         }
@@ -72,12 +89,18 @@ public class HtmlController extends SessionAwareController {
       }
     }
 
+    private AssetResolver assetResolver() {
+        return new LocalAssetResolver(sessionFactory, fileStore, chartBuilder,
+            renderCache, getUser().getJackrabbitUserId(),
+            new HttpAssetResolver(request().cookie("PLAY_SESSION").value()));
+    }
+
     private String html(final String fileId) {
         return new XToHtml().toHtml(content(fileId), mimetype(fileId));
     }
 
     private String content(final String fileId) {
-        return inUserSession(new F.Function<Session, String>() {
+        return inUserReadSession(new F.Function<Session, String>() {
             @Override
             public final String apply(Session session) throws Exception {
                 final FileStore.Manager fm = fileStore.getManager(session);
@@ -93,7 +116,7 @@ public class HtmlController extends SessionAwareController {
     }
 
     private String filename(final String fileId) {
-        return inUserSession(new F.Function<Session, String>() {
+        return inUserReadSession(new F.Function<Session, String>() {
             @Override
             public final String apply(Session session) throws Exception {
                 final FileStore.Manager fm = fileStore.getManager(session);
@@ -109,7 +132,7 @@ public class HtmlController extends SessionAwareController {
     }
 
     private String mimetype(final String fileId) {
-        return inUserSession(new F.Function<Session, String>() {
+        return inUserReadSession(new F.Function<Session, String>() {
             @Override
             public final String apply(Session session) throws Exception {
                 final FileStore.Manager fm = fileStore.getManager(session);
@@ -3,17 +3,14 @@ package controllers;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFactory;
+import javax.jcr.Value;
 import javax.jcr.query.InvalidQueryException;
-import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
@@ -27,9 +24,9 @@ import play.mvc.With;
 import providers.CacheableUserProvider;
 import service.JcrSessionFactory;
 import service.filestore.FileStore;
+import service.filestore.FileStoreImpl;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 
@@ -110,7 +107,7 @@ public class Search extends SessionAwareController {
   }
 
   private List<SearchResult> srch(final String q) {
-    return inUserSession(new F.Function<Session, List<SearchResult>>() {
+    return inUserReadSession(new F.Function<Session, List<SearchResult>>() {
       @Override
       public final List<SearchResult> apply(Session session) throws Exception {
         Set<SearchResult> sresults = Sets.newHashSet();
@@ -131,48 +128,35 @@ public class Search extends SessionAwareController {
         return l;
       }
 
+      // Score, excerpt and node all come from the one query. Results only
+      // include nodes the session can read.
       private Set<SearchResult> searchContent(Session session, String q) throws Exception {
         if(StringUtils.isBlank(q)) {
           return Collections.emptySet();
         }
-        Map<String, SearchResult> srMap = Maps.newHashMap();
         Set<SearchResult> result = Sets.newHashSet();
-        ValueFactory vf = session.getValueFactory();
-        QueryManager queryManager = session.getWorkspace().getQueryManager();
-        // How do we get the excerpt with JCR_SQL2?
-        Query query = queryManager.createQuery(
-            "SELECT * FROM [nt:resource] as s WHERE contains(s.*,$query) AND" +
-            " ISDESCENDANTNODE(s, '/filestore')",
-            javax.jcr.query.Query.JCR_SQL2);
-        query.bindValue("query", vf.createValue(q));
-        QueryResult qr = query.execute();
-        RowIterator iter = qr.getRows();
+        RowIterator iter = fulltextQuery(
+            session.getWorkspace().getQueryManager(), q);
         while (iter.hasNext()) {
           Row row = iter.nextRow();
           Node n = row.getNode().getParent().getParent().getParent();
-          SearchResult sr = new SearchResult(n.getIdentifier(), row.getScore(),
-              "content");
-          result.add(sr);
-          srMap.put(row.getNode().getIdentifier(), sr);
-        }
-        iter = fulltextQuery(queryManager, q);
-        while (iter.hasNext()) {
-          Row row = iter.nextRow();
-          SearchResult sr = srMap.get(row.getNode().getIdentifier());
-          if (sr != null) {
-            sr.setExcerpt(row.getValue("rep:excerpt(.)").getString());
-          }
+          Value excerpt = row.getValue("rep:excerpt(.)");
+          result.add(new SearchResult(n.getIdentifier(), row.getScore(),
+              excerpt == null ? null : excerpt.getString(), "content"));
         }
         return result;
       }
 
+      // JCR-SQL2 has no way to select excerpts in Jackrabbit 2
       @SuppressWarnings("deprecation")
       protected RowIterator fulltextQuery(QueryManager queryManager, String q)
           throws RepositoryException, InvalidQueryException {
-        // TODO figure out how to do bindValue with javax.jcr.query.Query.SQL
+        // SQL doesn't support bindValue, so quote the query as a literal
         return queryManager
             .createQuery(
-                "SELECT * FROM nt:resource WHERE contains(.,'" + q + "')",
+                "SELECT * FROM nt:resource WHERE jcr:path LIKE '" +
+                FileStoreImpl.FILE_STORE_PATH + "/%' AND contains(.,'" +
+                StringUtils.replace(q, "'", "''") + "')",
                 javax.jcr.query.Query.SQL).execute().getRows();
       }
 
@@ -182,39 +166,36 @@ public class Search extends SessionAwareController {
         }
         Set<SearchResult> result = Sets.newHashSet();
         FileStore.Manager fm = fileStore.getManager(session);
-        QueryManager queryManager = session.getWorkspace().getQueryManager();
-        Query query = queryManager.createQuery(
-            "SELECT * FROM [nt:unstructured] as file " +
-            "WHERE LOWER(localname()) LIKE $query AND ISDESCENDANTNODE(file, '/filestore')",
-            javax.jcr.query.Query.JCR_SQL2);
-        ValueFactory vf = session.getValueFactory();
-        query.bindValue("query", vf.createValue("%" + StringUtils.lowerCase(q) + "%"));
-        QueryResult qr = query.execute();
-        RowIterator iter = qr.getRows();
-        while (iter.hasNext()) {
-          Row row = iter.nextRow();
-          Node n = row.getNode();
-          FileStore.FileOrFolder fof = fm.getByIdentifier(n.getIdentifier());
-          if(fof!= null) {
-            SearchResult sr = new SearchResult(n.getIdentifier(), row.getScore(),
-                highlight(fof, q), "filename");
-            result.add(sr);
-          }
+        for (FileStore.TreeEntry entry : fm.findByName(q)) {
+          result.add(new SearchResult(entry.getIdentifier(),
+              nameScore(entry.getName(), q), highlight(entry, q), "filename"));
         }
         return result;
       }
 
-      private String highlight(FileStore.FileOrFolder fof, String query) {
-        int start = StringUtils.indexOfIgnoreCase(fof.getName(), query);
+      // The more of the name the query covers, the better the match, and a
+      // match at the start of the name beats one elsewhere. Scores are at
+      // most 1, like those from the full-text index.
+      private double nameScore(String name, String query) {
+        final int start = StringUtils.indexOfIgnoreCase(name, query);
+        if (start == -1) {
+          return 0.0;
+        }
+        final double coverage = (double) query.length() / name.length();
+        return start == 0 ? coverage : coverage / 2;
+      }
+
+      private String highlight(FileStore.TreeEntry entry, String query) {
+        int start = StringUtils.indexOfIgnoreCase(entry.getName(), query);
         if(start == -1) {
-          return fof.getPath();
+          return entry.getPath();
         }
         return StringUtils.join(new String[] {
-            StringUtils.substring(fof.getName(), 0, start),
+            StringUtils.substring(entry.getName(), 0, start),
             "<strong>",
-            StringUtils.substring(fof.getName(), start, start + query.length()),
+            StringUtils.substring(entry.getName(), start, start + query.length()),
             "</strong>",
-            StringUtils.substring(fof.getName(), start + query.length())});
+            StringUtils.substring(entry.getName(), start + query.length())});
       }
     });
   }
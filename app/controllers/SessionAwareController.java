@@ -40,6 +40,15 @@ public abstract class SessionAwareController extends Controller {
     return sessionFactory.inSession(getUser().getJackrabbitUserId(), f);
   }
 
+  /**
+   * Like {@link #inUserSession(F.Function)}, but the session may be reused and
+   * changes are discarded.
+   */
+  protected <A extends Object> A inUserReadSession(
+      final F.Function<Session, A> f) {
+    return sessionFactory.inReadSession(getUser().getJackrabbitUserId(), f);
+  }
+
   private static final SimpleDateFormat httpDateFormat = new SimpleDateFormat(
       "EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
 
@@ -0,0 +1,151 @@
+package graphics;
+
+import java.awt.Font;
+import java.awt.GraphicsEnvironment;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.IOUtils;
+
+import charts.ChartRenderer;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Fonts and text outlines shared by all chart rendering.
+ *
+ * Loading a TrueType font and converting text to glyph outlines are both
+ * relatively expensive, and charts draw the same labels (region names, axis
+ * labels, legends) over and over. Fonts and outlines are immutable, so they
+ * can be shared between threads.
+ */
+public class FontCache {
+
+  private static final String[] CHART_FONTS = new String[] {
+    "LiberationSans-Regular.ttf", "LiberationSans-Bold.ttf"
+  };
+
+  private static volatile boolean registered = false;
+
+  private static final Cache<String, Font> fonts =
+      CacheBuilder.newBuilder().build();
+
+  private static final Cache<OutlineKey, Shape> outlines =
+      CacheBuilder.newBuilder().maximumSize(10000).build();
+
+  private static class OutlineKey {
+    private final Font font;
+    private final FontRenderContext frc;
+    private final String text;
+
+    OutlineKey(Font font, FontRenderContext frc, String text) {
+      this.font = font;
+      this.frc = frc;
+      this.text = text;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof OutlineKey)) {
+        return false;
+      }
+      final OutlineKey k = (OutlineKey) other;
+      return text.equals(k.text) && font.equals(k.font) && frc.equals(k.frc);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(font, frc, text);
+    }
+  }
+
+  private FontCache() {}
+
+  /**
+   * Register the chart fonts with the local graphics environment. Only the
+   * first call does anything.
+   */
+  public static void registerChartFonts() {
+    if (registered) {
+      return;
+    }
+    synchronized (FontCache.class) {
+      if (registered) {
+        return;
+      }
+      final GraphicsEnvironment ge =
+          GraphicsEnvironment.getLocalGraphicsEnvironment();
+      for (String name : CHART_FONTS) {
+        ge.registerFont(chartFont(name));
+      }
+      registered = true;
+    }
+  }
+
+  /**
+   * @param name font file in the same classpath package as the chart renderer
+   */
+  public static Font chartFont(final String name) {
+    return font(ChartRenderer.class.getName() + ":" + name,
+        new Callable<InputStream>() {
+          @Override
+          public InputStream call() throws Exception {
+            return ChartRenderer.class.getResourceAsStream(name);
+          }
+        });
+  }
+
+  /**
+   * Load a TrueType font, unless one has already been loaded for the key.
+   *
+   * @param key uniquely identifies the font source
+   * @param source opens the font file if it isn't cached
+   */
+  public static Font font(String key, final Callable<InputStream> source) {
+    try {
+      return fonts.get(key, new Callable<Font>() {
+        @Override
+        public Font call() throws Exception {
+          final InputStream in = source.call();
+          if (in == null) {
+            throw new Exception("font source not found");
+          }
+          try {
+            return Font.createFont(Font.TRUETYPE_FONT, in);
+          } finally {
+            IOUtils.closeQuietly(in);
+          }
+        }
+      });
+    } catch (ExecutionException e) {
+      throw new RuntimeException(
+          String.format("failed to load font %s", key), e.getCause());
+    }
+  }
+
+  /**
+   * Get the outline of the text at the origin, as per
+   * {@link java.awt.font.GlyphVector#getOutline()}. The returned shape is
+   * shared, so transform copies of it rather than modifying it.
+   */
+  public static Shape outline(final Font font, final FontRenderContext frc,
+      final String text) {
+    try {
+      return outlines.get(new OutlineKey(font, frc, text),
+          new Callable<Shape>() {
+            @Override
+            public Shape call() {
+              return font.createGlyphVector(frc, text).getOutline();
+            }
+          });
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+}
@@ -0,0 +1,19 @@
+package graphics;
+
+import play.Application;
+import play.Plugin;
+
+/**
+ * Loads and registers chart fonts at startup, rather than on first render.
+ */
+public class FontPlugin extends Plugin {
+
+  public FontPlugin(Application application) {
+  }
+
+  @Override
+  public void onStart() {
+    FontCache.registerChartFonts();
+  }
+
+}
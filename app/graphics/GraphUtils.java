@@ -11,7 +11,6 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.font.FontRenderContext;
-import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
 import java.awt.geom.Ellipse2D;
@@ -190,8 +189,7 @@ public class GraphUtils {
         FontRenderContext frc = g.getFontRenderContext();
         FontMetrics fm = g.getFontMetrics();
         for(int i = 0; i < ch.length; i++) {
-            GlyphVector gv = font.createGlyphVector(frc, Character.toString(ch[i]));
-            Shape glyph = gv.getGlyphOutline(0);
+            Shape glyph = FontCache.outline(font, frc, Character.toString(ch[i]));
             double posY = -radius;
             if(anchor.equals(TextAnchor.CENTER)) {
                 posY+=getCapHeight()/2;
@@ -230,16 +228,16 @@ public class GraphUtils {
     public double getCapHeight() {
         Font font = g.getFont();
         FontRenderContext frc = g.getFontRenderContext();
-        GlyphVector gv = font.createGlyphVector(frc, "A");
-        Shape glyph = gv.getGlyphOutline(0);
+        Shape glyph = FontCache.outline(font, frc, "A");
         Rectangle2D rec = glyph.getBounds2D();
         return rec.getHeight();
     }
 
     public double getTextHeight(Font font, String text) {
         FontRenderContext frc = g.getFontRenderContext();
-        GlyphVector gv = font.createGlyphVector(frc, text);
-        Shape glyph = gv.getGlyphOutline(0);
+        // Height of the first glyph
+        Shape glyph = FontCache.outline(font, frc,
+                text.substring(0, text.offsetByCodePoints(0, 1)));
         Rectangle2D rec = glyph.getBounds2D();
         return rec.getHeight();
     }
@@ -303,8 +301,7 @@ public class GraphUtils {
     public Rectangle2D getBounds(String s) {
         Font font = g.getFont();
         FontRenderContext frc = g.getFontRenderContext();
-        GlyphVector gv = font.createGlyphVector(frc, s);
-        return gv.getVisualBounds();
+        return FontCache.outline(font, frc, s).getBounds2D();
     }
 
     private Graphics2DHelper newGraphics2D(Graphics2D src, int width, int height) {
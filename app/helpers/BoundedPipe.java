@@ -0,0 +1,170 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipe between a writing thread and a reading thread, holding at most a fixed
+ * number of chunks. The writer blocks while the pipe is full, so it only
+ * produces data as fast as the reader consumes it.
+ *
+ * Unlike {@link java.io.PipedInputStream}, a writer whose reader has gone
+ * away (eg. a client disconnecting) gives up after a timeout rather than
+ * blocking indefinitely.
+ */
+class BoundedPipe {
+
+  private static final byte[] EOF = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks;
+  private final int chunkSize;
+  private final long timeout;
+
+  private volatile boolean readerClosed = false;
+  private volatile IOException writerError = null;
+
+  private final OutputStream out = new OutputStream() {
+    private byte[] buffer = null;
+    private int count = 0;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (buffer == null) {
+          buffer = new byte[chunkSize];
+        }
+        final int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+        if (count == buffer.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (count > 0) {
+        final byte[] chunk = count == buffer.length ?
+            buffer : Arrays.copyOf(buffer, count);
+        buffer = null;
+        count = 0;
+        put(chunk);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      put(EOF);
+    }
+  };
+
+  private final InputStream in = new InputStream() {
+    private byte[] chunk = null;
+    private int pos = 0;
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (chunk == null || pos == chunk.length) {
+        if (chunk == EOF) {
+          return -1;
+        }
+        try {
+          chunk = chunks.take();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        pos = 0;
+        if (chunk == EOF) {
+          if (writerError != null) {
+            throw writerError;
+          }
+          return -1;
+        }
+      }
+      final int n = Math.min(len, chunk.length - pos);
+      System.arraycopy(chunk, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return chunk == null ? 0 : chunk.length - pos;
+    }
+
+    @Override
+    public void close() {
+      readerClosed = true;
+      chunks.clear();
+    }
+  };
+
+  /**
+   * @param chunks maximum number of chunks held in the pipe
+   * @param chunkSize bytes per chunk
+   * @param timeout milliseconds the writer waits for space before failing
+   */
+  BoundedPipe(int chunks, int chunkSize, long timeout) {
+    this.chunks = new ArrayBlockingQueue<byte[]>(chunks);
+    this.chunkSize = chunkSize;
+    this.timeout = timeout;
+  }
+
+  OutputStream getOutputStream() {
+    return out;
+  }
+
+  InputStream getInputStream() {
+    return in;
+  }
+
+  /**
+   * End the stream with an error, which the reader will receive once it has
+   * read everything already written.
+   */
+  void fail(IOException e) {
+    writerError = e;
+    try {
+      put(EOF);
+    } catch (IOException ignored) {
+      // Reader has gone anyway
+    }
+  }
+
+  private void put(byte[] chunk) throws IOException {
+    try {
+      if (readerClosed) {
+        throw new IOException("Pipe closed by reader");
+      }
+      if (!chunks.offer(chunk, timeout, TimeUnit.MILLISECONDS)) {
+        throw new IOException("Timed out waiting for pipe reader");
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+}
@@ -1,7 +1,9 @@
 package helpers;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringWriter;
+import java.io.Writer;
 
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
@@ -11,7 +13,9 @@ import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -24,6 +28,9 @@ import service.filestore.FileStore;
 
 public class ExtractionHelper {
 
+  // Parsers are thread-safe, and expensive to create
+  private static final Parser PARSER = new AutoDetectParser();
+
   private final FileStore.File file;
 
   public ExtractionHelper(FileStore.File file) {
@@ -52,31 +59,62 @@ public class ExtractionHelper {
 
   public String getPlainText() {
     final StringWriter sw = new StringWriter();
-    parse(new BodyContentHandler(sw) {
-      @Override
-      public void startElement(String uri, String localName, String name,
-          Attributes atts) throws SAXException {
-        if ("img".equals(localName)) {
-          final String alt = atts.getValue("alt").isEmpty()
-              ? "image"
-              : atts.getValue("alt");
-          sw.write("\n!["+alt+"]("+atts.getValue("src")+")\n");
+    writePlainText(sw, -1);
+    return sw.toString();
+  }
+
+  /**
+   * Write plain text to the writer, stopping after maxChars characters.
+   *
+   * @param maxChars character limit, or -1 for no limit
+   */
+  public void writePlainText(final Writer w, int maxChars) {
+    writePlainText(file.getData(), w, maxChars);
+  }
+
+  /**
+   * Write plain text from the document data to the writer, stopping after
+   * maxChars characters. The data isn't closed.
+   *
+   * @param maxChars character limit, or -1 for no limit
+   */
+  public static void writePlainText(final InputStream data, final Writer w,
+      int maxChars) {
+    final WriteOutContentHandler out = new WriteOutContentHandler(w, maxChars);
+    try {
+      parse(data, new BodyContentHandler(out) {
+        @Override
+        public void startElement(String uri, String localName, String name,
+            Attributes atts) throws SAXException {
+          if ("img".equals(localName)) {
+            final String alt = atts.getValue("alt").isEmpty()
+                ? "image"
+                : atts.getValue("alt");
+            final char[] image =
+                ("\n!["+alt+"]("+atts.getValue("src")+")\n").toCharArray();
+            // Goes through the handler, so counts towards the limit
+            super.characters(image, 0, image.length);
+          }
+          super.startElement(uri, localName, name, atts);
         }
-        super.startElement(uri, localName, name, atts);
+      });
+    } catch (RuntimeException e) {
+      // Truncated text is fine
+      if (!out.isWriteLimitReached(e.getCause())) {
+        throw e;
       }
-    });
-    return sw.toString();
+    }
   }
 
   public Metadata getMetadata() {
-    return parse(new DefaultHandler())._2();
+    return parse(file.getData(), new DefaultHandler())._2();
   }
 
-  private Tuple2<ContentHandler,Metadata> parse(ContentHandler handler) {
+  private static Tuple2<ContentHandler,Metadata> parse(InputStream data,
+      ContentHandler handler) {
     final Metadata metadata = new Metadata();
-    final AutoDetectParser parser = new AutoDetectParser();
     try {
-      parser.parse(file.getData(), handler, metadata, new ParseContext());
+      PARSER.parse(data, handler, metadata, new ParseContext());
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (SAXException e) {
@@ -4,7 +4,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
@@ -16,8 +15,10 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -47,6 +48,7 @@ import charts.builder.spreadsheet.XlsxDataSource;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 
 public class FileStoreHelper {
@@ -57,6 +59,18 @@ public class FileStoreHelper {
   public static final String XLS_MIME_TYPE =
       "application/vnd.ms-excel";
 
+  // Formats which are already compressed, so won't shrink in a zip
+  private static final Set<String> COMPRESSED_MIME_TYPES = ImmutableSet.of(
+      XLSX_MIME_TYPE,
+      "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+      "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+      "application/zip",
+      "application/x-gzip",
+      "application/pdf",
+      "image/png",
+      "image/jpeg",
+      "image/gif");
+
   public abstract static class FileOrFolderException extends Exception {
     private static final long serialVersionUID = 1L;
     public FileOrFolderException(String msg) { super(msg); }
@@ -127,22 +141,6 @@ public class FileStoreHelper {
     return folder;
   }
 
-  public InputStream createZipFile(final FileStore.Folder folder)
-      throws IOException, RepositoryException {
-    final File tempFile = File.createTempFile("zipfile", "");
-    final ZipArchiveOutputStream zos =
-        ZipHelper.setupZipOutputStream(new FileOutputStream(tempFile));
-    addFolderToZip(zos, folder, folder);
-    zos.close();
-    return new FileInputStream(tempFile) {
-      @Override
-      public void close() throws IOException {
-        super.close();
-        tempFile.delete();
-      }
-    };
-  }
-
   /**
    * Get string to strip from the beginning of all zip paths, using the
    * speficied base folder.
@@ -166,6 +164,14 @@ public class FileStoreHelper {
     }
   }
 
+  /**
+   * Write the folder and everything inside it to the zip.
+   */
+  public void addFolderToZip(final ZipArchiveOutputStream zos,
+      final FileStore.Folder folder) throws IOException, RepositoryException {
+    addFolderToZip(zos, folder, folder);
+  }
+
   protected void addFolderToZip(final ZipArchiveOutputStream zos,
       final FileStore.Folder folder,
       final FileStore.Folder baseFolder)
@@ -182,10 +188,18 @@ public class FileStoreHelper {
   protected void addToZip(final ZipArchiveOutputStream zos,
       String filename, String mimeType,
       InputStream data) throws IOException {
+    // Recompressing compressed data just costs CPU. The zip isn't seekable
+    // when streamed, so STORED entries would need their CRC before their
+    // data; deflating without compression avoids reading the data twice.
+    zos.setLevel(COMPRESSED_MIME_TYPES.contains(mimeType) ?
+        Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
     zos.putArchiveEntry(new ZipArchiveEntry(getNameWithExt(filename, mimeType)));
-    IOUtils.copy(data, zos);
+    try {
+      IOUtils.copy(data, zos);
+    } finally {
+      data.close();
+    }
     zos.closeArchiveEntry();
-    data.close();
   }
 
   public static String getNameWithExt(String filename, String mimeType) {
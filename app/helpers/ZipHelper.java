@@ -1,12 +1,91 @@
 package helpers;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 
+import play.Logger;
+import play.Play;
+
 public class ZipHelper {
 
+  // Up to 1MB buffered between the zip writer and the response
+  private static final int PIPE_CHUNKS = 16;
+  private static final int PIPE_CHUNK_SIZE = 64 * 1024;
+  // Give up if the client stops reading for this long
+  private static final long PIPE_TIMEOUT = 60 * 1000L;
+
+  private static ThreadPoolExecutor writers;
+
+  public static interface ZipWriter {
+    void write(ZipArchiveOutputStream zos) throws Exception;
+  }
+
+  /**
+   * Write a zip archive on another thread, returning a stream of it. The
+   * writer only runs as far ahead of the reader as a small buffer allows, so
+   * nothing is written to disk and the first bytes are available immediately.
+   *
+   * Writers run on a fixed pool, and archives beyond it are turned away
+   * rather than left waiting with a client connected.
+   *
+   * @param name archive name, for diagnostics
+   * @param writer writes zip entries
+   * @return the zip data, which will end in an IOException if writing fails
+   * @throws RejectedExecutionException if all writers are busy
+   */
+  public static InputStream streamZip(final String name,
+      final ZipWriter writer) {
+    final BoundedPipe pipe =
+        new BoundedPipe(PIPE_CHUNKS, PIPE_CHUNK_SIZE, PIPE_TIMEOUT);
+    writers().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final ZipArchiveOutputStream zos =
+              setupZipOutputStream(pipe.getOutputStream());
+          writer.write(zos);
+          zos.close();
+        } catch (Exception e) {
+          Logger.warn("Failed writing "+name, e);
+          pipe.fail(e instanceof IOException ?
+              (IOException) e : new IOException(e));
+        }
+      }
+    });
+    return pipe.getInputStream();
+  }
+
+  private static synchronized ThreadPoolExecutor writers() {
+    if (writers == null) {
+      final int threads = Play.application().configuration()
+          .getInt("application.zip.writers", 4);
+      // No queue, as a queued archive would leave its client waiting
+      writers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread t =
+              new Thread(r, "zip writer " + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      writers.allowCoreThreadTimeOut(true);
+    }
+    return writers;
+  }
+
   public static ZipArchiveOutputStream setupZipOutputStream(final OutputStream o) {
     // ZipArchiveOutputStream writes 0 length byte arrays occasionally
     // which terminates the chunked transfer (see ArchiveAsync) so ignore the empty arrays
@@ -0,0 +1,28 @@
+package html;
+
+import java.io.File;
+
+/**
+ * Fetches images and stylesheets referenced from exported HTML.
+ */
+public interface AssetResolver {
+
+    /**
+     * Save the asset at the URL to the file. Must be safe to call from
+     * several threads at once.
+     *
+     * @return false if the asset couldn't be fetched
+     */
+    boolean download(String src, File destination);
+
+    /**
+     * Identify the asset's current content without fetching it, so exports
+     * can be found in a cache before any assets are downloaded.
+     *
+     * @return a key which changes whenever what {@link #download} would save
+     *         changes (including whether it can be fetched at all), or null
+     *         if only downloading the asset can tell
+     */
+    String digest(String src);
+
+}
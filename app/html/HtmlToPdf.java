@@ -1,82 +1,294 @@
 package html;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
+import play.Logger;
+
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
+/**
+ * Converts HTML to PDF on a fixed pool of workers, and keeps the results on
+ * disk.
+ *
+ * PDFs are keyed by a digest of the HTML, its assets and the converter
+ * options, so an unchanged document is only converted once, and concurrent
+ * requests for the same PDF share a single conversion. Assets are identified
+ * by the resolver where it can, so cached PDFs are served without
+ * downloading anything. Jobs beyond the
+ * queue are turned away rather than piling up, and conversions are stopped
+ * when the request waiting for them gives up.
+ */
 public class HtmlToPdf {
 
-    private static final String CMD_WEASYPRINT = "weasyprint";
+    private static final String SUFFIX = ".pdf";
 
-    public TempFiles toPdf(String name, String html, String playSession, String copts) {
-        String filename = FilenameUtils.removeExtension(name)+".html";
-        File htmlFile = new HtmlZip().toFolder(Files.createTempDir(), filename, html, playSession);
-        File pdfFile = pdf(htmlFile, copts);
-        return new TempFiles(pdfFile, pdfFile.getParentFile(), htmlFile.getParentFile());
+    public static class ConversionException extends Exception {
+        public ConversionException(String message) {
+            super(message);
+        }
+        private static final long serialVersionUID = 1L;
     }
 
-    private File pdf(File in, String copts) {
+    private final PdfConverter converter;
+    private final HtmlZip htmlZip;
+    private final File directory;
+    private final int maxEntries;
+    private final long timeout;
+    private final ThreadPoolExecutor executor;
+
+    // Digest -> conversion in progress
+    private final ConcurrentMap<String, Future<File>> inFlight =
+            new ConcurrentHashMap<String, Future<File>>();
+
+    /**
+     * @param maxEntries number of PDFs to keep
+     * @param threads conversions run at once
+     * @param queueSize conversions waiting for a worker
+     * @param timeout milliseconds to wait for a PDF, including time queued
+     */
+    public HtmlToPdf(PdfConverter converter, HtmlZip htmlZip, File directory,
+            int maxEntries, int threads, int queueSize, long timeout) {
+        this.converter = converter;
+        this.htmlZip = htmlZip;
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.timeout = timeout;
         try {
-            File destfolder = Files.createTempDir();
-            File out = new File(destfolder, FilenameUtils.removeExtension(in.getName())+".pdf");
-            ProcessBuilder pb = converter(copts, in, out);
-            pb.directory(in.getParentFile());
-            File log = new File(destfolder, "converter.log");
-            pb.redirectErrorStream(true);
-            pb.redirectOutput(Redirect.to(log));
-            Process p = pb.start();
-            // TODO do not wait forever
-            int es = p.waitFor();
-            if(out.exists()) {
-                return out;
-            } else {
-                String msg = "pdf creation failed with exit status "+es;
-                if(log.exists()) {
-                    throw new RuntimeException(msg+"\n"+FileUtils.readFileToString(log)+
-                            "\nfrom "+log.getAbsolutePath());
-                } else {
-                    throw new RuntimeException(msg+" "+destfolder.getAbsolutePath());
-                }
+            FileUtils.forceMkdir(directory);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r,
+                        "pdf converter " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return conversions waiting for a worker
+     */
+    int queued() {
+        return executor.getQueue().size();
+    }
+
+    public TempFiles toPdf(final String name, String html,
+            AssetResolver resolver, final String copts) throws ConversionException {
+        final String key = key(html, resolver, copts);
+        if(key != null) {
+            final File pdf = new File(directory, key + SUFFIX);
+            if(pdf.exists()) {
+                // Keep recently used PDFs from being pruned
+                pdf.setLastModified(System.currentTimeMillis());
+                return TempFiles.keep(pdf);
+            }
+            final Future<File> running = inFlight.get(key);
+            if(running != null) {
+                return await(running, name);
             }
-        } catch(Exception e) {
-            throw new RuntimeException(String.format("failed to create pdf from %s",in.getName()),e);
         }
+        final File folder = Files.createTempDir();
+        final File htmlFile;
+        final String digest;
+        try {
+            htmlFile = htmlZip.toFolder(folder,
+                    FilenameUtils.removeExtension(name)+".html", html, resolver);
+            digest = key != null ? key : digest(folder, copts);
+        } catch(RuntimeException e) {
+            FileUtils.deleteQuietly(folder);
+            throw e;
+        }
+        final File pdf = new File(directory, digest + SUFFIX);
+        if(pdf.exists()) {
+            FileUtils.deleteQuietly(folder);
+            // Keep recently used PDFs from being pruned
+            pdf.setLastModified(System.currentTimeMillis());
+            return TempFiles.keep(pdf);
+        }
+        final FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return convert(htmlFile, pdf, options(copts));
+            }
+        }) {
+            @Override
+            protected void done() {
+                // Also called when cancelled before a worker picked it up
+                inFlight.remove(digest, this);
+                FileUtils.deleteQuietly(folder);
+            }
+        };
+        final Future<File> existing = inFlight.putIfAbsent(digest, task);
+        final Future<File> future = existing == null ? task : existing;
+        if(existing == null) {
+            try {
+                executor.execute(task);
+            } catch(RejectedExecutionException e) {
+                task.cancel(false);
+                throw new ConversionException("Too many documents waiting for " +
+                        "PDF conversion. Please try again later.");
+            }
+        } else {
+            // Converted from another request's copy
+            FileUtils.deleteQuietly(folder);
+        }
+        return await(future, name);
     }
 
-    private ProcessBuilder converter(String copts, File in, File out) throws IOException {
-        File css = new File(in.getParentFile(), "print.css");
-        FileUtils.copyInputStreamToFile(this.getClass().getResourceAsStream("weasyprint.css"), css);
-        return new ProcessBuilder(cmd(CMD_WEASYPRINT, "--stylesheet", css.getAbsolutePath(),
-                options(copts), in.getName(), out.getAbsolutePath()));
+    private TempFiles await(Future<File> future, String name)
+            throws ConversionException {
+        try {
+            return TempFiles.keep(future.get(timeout, TimeUnit.MILLISECONDS));
+        } catch(TimeoutException e) {
+            // Interrupting the worker stops the converter
+            future.cancel(true);
+            throw new ConversionException("PDF conversion took too long.");
+        } catch(CancellationException e) {
+            // Another request gave up waiting
+            throw new ConversionException("PDF conversion took too long.");
+        } catch(ExecutionException e) {
+            throw new RuntimeException(String.format(
+                    "failed to create pdf from %s", name), e.getCause());
+        } catch(InterruptedException e) {
+            throw new ConversionException("Interrupted.");
+        }
     }
 
-    private List<String> cmd(Object... params) {
-        List<String> cmd = Lists.newArrayList();
-        for(Object o : params) {
-            if(o instanceof String) {
-                cmd.add((String)o);
-            } else if(o instanceof List<?>) {
-                for(Object o2 : (List<?>)o) {
-                    if(o2 instanceof String) {
-                        cmd.add((String)o2);
-                    } else {
-                        throw new RuntimeException();
-                    }
-                }
-            } else {
-                throw new RuntimeException();
+    private File convert(File htmlFile, File pdf, List<String> options)
+            throws Exception {
+        final long started = System.currentTimeMillis();
+        // Converters may go by the extension, so keep the name
+        final File work = java.nio.file.Files.createTempDirectory(
+                directory.toPath(), "convert").toFile();
+        try {
+            final File tempFile = new File(work, pdf.getName());
+            converter.convert(htmlFile, tempFile, options);
+            if(!tempFile.renameTo(pdf)) {
+                throw new IOException("Unable to store PDF as " + pdf);
+            }
+        } finally {
+            FileUtils.deleteQuietly(work);
+        }
+        Logger.debug(String.format("Converted %s to %s in %dms",
+                htmlFile.getName(), pdf.getName(),
+                System.currentTimeMillis() - started));
+        prune();
+        return pdf;
+    }
+
+    /*
+     * Digest the HTML (which comes from a particular version of the source
+     * file) and what the resolver says about each asset, so a PDF can be
+     * found without downloading them. Null if some asset can only be
+     * identified by downloading it.
+     */
+    private String key(String html, AssetResolver resolver, String copts) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putBytes(converter.getClass().getName().getBytes(Charsets.UTF_8));
+        hasher.putBytes(copts.getBytes(Charsets.UTF_8));
+        hasher.putBytes(html.getBytes(Charsets.UTF_8));
+        for(String src : htmlZip.assets(html)) {
+            final String digest = resolver.digest(src);
+            if(digest == null) {
+                return null;
+            }
+            hasher.putBytes(src.getBytes(Charsets.UTF_8));
+            hasher.putBytes(digest.getBytes(Charsets.UTF_8));
+        }
+        return hasher.hash().toString();
+    }
+
+    /*
+     * Digest everything the converter will read, so changed assets give a
+     * new PDF even if the HTML is the same.
+     */
+    private String digest(File folder, String copts) {
+        try {
+            final Hasher hasher = Hashing.sha256().newHasher();
+            hasher.putBytes(converter.getClass().getName().getBytes(Charsets.UTF_8));
+            hasher.putBytes(copts.getBytes(Charsets.UTF_8));
+            for(String f : files(folder, "")) {
+                hasher.putBytes(f.getBytes(Charsets.UTF_8));
+                hasher.putBytes(Files.toByteArray(new File(folder, f)));
+            }
+            return hasher.hash().toString();
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<String> files(File folder, String base) {
+        final File[] children = folder.listFiles();
+        Arrays.sort(children);
+        final List<String> files = Lists.newArrayList();
+        for(File f : children) {
+            if(f.isFile()) {
+                files.add(base+f.getName());
+            } else if(f.isDirectory()) {
+                files.addAll(files(f, base+f.getName()+"/"));
+            }
+        }
+        return files;
+    }
+
+    /*
+     * Delete the least recently used PDFs once there are too many.
+     */
+    private synchronized void prune() {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if(files == null || files.length <= maxEntries) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
             }
+        });
+        for(int i = 0; i < files.length - maxEntries; i++) {
+            files[i].delete();
         }
-        return cmd;
     }
 
     private List<String> options(String copts) {
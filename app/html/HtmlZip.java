@@ -6,21 +6,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
-import org.apache.commons.httpclient.Cookie;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpState;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.tika.io.IOUtils;
@@ -36,18 +37,52 @@ public class HtmlZip {
   private static final Pattern CSS_PATTERN =
       Pattern.compile("(<link.+?href=\")(.+?\\.css)(\".*?>)");
 
-    public TempFiles toHtmlZip(String name, String html, String playSession) {
+    private final ExecutorService downloadPool;
+
+    /**
+     * @param downloadPool fetches assets. It should be shared by all exports,
+     *                     so a large document can't start an unbounded
+     *                     number of downloads.
+     */
+    public HtmlZip(ExecutorService downloadPool) {
+        this.downloadPool = downloadPool;
+    }
+
+    public static ExecutorService newDownloadPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r,
+                        "html asset downloader " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public TempFiles toHtmlZip(String name, String html, AssetResolver resolver) {
         File destination = Files.createTempDir();
         toFolder(destination,
-                FilenameUtils.removeExtension(name)+".html", html, playSession);
+                FilenameUtils.removeExtension(name)+".html", html, resolver);
         File zipFile = zip(destination, name);
         return new TempFiles(zipFile, zipFile.getParentFile(), destination);
     }
 
-    public File toFolder(File destination, String name, String html, String playSession) {
+    /**
+     * @return the distinct image and stylesheet URLs the HTML refers to
+     */
+    public List<String> assets(String html) {
+        final Map<String, String> srcMap = Maps.newLinkedHashMap();
+        collect(html, IMG_PATTERN, "img", srcMap);
+        collect(html, CSS_PATTERN, "css", srcMap);
+        return Lists.newArrayList(srcMap.keySet());
+    }
+
+    public File toFolder(File destination, String name, String html, AssetResolver resolver) {
         try {
-            html = download(html, destination, IMG_PATTERN, "img", playSession);
-            html = download(html, destination, CSS_PATTERN, "css", playSession);
+            html = download(html, destination, resolver);
             File f = new File(destination, name);
             FileUtils.write(f, html);
             return f;
@@ -86,66 +121,75 @@ public class HtmlZip {
         return files;
     }
 
-    private String download(String html, File destination, Pattern p,
-        String prefix, String playSession) throws IOException {
-      Map<String, String> srcMap = Maps.newHashMap();
-      int fc = 0;
-      Matcher m = p.matcher(html);
-      StringBuffer result = new StringBuffer();
-      while(m.find()) {
-          String href = m.group(2);
-          String localPath;
-          if(!srcMap.containsKey(href)) {
-              localPath = String.format("files/%s%s_%s",
-                      prefix, Integer.toString(fc++), getFilename(href));
-              srcMap.put(href, localPath);
-              download(href, localPath, destination, playSession);
-          } else {
-              localPath = srcMap.get(href);
-          }
-          m.appendReplacement(result, String.format("$1%s$3", localPath));
-      }
-      m.appendTail(result);
-      return result.toString();
-  }
-
-    private boolean download(String src, String local, File destination, String playSession) {
-        try {
-            HttpClient client = new HttpClient();
-            client.getHttpConnectionManager().getParams().setConnectionTimeout(5000);
-            URI u = new URI(src);
-            String url;
-            if(u.isAbsolute()) {
-                url = u.toString();
-            } else {
-                url = "http://localhost:9000" + u.toString();
-                HttpState state = new HttpState();
-                Cookie session = new Cookie("localhost", "PLAY_SESSION",
-                        playSession, "/", -1, false);
-                state.addCookie(session);
-                client.setState(state);
+    /*
+     * Download every distinct asset in parallel, then point the HTML at the
+     * local copies. Assets which can't be fetched keep their original URL.
+     */
+    private String download(String html, File destination,
+            AssetResolver resolver) throws IOException {
+        final Map<String, String> srcMap = Maps.newLinkedHashMap();
+        collect(html, IMG_PATTERN, "img", srcMap);
+        collect(html, CSS_PATTERN, "css", srcMap);
+        final Map<String, Future<Boolean>> downloads = Maps.newHashMap();
+        for(Map.Entry<String, String> me : srcMap.entrySet()) {
+            downloads.put(me.getKey(), submit(resolver, me.getKey(),
+                    new File(destination, me.getValue())));
+        }
+        for(Map.Entry<String, Future<Boolean>> me : downloads.entrySet()) {
+            try {
+                if(!me.getValue().get()) {
+                    srcMap.remove(me.getKey());
+                }
+            } catch(InterruptedException e) {
+                for(Future<Boolean> f : downloads.values()) {
+                    f.cancel(true);
+                }
+                throw new IOException(e);
+            } catch(ExecutionException e) {
+                srcMap.remove(me.getKey());
             }
-            HttpMethod method = new GetMethod(url);
-            method.setFollowRedirects(true);
-            client.executeMethod(method);
-            if(method.getStatusCode() == 200) {
-                InputStream in = method.getResponseBodyAsStream();
-                File f = new File(destination, local);
-                f.getParentFile().mkdirs();
-                FileOutputStream out = new FileOutputStream(new File(destination, local));
-                IOUtils.copy(in, out);
-                IOUtils.closeQuietly(out);
-                method.releaseConnection();
-                return true;
-            } else {
-                method.releaseConnection();
-                return false;
+        }
+        html = rewrite(html, IMG_PATTERN, srcMap);
+        return rewrite(html, CSS_PATTERN, srcMap);
+    }
+
+    private void collect(String html, Pattern p, String prefix,
+            Map<String, String> srcMap) {
+        int fc = 0;
+        Matcher m = p.matcher(html);
+        while(m.find()) {
+            String href = m.group(2);
+            if(!srcMap.containsKey(href)) {
+                srcMap.put(href, String.format("files/%s%s_%s",
+                        prefix, Integer.toString(fc++), getFilename(href)));
             }
-        } catch(Exception e) {
-            return false;
         }
     }
 
+    private String rewrite(String html, Pattern p, Map<String, String> srcMap) {
+        Matcher m = p.matcher(html);
+        StringBuffer result = new StringBuffer();
+        while(m.find()) {
+            String localPath = srcMap.get(m.group(2));
+            m.appendReplacement(result, Matcher.quoteReplacement(
+                    m.group(1) + (localPath != null ? localPath : m.group(2)) +
+                    m.group(3)));
+        }
+        m.appendTail(result);
+        return result.toString();
+    }
+
+    private Future<Boolean> submit(final AssetResolver resolver,
+            final String src, final File local) {
+        return downloadPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                local.getParentFile().mkdirs();
+                return resolver.download(src, local);
+            }
+        });
+    }
+
     private String getFilename(String src) {
         try {
             URI u = new URI(src);
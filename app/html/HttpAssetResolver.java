@@ -0,0 +1,70 @@
+package html;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.tika.io.IOUtils;
+
+/**
+ * Fetches assets over HTTP. Relative URLs are requested from this
+ * application, as the user with the given Play session.
+ */
+public class HttpAssetResolver implements AssetResolver {
+
+    private final String playSession;
+
+    public HttpAssetResolver(String playSession) {
+        this.playSession = playSession;
+    }
+
+    @Override
+    public boolean download(String src, File destination) {
+        try {
+            HttpClient client = new HttpClient();
+            client.getHttpConnectionManager().getParams().setConnectionTimeout(5000);
+            URI u = new URI(src);
+            String url;
+            if(u.isAbsolute()) {
+                url = u.toString();
+            } else {
+                url = "http://localhost:9000" + u.toString();
+                HttpState state = new HttpState();
+                Cookie session = new Cookie("localhost", "PLAY_SESSION",
+                        playSession, "/", -1, false);
+                state.addCookie(session);
+                client.setState(state);
+            }
+            HttpMethod method = new GetMethod(url);
+            method.setFollowRedirects(true);
+            client.executeMethod(method);
+            if(method.getStatusCode() == 200) {
+                InputStream in = method.getResponseBodyAsStream();
+                destination.getParentFile().mkdirs();
+                FileOutputStream out = new FileOutputStream(destination);
+                IOUtils.copy(in, out);
+                IOUtils.closeQuietly(out);
+                method.releaseConnection();
+                return true;
+            } else {
+                method.releaseConnection();
+                return false;
+            }
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String digest(String src) {
+        // Nothing to go by but the response
+        return null;
+    }
+
+}
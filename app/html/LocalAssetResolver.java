@@ -0,0 +1,304 @@
+package html;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import play.Logger;
+import play.Play;
+import play.libs.F;
+import service.JcrSessionFactory;
+import service.filestore.FileStore;
+import charts.Chart;
+import charts.ChartType;
+import charts.builder.ChartBuilder;
+import charts.representations.Format;
+import charts.representations.RenderCache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Resolves this application's own URLs without going through HTTP: chart
+ * images are rendered (or taken from the render cache), file versions are
+ * read from the file store, and assets come from the classpath. Access is
+ * checked with the user's session, as the controllers would.
+ *
+ * Other URLs are fetched over HTTP.
+ */
+public class LocalAssetResolver implements AssetResolver {
+
+    private static final Pattern ASSET =
+            Pattern.compile("^/assets/(.+)$");
+    private static final Pattern CHART =
+            Pattern.compile("^/file/([^/]+)/charts/([^/.]+)\\.([^/.]+)$");
+    private static final Pattern VERSION =
+            Pattern.compile("^/file/([^/]+)/versions/([^/]+)$");
+
+    // Digest of assets which can't be fetched
+    private static final String UNAVAILABLE = "unavailable";
+
+    private final JcrSessionFactory sessionFactory;
+    private final FileStore fileStore;
+    private final ChartBuilder chartBuilder;
+    private final RenderCache renderCache;
+    private final String userId;
+    private final AssetResolver fallback;
+
+    /**
+     * @param userId Jackrabbit user ID to check access with
+     * @param fallback resolver for URLs which aren't handled locally
+     */
+    public LocalAssetResolver(JcrSessionFactory sessionFactory,
+            FileStore fileStore, ChartBuilder chartBuilder,
+            RenderCache renderCache, String userId, AssetResolver fallback) {
+        this.sessionFactory = sessionFactory;
+        this.fileStore = fileStore;
+        this.chartBuilder = chartBuilder;
+        this.renderCache = renderCache;
+        this.userId = userId;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public boolean download(String src, File destination) {
+        final URI u;
+        try {
+            u = new URI(src);
+        } catch(Exception e) {
+            return false;
+        }
+        if(u.isAbsolute() || u.getPath() == null) {
+            return fallback.download(src, destination);
+        }
+        try {
+            Matcher m = ASSET.matcher(u.getPath());
+            if(m.matches()) {
+                return asset(m.group(1), destination);
+            }
+            m = CHART.matcher(u.getPath());
+            if(m.matches()) {
+                return chart(m.group(1), m.group(2), m.group(3),
+                        query(u), destination);
+            }
+            m = VERSION.matcher(u.getPath());
+            if(m.matches()) {
+                return version(m.group(1), m.group(2), destination);
+            }
+        } catch(Exception e) {
+            Logger.debug("Unable to resolve "+src, e);
+            return false;
+        }
+        return fallback.download(src, destination);
+    }
+
+    @Override
+    public String digest(String src) {
+        final URI u;
+        try {
+            u = new URI(src);
+        } catch(Exception e) {
+            return UNAVAILABLE;
+        }
+        if(u.isAbsolute() || u.getPath() == null) {
+            return fallback.digest(src);
+        }
+        try {
+            Matcher m = ASSET.matcher(u.getPath());
+            if(m.matches()) {
+                return assetDigest(m.group(1));
+            }
+            m = CHART.matcher(u.getPath());
+            if(m.matches()) {
+                return chartDigest(m.group(1), m.group(2), m.group(3),
+                        u.getRawQuery());
+            }
+            m = VERSION.matcher(u.getPath());
+            if(m.matches()) {
+                return versionDigest(m.group(1), m.group(2));
+            }
+        } catch(Exception e) {
+            Logger.debug("Unable to identify "+src, e);
+            return null;
+        }
+        return fallback.digest(src);
+    }
+
+    private String assetDigest(String path) throws Exception {
+        if(path.contains("..")) {
+            return UNAVAILABLE;
+        }
+        final URL url = Play.application().resource("public/"+path);
+        if(url == null) {
+            return UNAVAILABLE;
+        }
+        return "asset:"+path+":"+url.openConnection().getLastModified();
+    }
+
+    /*
+     * Charts are rendered from the file's content, so the digest of the
+     * version the user can see and the rest of the URL identify the image.
+     */
+    private String chartDigest(String fileId, String type, String format,
+            String query) {
+        try {
+            ChartType.getChartType(type);
+            Format.valueOf(format.toUpperCase());
+        } catch(IllegalArgumentException e) {
+            return UNAVAILABLE;
+        }
+        final String digest = fileDigest(fileId);
+        if(digest == null) {
+            return UNAVAILABLE;
+        }
+        return "chart:"+digest+":"+type+"."+format+"?"+query;
+    }
+
+    private String versionDigest(final String fileId,
+            final String versionName) {
+        return sessionFactory.inReadSession(userId,
+                new F.Function<Session, String>() {
+            @Override
+            public String apply(Session session) throws Throwable {
+                final FileStore.File version =
+                        findVersion(session, fileId, versionName);
+                return version != null ? "version:"+version.getDigest() :
+                    UNAVAILABLE;
+            }
+        });
+    }
+
+    private boolean asset(String path, File destination) throws Exception {
+        if(path.contains("..")) {
+            return false;
+        }
+        final InputStream in = Play.application().resourceAsStream("public/"+path);
+        if(in == null) {
+            return false;
+        }
+        try {
+            FileUtils.copyInputStreamToFile(in, destination);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private boolean chart(final String fileId, String type, String format,
+            Map<String, String[]> query, File destination) throws Exception {
+        final ChartType chartType;
+        final Format f;
+        try {
+            chartType = ChartType.getChartType(type);
+            f = Format.valueOf(format.toUpperCase());
+        } catch(IllegalArgumentException e) {
+            return false;
+        }
+        final String digest = fileDigest(fileId);
+        if(digest == null) {
+            return false;
+        }
+        final Dimension dimensions = controllers.Chart.getQueryDimensions(query);
+        for(Chart chart : chartBuilder.getCharts(fileId, chartType,
+                controllers.Chart.getRegions(query),
+                controllers.Chart.getParameters(query))) {
+            try {
+                FileUtils.writeByteArrayToFile(destination, renderCache.outputAs(
+                        digest, chart, f, dimensions).getContent());
+                return true;
+            } catch(Chart.UnsupportedFormatException e) {
+                continue;
+            }
+        }
+        return false;
+    }
+
+    private boolean version(final String fileId, final String versionName,
+            final File destination) {
+        return sessionFactory.inReadSession(userId,
+                new F.Function<Session, Boolean>() {
+            @Override
+            public Boolean apply(Session session) throws Throwable {
+                final FileStore.File version =
+                        findVersion(session, fileId, versionName);
+                if(version == null) {
+                    return false;
+                }
+                final InputStream in = version.getData();
+                try {
+                    FileUtils.copyInputStreamToFile(in, destination);
+                } finally {
+                    in.close();
+                }
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Digest of the file, if the user can see it.
+     */
+    private String fileDigest(final String fileId) {
+        return sessionFactory.inReadSession(userId,
+                new F.Function<Session, String>() {
+            @Override
+            public String apply(Session session) throws Throwable {
+                final FileStore.TreeEntry entry =
+                        fileStore.getManager(session).getEntry(fileId);
+                return entry != null && !entry.isFolder() ? entry.getDigest() : null;
+            }
+        });
+    }
+
+    private FileStore.File findVersion(Session session, String fileId,
+            String versionName) throws RepositoryException {
+        final FileStore.FileOrFolder fof =
+                fileStore.getManager(session).getByIdentifier(fileId);
+        if(!(fof instanceof FileStore.File)) {
+            return null;
+        }
+        final SortedSet<FileStore.File> versions =
+                ((FileStore.File) fof).getVersions();
+        if(versionName.equals("latest")) {
+            return versions.last();
+        }
+        FileStore.File version = null;
+        for(FileStore.File v : versions) {
+            if(v.getIdentifier().equals(versionName) ||
+                    v.getName().equals(versionName)) {
+                version = v;
+            }
+        }
+        return version;
+    }
+
+    private static Map<String, String[]> query(URI u) {
+        final Map<String, List<String>> values = Maps.newHashMap();
+        for(NameValuePair p : URLEncodedUtils.parse(u, "UTF-8")) {
+            if(!values.containsKey(p.getName())) {
+                values.put(p.getName(), Lists.<String>newArrayList());
+            }
+            values.get(p.getName()).add(p.getValue());
+        }
+        final Map<String, String[]> query = Maps.newHashMap();
+        for(Map.Entry<String, List<String>> me : values.entrySet()) {
+            query.put(me.getKey(), me.getValue().toArray(new String[0]));
+        }
+        return query;
+    }
+
+}
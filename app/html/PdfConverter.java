@@ -0,0 +1,21 @@
+package html;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Converts an HTML file to PDF. Implementations need a public no-argument
+ * constructor, and are chosen with "application.pdf.converter".
+ */
+public interface PdfConverter {
+
+    /**
+     * Convert the HTML file, which refers to assets relative to its folder.
+     * Called from several threads at once, and must stop promptly when the
+     * calling thread is interrupted.
+     *
+     * @param options converter options, as given by the user
+     */
+    void convert(File html, File pdf, List<String> options) throws Exception;
+
+}
@@ -10,14 +10,27 @@ import com.google.common.collect.Lists;
 
 public class TempFiles implements AutoCloseable {
 
+    private final File result;
     private List<File> cleanup = Lists.newArrayList();
 
     TempFiles(File... cleanup) {
-        this.cleanup.addAll(Arrays.asList(cleanup));
+        this(cleanup[0], Arrays.asList(cleanup));
+    }
+
+    private TempFiles(File result, List<File> cleanup) {
+        this.result = result;
+        this.cleanup.addAll(cleanup);
+    }
+
+    /**
+     * A result which outlives the request, such as a cached file.
+     */
+    static TempFiles keep(File result) {
+        return new TempFiles(result, Lists.<File>newArrayList());
     }
 
     public File result() {
-        return cleanup.get(0);
+        return result;
     }
 
     public void cleanup() {
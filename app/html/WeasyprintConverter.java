@@ -0,0 +1,58 @@
+package html;
+
+import java.io.File;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Converts with a weasyprint process, which is killed if the conversion is
+ * interrupted.
+ */
+public class WeasyprintConverter implements PdfConverter {
+
+    private static final String CMD_WEASYPRINT = "weasyprint";
+
+    @Override
+    public void convert(File in, File out, List<String> options) throws Exception {
+        File logfolder = Files.createTempDir();
+        try {
+            File css = new File(in.getParentFile(), "print.css");
+            FileUtils.copyInputStreamToFile(
+                    this.getClass().getResourceAsStream("weasyprint.css"), css);
+            List<String> cmd = Lists.newArrayList(CMD_WEASYPRINT,
+                    "--stylesheet", css.getAbsolutePath());
+            cmd.addAll(options);
+            cmd.add(in.getName());
+            cmd.add(out.getAbsolutePath());
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.directory(in.getParentFile());
+            File log = new File(logfolder, "converter.log");
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(Redirect.to(log));
+            Process p = pb.start();
+            int es;
+            try {
+                es = p.waitFor();
+            } catch(InterruptedException e) {
+                p.destroy();
+                throw e;
+            }
+            if(!out.exists()) {
+                String msg = String.format("pdf creation from %s failed with exit status %d",
+                        in.getName(), es);
+                if(log.exists()) {
+                    msg += "\n"+FileUtils.readFileToString(log);
+                }
+                throw new RuntimeException(msg);
+            }
+        } finally {
+            FileUtils.deleteQuietly(logfolder);
+        }
+    }
+
+}
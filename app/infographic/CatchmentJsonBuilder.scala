@@ -3,13 +3,14 @@ package infographic
 import play.api.libs.json._
 import charts.builder.spreadsheet.ProgressTableBuilder
 import charts.Region
+import charts.builder.LazyChart
 
 
 object CatchmentJsonBuilder extends ProgressJsonBuilder {
 
   def hdl(chart: charts.Chart): Option[(Region, JsValue)] = {
     import ProgressTableBuilder.ProgressTableChart
-    val dataset = chart.asInstanceOf[ProgressTableChart].dataset
+    val dataset = LazyChart.unwrap(chart).asInstanceOf[ProgressTableChart].dataset
 
     implicit def ptdWrites = getPtdWrites(
       "groundcover",
@@ -2,6 +2,7 @@ package infographic
 
 import play.api.libs.json._
 import charts.Region
+import charts.builder.LazyChart
 import charts.builder.spreadsheet.MarineBuilder
 import charts.graphics.BeerCoaster
 
@@ -12,7 +13,7 @@ object MarineJsonBuilder extends ChartJsonBuilder {
 
   private def hdl(chart: charts.Chart): Option[(Region, JsValue)] = {
     import MarineBuilder.MarineChart
-    val beercoaster = chart.asInstanceOf[MarineChart].beercoaster()
+    val beercoaster = LazyChart.unwrap(chart).asInstanceOf[MarineChart].beercoaster()
 
     implicit val bccWrites: Writes[BeerCoaster.Condition] = new Writes[BeerCoaster.Condition] {
       override def writes(condition: BeerCoaster.Condition) =
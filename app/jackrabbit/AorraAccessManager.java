@@ -3,8 +3,7 @@ package jackrabbit;
 
 import java.security.AccessControlException;
 import java.security.Principal;
-import java.util.Collections;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,13 +34,48 @@ import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.spi.commons.name.PathBuilder;
 
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class AorraAccessManager implements AccessControlManager, AccessManager  {
 
     private AMContext ctx;
 
+    // Subject principals don't change for the life of the session
+    private String[] principals;
+    private boolean superuser;
+
+    private long readableAncestorsGeneration = -1;
+    private Set<NodeId> readableAncestors;
+
+    private static final int MAX_DECISIONS = 10000;
+
+    // Node ID -> decision, valid for decisionsGeneration of the permission
+    // store. Guarded by itself.
+    private final Map<NodeId, Decision> decisions =
+            new LinkedHashMap<NodeId, Decision>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NodeId, Decision> eldest) {
+            return size() > MAX_DECISIONS;
+        }
+    };
+    private long decisionsGeneration = -1;
+
+    private static class Decision {
+        // Permission on the node itself
+        final Permission node;
+        // Permission on the node's properties, which are never widened
+        final Permission properties;
+
+        Decision(Permission node, Permission properties) {
+            this.node = node;
+            this.properties = properties;
+        }
+    }
+
     private void out(String msg) {
         //System.out.println("XXXXXXXXXXXXXXXXXXXXX   " + msg);
     }
@@ -127,8 +161,6 @@ public class AorraAccessManager implements AccessControlManager, AccessManager
     public boolean canRead(Path itemPath, ItemId itemId) throws RepositoryException {
         out(String.format("canRead %s %s denotesNode:%s",
             itemPath, itemId, itemId.denotesNode()));
-        Path path = ctx.getHierarchyManager().getPath(itemId);
-        out("ItemId resolved to path: "+path.getString());
         Permission p = getPermission(itemId);
         out("found permission: "+p.toString());
         return p.isRead();
@@ -185,6 +217,12 @@ public class AorraAccessManager implements AccessControlManager, AccessManager
         }
         out("home dir: "+ctx.getHomeDir().getAbsolutePath());
         out("workspace: "+ctx.getWorkspaceName());
+        principals = new String[p.size()];
+        int i = 0;
+        for(Principal principal : p) {
+            principals[i++] = principal.getName();
+        }
+        superuser = isPrincipal("system") || isPrincipal("admin");
     }
 
     @Deprecated
@@ -258,40 +296,109 @@ public class AorraAccessManager implements AccessControlManager, AccessManager
 
     private Permission getPermission(ItemId id) throws RepositoryException {
         // system and admin principal have full access
-        if(isPrincipal("system") || isPrincipal("admin")) {
+        if(superuser) {
             return Permission.RW;
         }
-        List<Permission> pList = Lists.newArrayList();
-        Subject subject = ctx.getSubject();
-        Set<Principal> p = subject.getPrincipals();
-        for(Principal principal : p) {
-            Permission permission = getPermission(id, principal);
-            if(permission != null) {
-                pList.add(permission);
+        final PermissionStore store = PermissionStore.getInstance();
+        final long generation = store.getGeneration();
+        final PermissionIndex.Workspace index = store.getIndex().get(ctx.getWorkspaceName());
+        if(id.denotesNode()) {
+            return getDecision((NodeId)id, index, generation).node;
+        } else if(!index.hasPropertyGrants()) {
+            // without permissions on properties, they inherit from their node
+            return getDecision(((PropertyId)id).getParentId(), index, generation).properties;
+        } else {
+            return getPermission(id, index);
+        }
+    }
+
+    private Decision getDecision(NodeId id, PermissionIndex.Workspace index,
+            long generation) throws RepositoryException {
+        synchronized(decisions) {
+            if(decisionsGeneration != generation) {
+                decisions.clear();
+                decisionsGeneration = generation;
+            }
+            final Decision cached = decisions.get(id);
+            if(cached != null) {
+                return cached;
+            }
+        }
+        final Permission properties = getPermission(id, index);
+        final Decision decision = new Decision(
+                widen(id, properties, index, generation), properties);
+        synchronized(decisions) {
+            if(decisionsGeneration == generation) {
+                decisions.put(id, decision);
+            }
+        }
+        return decision;
+    }
+
+    private Permission getPermission(ItemId id, PermissionIndex.Workspace index)
+            throws RepositoryException {
+        Permission permission = null;
+        for(String principal : principals) {
+            final PermissionIndex.Principal granted = index.get(principal);
+            if(granted == null) {
+                continue;
+            }
+            Permission p = getPermission(id, granted);
+            if(p != null && (permission == null || p.compareTo(permission) > 0)) {
+                permission = p;
                 //optimise: if this is a RW permission exit loop, can't get better than this
                 if(Permission.RW.equals(permission)) {
                     break;
                 }
             }
         }
-        if(pList.isEmpty()) {
-            return getDefaultPermission();
-        } else {
-            Collections.sort(pList);
-            Permission permission = pList.get(pList.size()-1);
-            if(Permission.NONE.equals(permission) && id.denotesNode()) {
-                // if permission is NONE and id is a node (property can't be an ancestor see below) try to widen to RO:
-                // 1. get all RO and RW permissions of subjects principals
-                // 2. check if id is an ancestor of any of the ids configured in the permissions if so return RO
-                for(NodeId checkId : getRwRoIdsFromPermissions()) {
-                    if(ctx.getHierarchyManager().isAncestor((NodeId)id, checkId)) {
-                        out(String.format("%s is ancestor of %s, granting RO", id, checkId));
-                        return Permission.RO;
+        return permission == null ? getDefaultPermission() : permission;
+    }
+
+    private Permission widen(NodeId id, Permission permission,
+            PermissionIndex.Workspace index, long generation)
+            throws RepositoryException {
+        // if permission is NONE widen to RO if the node is an ancestor of any
+        // node the subjects principals have RO or RW on
+        if(Permission.NONE.equals(permission) &&
+                getReadableAncestors(index, generation).contains(id)) {
+            out(String.format("%s is ancestor of readable node, granting RO", id));
+            return Permission.RO;
+        }
+        return permission;
+    }
+
+    /*
+     * Ancestors of all nodes readable by the subject's principals. These only
+     * change when permissions do, or nodes are moved or deleted, so they are
+     * computed once per permission store generation. Sessions are pooled, so
+     * this may outlive many requests.
+     */
+    private synchronized Set<NodeId> getReadableAncestors(
+            PermissionIndex.Workspace index, long generation)
+            throws RepositoryException {
+        if(readableAncestorsGeneration != generation) {
+            final Set<NodeId> result = Sets.newHashSet();
+            for(String principal : principals) {
+                final PermissionIndex.Principal granted = index.get(principal);
+                if(granted == null) {
+                    continue;
+                }
+                for(NodeId checkId : granted.readable()) {
+                    try {
+                        ItemId i = getParentId(checkId);
+                        while(i != null && result.add((NodeId)i)) {
+                            i = getParentId(i);
+                        }
+                    } catch(ItemNotFoundException e) {
+                        // Permission on a node which no longer exists
                     }
                 }
             }
-            return permission;
+            readableAncestors = ImmutableSet.copyOf(result);
+            readableAncestorsGeneration = generation;
         }
+        return readableAncestors;
     }
 
     private ItemId getParentId(ItemId id) throws RepositoryException {
@@ -305,44 +412,11 @@ public class AorraAccessManager implements AccessControlManager, AccessManager
         }
     }
 
-    private List<NodeId> getRwRoIdsFromPermissions() {
-        List<NodeId> result = Lists.newArrayList();
-        Subject subject = ctx.getSubject();
-        Set<Principal> p = subject.getPrincipals();
-        for(Principal principal : p) {
-            for(Map.Entry<PermissionKey, Permission> me : PermissionStore.getInstance().getPermissions().entrySet()) {
-                PermissionKey key = me.getKey();
-                if(!key.getWorkspace().equals(ctx.getWorkspaceName())) {
-                    continue;
-                }
-                if(!key.getPrincipal().equals(principal.getName())) {
-                    continue;
-                }
-                Permission permission = me.getValue();
-                if(!(Permission.RO.equals(permission) || Permission.RW.equals(permission))) {
-                    continue;
-                }
-                NodeId id = new NodeId(key.getId());
-                if(nodeExists(id)) {
-                    result.add(id);
-                }
-            }
-        }
-        return result;
-    }
-
-    private boolean nodeExists(NodeId id) {
-        try {
-            return ctx.getHierarchyManager().getPath(id) != null;
-        } catch(Exception e) {
-            return false;
-        }
-    }
-
-    private Permission getPermission(ItemId id, Principal principal) throws RepositoryException {
+    private Permission getPermission(ItemId id, PermissionIndex.Principal granted)
+            throws RepositoryException {
         ItemId i = id;
         while(true) {
-            Permission p = getItemPermission(i, principal);
+            Permission p = granted.get(i);
             if(p!= null) {
                 return p;
             }
@@ -354,12 +428,6 @@ public class AorraAccessManager implements AccessControlManager, AccessManager
         return null;
     }
 
-    private Permission getItemPermission(ItemId id, Principal principal) {
-        PermissionKey key = new PermissionKey(ctx.getWorkspaceName(), principal.getName(), id.toString());
-        //out("key: "+key.toString());
-        return PermissionStore.getInstance().getPermission(key);
-    }
-
     private boolean isPrincipal(String name) {
         return getPrincipal(name) != null?true:false;
     }
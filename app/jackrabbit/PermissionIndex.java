@@ -0,0 +1,199 @@
+package jackrabbit;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Immutable snapshot of the permission store, indexed for the access
+ * manager's read path.
+ *
+ * Permissions are grouped by workspace and then principal, and keyed by
+ * parsed item ID so lookups don't need to build keys or strings. A new index
+ * is derived whenever permissions change, so readers never need to lock.
+ */
+class PermissionIndex {
+
+    static final PermissionIndex EMPTY = new PermissionIndex(
+            Collections.<String, Workspace>emptyMap());
+
+    private final Map<String, Workspace> workspaces;
+
+    private PermissionIndex(Map<String, Workspace> workspaces) {
+        this.workspaces = workspaces;
+    }
+
+    static PermissionIndex compile(Map<PermissionKey, Permission> permissions) {
+        final Map<String, Map<String, Map<ItemId, Permission>>> grants =
+                Maps.newHashMap();
+        for(Map.Entry<PermissionKey, Permission> me : permissions.entrySet()) {
+            final PermissionKey key = me.getKey();
+            final ItemId id = parseId(key.getId());
+            if(id == null) {
+                continue;
+            }
+            Map<String, Map<ItemId, Permission>> byPrincipal =
+                    grants.get(key.getWorkspace());
+            if(byPrincipal == null) {
+                byPrincipal = Maps.newHashMap();
+                grants.put(key.getWorkspace(), byPrincipal);
+            }
+            Map<ItemId, Permission> granted = byPrincipal.get(key.getPrincipal());
+            if(granted == null) {
+                granted = Maps.newHashMap();
+                byPrincipal.put(key.getPrincipal(), granted);
+            }
+            granted.put(id, me.getValue());
+        }
+        final ImmutableMap.Builder<String, Workspace> workspaces =
+                ImmutableMap.builder();
+        for(Map.Entry<String, Map<String, Map<ItemId, Permission>>> me :
+                grants.entrySet()) {
+            final ImmutableMap.Builder<String, Principal> principals =
+                    ImmutableMap.builder();
+            for(Map.Entry<String, Map<ItemId, Permission>> pe :
+                    me.getValue().entrySet()) {
+                principals.put(pe.getKey(), new Principal(pe.getValue()));
+            }
+            workspaces.put(me.getKey(), new Workspace(principals.build()));
+        }
+        return new PermissionIndex(workspaces.build());
+    }
+
+    /**
+     * @param permission permission to grant, or null to revoke it
+     * @return a copy of this index with one permission changed. Only the
+     *         principal it belongs to is rebuilt; everything else is shared.
+     */
+    PermissionIndex with(PermissionKey key, Permission permission) {
+        final ItemId id = parseId(key.getId());
+        if(id == null) {
+            return this;
+        }
+        final Workspace workspace = get(key.getWorkspace());
+        final Principal principal = workspace.get(key.getPrincipal());
+        final Map<ItemId, Permission> granted = principal == null ?
+                Maps.<ItemId, Permission>newHashMap() :
+                Maps.newHashMap(principal.permissions);
+        if(permission == null) {
+            granted.remove(id);
+        } else {
+            granted.put(id, permission);
+        }
+        final Map<String, Principal> principals =
+                Maps.newHashMap(workspace.principals);
+        if(granted.isEmpty()) {
+            principals.remove(key.getPrincipal());
+        } else {
+            principals.put(key.getPrincipal(), new Principal(granted));
+        }
+        final Map<String, Workspace> workspaces = Maps.newHashMap(this.workspaces);
+        if(principals.isEmpty()) {
+            workspaces.remove(key.getWorkspace());
+        } else {
+            workspaces.put(key.getWorkspace(),
+                    new Workspace(ImmutableMap.copyOf(principals)));
+        }
+        return new PermissionIndex(ImmutableMap.copyOf(workspaces));
+    }
+
+    private static ItemId parseId(String id) {
+        try {
+            return new NodeId(id);
+        } catch(IllegalArgumentException e) {}
+        try {
+            return PropertyId.valueOf(id);
+        } catch(IllegalArgumentException e) {}
+        return null;
+    }
+
+    /**
+     * @return permissions for the workspace, which will be empty if there are
+     *         none
+     */
+    Workspace get(String workspace) {
+        final Workspace w = workspaces.get(workspace);
+        return w == null ? Workspace.EMPTY : w;
+    }
+
+    static class Workspace {
+
+        static final Workspace EMPTY = new Workspace(
+                Collections.<String, Principal>emptyMap());
+
+        private final Map<String, Principal> principals;
+        private final boolean propertyGrants;
+
+        private Workspace(Map<String, Principal> principals) {
+            this.principals = principals;
+            boolean propertyGrants = false;
+            for(Principal p : principals.values()) {
+                propertyGrants |= p.propertyGrants;
+            }
+            this.propertyGrants = propertyGrants;
+        }
+
+        /**
+         * @return true if any permissions are granted directly on properties,
+         *         rather than nodes
+         */
+        boolean hasPropertyGrants() {
+            return propertyGrants;
+        }
+
+        /**
+         * @return permissions granted to the principal, or null if there are
+         *         none
+         */
+        Principal get(String principal) {
+            return principals.get(principal);
+        }
+
+    }
+
+    static class Principal {
+
+        private final Map<ItemId, Permission> permissions;
+        private final List<NodeId> readable;
+        private final boolean propertyGrants;
+
+        private Principal(Map<ItemId, Permission> permissions) {
+            this.permissions = ImmutableMap.copyOf(permissions);
+            final ImmutableList.Builder<NodeId> readable = ImmutableList.builder();
+            boolean propertyGrants = false;
+            for(Map.Entry<ItemId, Permission> me : permissions.entrySet()) {
+                if(!me.getKey().denotesNode()) {
+                    propertyGrants = true;
+                } else if(me.getValue().isRead()) {
+                    readable.add((NodeId)me.getKey());
+                }
+            }
+            this.readable = readable.build();
+            this.propertyGrants = propertyGrants;
+        }
+
+        /**
+         * @return permission granted directly on the item, or null
+         */
+        Permission get(ItemId id) {
+            return permissions.get(id);
+        }
+
+        /**
+         * @return nodes with RO or RW permission granted on them
+         */
+        List<NodeId> readable() {
+            return readable;
+        }
+
+    }
+
+}
@@ -4,7 +4,10 @@ package jackrabbit;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.security.AccessControlException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -12,10 +15,14 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 
-import com.google.common.collect.Maps;
+import play.Logger;
 
 public class PermissionStore {
 
@@ -30,7 +37,32 @@ public class PermissionStore {
 
     private static PermissionStore INSTANCE;
 
-    private final Map<PermissionKey, Permission> permissions = Maps.newTreeMap();
+    // Concurrent, so readers never need to lock
+    private volatile SortedMap<PermissionKey, Permission> permissions =
+            new ConcurrentSkipListMap<PermissionKey, Permission>();
+
+    // Updated with each change to permissions, for lock-free reads
+    private volatile PermissionIndex index = PermissionIndex.EMPTY;
+
+    // Incremented after each change to the index, or to the hierarchy
+    // permissions are inherited through, so sessions know when to discard
+    // access decisions they have memoised
+    private volatile long generation = 0;
+
+    private Session observerSession;
+
+    /*
+     * Called during save, once moves and deletes are visible to every
+     * session.
+     */
+    private final SynchronousEventListener hierarchyListener =
+            new SynchronousEventListener() {
+        @Override
+        public void onEvent(EventIterator events) {
+            hierarchyChanged();
+        }
+    };
+
     private String getProperty(Node n, String property) throws PathNotFoundException, RepositoryException {
         Property p = n.getProperty(property);
         if(p != null) {
@@ -40,24 +72,32 @@ public class PermissionStore {
         }
     }
 
-    private void writePermissions(Session session) throws RepositoryException {
-        deletePermissions(session);
+    /*
+     * Each permission is stored in its own node, named by a hash of its key so
+     * it can be found without scanning.
+     */
+    private static String nodeName(PermissionKey key) {
+        return DigestUtils.sha1Hex(String.format("%s\u0000%s\u0000%s",
+                key.getWorkspace(), key.getPrincipal(), key.getId()));
+    }
+
+    private void writePermission(Session session, PermissionKey key,
+            Permission permission) throws RepositoryException {
         Node pNode = getPermissions(session);
-        for(Map.Entry<PermissionKey, Permission> me : permissions.entrySet()) {
-            Node p = pNode.addNode(PERMISSION);
-            p.setProperty(WORKSPACE, me.getKey().getWorkspace());
-            p.setProperty(PRINCIPAL, me.getKey().getPrincipal());
-            p.setProperty(ITEMID, me.getKey().getId());
-            p.setProperty(PERMISSION, me.getValue().toString());
-        }
+        String name = nodeName(key);
+        Node p = pNode.hasNode(name) ? pNode.getNode(name) : pNode.addNode(name);
+        p.setProperty(WORKSPACE, key.getWorkspace());
+        p.setProperty(PRINCIPAL, key.getPrincipal());
+        p.setProperty(ITEMID, key.getId());
+        p.setProperty(PERMISSION, permission.toString());
     }
 
-    private void deletePermissions(Session session) throws RepositoryException {
-        Node permissions = getPermissions(session);
-        NodeIterator iter = permissions.getNodes();
-        while(iter.hasNext()) {
-            Node p = iter.nextNode();
-            p.remove();
+    private void deletePermission(Session session, PermissionKey key)
+            throws RepositoryException {
+        Node pNode = getPermissions(session);
+        String name = nodeName(key);
+        if(pNode.hasNode(name)) {
+            pNode.getNode(name).remove();
         }
     }
 
@@ -92,33 +132,75 @@ public class PermissionStore {
         return INSTANCE;
     }
 
-    public synchronized Map<PermissionKey, Permission> getPermissions() {
-        return Maps.newHashMap(permissions);
+    /**
+     * @return read-only view of all permissions
+     */
+    public Map<PermissionKey, Permission> getPermissions() {
+        return Collections.unmodifiableSortedMap(permissions);
     }
 
     public synchronized void grant(Session session,
             String workspace, String principal, String id, Permission permission) throws RepositoryException {
         checkPermission(session);
-        try {
-            PermissionKey key = new PermissionKey((workspace!=null?workspace:"default"), principal, id);
-            permissions.put(key, permission);
-            writePermissions(session);
-        } finally {
-            init(session);
-        }
+        PermissionKey key = new PermissionKey((workspace!=null?workspace:"default"), principal, id);
+        writePermission(session, key, permission);
+        permissions.put(key, permission);
+        update(index.with(key, permission));
     }
 
     public synchronized boolean revoke(Session session ,
             String workspace, String principal, String id) throws RepositoryException {
         checkPermission(session);
+        PermissionKey key = new PermissionKey((workspace!=null?workspace:"default"), principal, id);
+        deletePermission(session, key);
+        if(permissions.remove(key) == null) {
+            return false;
+        }
+        update(index.with(key, null));
+        return true;
+    }
+
+    private void update(PermissionIndex updated) {
+        index = updated;
+        generation++;
+    }
+
+    /**
+     * Discard memoised access decisions, as nodes have moved or been deleted
+     * and may now inherit different permissions.
+     */
+    public synchronized void hierarchyChanged() {
+        generation++;
+    }
+
+    /**
+     * Watch for nodes being moved or deleted below the path, which can change
+     * permissions inherited from ancestors.
+     *
+     * @param session session to observe with, which is logged out by
+     *                {@link #stopObserving()}
+     */
+    public synchronized void observe(Session session, String path)
+            throws RepositoryException {
+        stopObserving();
+        session.getWorkspace().getObservationManager().addEventListener(
+                hierarchyListener, Event.NODE_MOVED | Event.NODE_REMOVED,
+                path, true, null, null, false);
+        observerSession = session;
+    }
+
+    public synchronized void stopObserving() {
+        if(observerSession == null) {
+            return;
+        }
         try {
-            PermissionKey key = new PermissionKey((workspace!=null?workspace:"default"), principal, id);
-            Permission p = permissions.remove(key);
-            writePermissions(session);
-            return p != null;
-        } finally {
-            init(session);
+            observerSession.getWorkspace().getObservationManager()
+                .removeEventListener(hierarchyListener);
+        } catch(RepositoryException e) {
+            Logger.warn("Unable to stop observing moves and deletes", e);
         }
+        observerSession.logout();
+        observerSession = null;
     }
 
     private void checkPermission(Session session) throws AccessControlException, RepositoryException {
@@ -126,7 +208,18 @@ public class PermissionStore {
     }
 
     public synchronized void init(Session session) throws RepositoryException {
-        permissions.clear();
+        SortedMap<PermissionKey, Permission> loaded =
+                new ConcurrentSkipListMap<PermissionKey, Permission>();
+        try {
+            load(session, loaded);
+        } finally {
+            permissions = loaded;
+            update(PermissionIndex.compile(loaded));
+        }
+    }
+
+    private void load(Session session, Map<PermissionKey, Permission> loaded)
+            throws RepositoryException {
         try {
             Node pNode = getPermissions(session);
             NodeIterator iter = pNode.getNodes();
@@ -139,7 +232,13 @@ public class PermissionStore {
                     String permission = getProperty(n, PERMISSION);
                     Permission p = Permission.valueOf(StringUtils.upperCase(permission));
                     if(isNotBlank(workspace) && isNotBlank(principal) && isNotBlank(id) && p != null) {
-                        permissions.put(new PermissionKey(workspace, principal, id), p);
+                        PermissionKey key = new PermissionKey(workspace, principal, id);
+                        loaded.put(key, p);
+                        if(!n.getName().equals(nodeName(key))) {
+                            // Stored before permissions were named by key
+                            n.remove();
+                            writePermission(session, key, p);
+                        }
                     }
                 } catch(PathNotFoundException e) {
 
@@ -150,7 +249,24 @@ public class PermissionStore {
         }
     }
 
-    public synchronized Permission getPermission(PermissionKey key) {
+    public Permission getPermission(PermissionKey key) {
         return permissions.get(key);
     }
+
+    /**
+     * @return the current permissions, which will not change after being
+     *         returned
+     */
+    PermissionIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return a counter which changes whenever permissions might have
+     *         changed. Read it before {@link #getIndex()} so a decision made
+     *         from the index is never associated with a later generation.
+     */
+    long getGeneration() {
+        return generation;
+    }
 }
\ No newline at end of file
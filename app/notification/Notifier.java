@@ -1,5 +1,6 @@
 package notification;
 
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -14,6 +15,11 @@ public interface Notifier {
 
   void handleEvent(OrderedEvent oe);
 
+  /**
+   * Handle a burst of events, saving their notifications together.
+   */
+  void handleEvents(List<OrderedEvent> events);
+
   public static class Events {
 
     public static Event create(Notification notification)
@@ -1,24 +1,25 @@
 package notification;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
-import models.Flag;
 import models.Notification;
 import models.NotificationDAO;
 import models.User;
+import models.UserDAO;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.jackrabbit.core.SessionImpl;
-import org.apache.jackrabbit.core.id.NodeId;
 import org.jcrom.Jcrom;
 
 import play.Logger;
 import play.api.templates.Html;
 import play.libs.F;
+import service.EventManager.BatchEventReceiver;
 import service.EventManager.Event;
 import service.EventManager.EventReceiver;
 import service.EventManager.EventReceiverMessage;
@@ -28,33 +29,48 @@ import service.filestore.FileStore;
 import service.filestore.FlagStore;
 import akka.actor.TypedActor;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 
-public class NotifierImpl implements Notifier, TypedActor.PreStart {
+public class NotifierImpl implements Notifier, TypedActor.PreStart,
+    TypedActor.PostStop {
 
   private final JcrSessionFactory sessionFactory;
   private final FileStore fileStore;
-  private final FlagStore flagStore;
   private final Jcrom jcrom;
 
+  private WatchIndex watchIndex;
+
   @Inject
   public NotifierImpl(JcrSessionFactory sessionFactory, FileStore fileStore,
-      FlagStore flagStore, Jcrom jcrom) {
+      Jcrom jcrom) {
     this.sessionFactory = sessionFactory;
     this.fileStore = fileStore;
-    this.flagStore = flagStore;
     this.jcrom = jcrom;
   }
 
   @Override
   public void preStart() {
+    try {
+      watchIndex = new WatchIndex(sessionFactory.newAdminSession());
+    } catch (RepositoryException e) {
+      throw new RuntimeException(e);
+    }
     attachEventReceiver();
   }
 
+  @Override
+  public void postStop() {
+    if (watchIndex != null) {
+      watchIndex.close();
+    }
+  }
+
   protected void attachEventReceiver() {
     final Notifier n = TypedActor.<Notifier>self();
-    final EventReceiver er = new EventReceiver() {
+    final EventReceiver er = new BatchEventReceiver() {
       @Override
       public void end() {}
 
@@ -63,11 +79,20 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
 
       @Override
       public void push(OrderedEvent oe) {
-        // Skip out-of-date messages
-        if (oe.event().type.equals("outofdate"))
-          return;
-        // Trigger notification for event
-        n.handleEvent(oe);
+        push(Collections.singletonList(oe));
+      }
+
+      @Override
+      public void push(List<OrderedEvent> batch) {
+        final List<OrderedEvent> events = Lists.newArrayList();
+        for (OrderedEvent oe : batch) {
+          // Skip out-of-date messages
+          if (!oe.event().type.equals("outofdate"))
+            events.add(oe);
+        }
+        // Trigger notifications for events
+        if (!events.isEmpty())
+          n.handleEvents(events);
       }
     };
     fileStore.getEventManager().tell(EventReceiverMessage.add(er, null));
@@ -75,17 +100,79 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
 
   @Override
   public void handleEvent(final OrderedEvent oe) {
-    if (isNotificationEvent(oe.event())) {
-      // Notification events do not produce notifications! ;-)
-      return;
-    }
-    sessionFactory.inSession(new F.Function<Session, Session>() {
+    handleEvents(Collections.singletonList(oe));
+  }
+
+  @Override
+  public void handleEvents(final List<OrderedEvent> events) {
+    final List<Notification> created = sessionFactory.inSession(
+        new F.Function<Session, List<Notification>>() {
       @Override
-      public Session apply(Session session) throws RepositoryException {
-        processEvent(session, oe.event());
-        return session;
+      public List<Notification> apply(Session session) {
+        final Batch batch = new Batch(session);
+        for (OrderedEvent oe : events) {
+          if (isNotificationEvent(oe.event())) {
+            // Notification events do not produce notifications! ;-)
+            continue;
+          }
+          try {
+            processEvent(batch, oe.event());
+            batch.commit();
+          } catch (RepositoryException | RuntimeException e) {
+            // Drop the event's notifications, so none are saved half-done
+            batch.pending.clear();
+            Logger.warn("Unable to send notifications for " + oe, e);
+          }
+        }
+        return batch.notifications;
       }
     });
+    // Announce notifications only once they've been saved
+    for (Notification notification : created) {
+      try {
+        fileStore.getEventManager().tell(Events.create(notification));
+      } catch (RepositoryException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /*
+   * Notifications created for a burst of events, all saved at the end.
+   */
+  private class Batch {
+    final Session session;
+    final List<Notification> notifications = Lists.newArrayList();
+    // Notifications for the event being processed, created once it succeeds
+    final List<Notification> pending = Lists.newArrayList();
+    // Watching users, loaded once per batch
+    final Map<String, User> users = Maps.newHashMap();
+
+    Batch(Session session) {
+      this.session = session;
+    }
+
+    User getUser(String id) {
+      if (!users.containsKey(id)) {
+        User user;
+        try {
+          user = new UserDAO(session, jcrom).loadById(id);
+        } catch (RuntimeException e) {
+          Logger.trace("couldn't load watching user " + id, e);
+          user = null;
+        }
+        users.put(id, user);
+      }
+      return users.get(id);
+    }
+
+    void commit() {
+      final NotificationDAO dao = new NotificationDAO(session, jcrom);
+      for (Notification notification : pending) {
+        notifications.add(dao.create(notification));
+      }
+      pending.clear();
+    }
   }
 
   private static boolean isNotificationEvent(final Event event) {
@@ -100,52 +187,42 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
     return event.type.startsWith("comment:");
   }
 
-  private void processEvent(Session session, Event event)
+  private void processEvent(Batch batch, Event event)
       throws RepositoryException {
     if (isFlagEvent(event)) {
-      if (isEditFlag(session, event)) {
-        sendEditNotification(session,
-            getWatchUsers(session, event.info("target:id"), event),
+      if (isWatchFlag(event)) {
+        watchIndex.invalidate();
+      } else if (isEditFlag(event)) {
+        sendEditNotification(batch,
+            getWatchUsers(batch, event.info("target:id"), event),
             event);
       }
     } else if (isCommentEvent(event)) {
-      sendCommentNotification(session,
-          getWatchUsers(session, event.info("target:id"), event), event);
+      sendCommentNotification(batch,
+          getWatchUsers(batch, event.info("target:id"), event), event);
     } else {
-      sendNotification(session, event);
+      sendNotification(batch, event);
     }
   }
 
-  private Iterable<User> getWatchUsers(Session session, String nodeId, Event event) {
+  private Iterable<User> getWatchUsers(Batch batch, String nodeId, Event event) {
     final Set<User> users = Sets.newHashSet();
-    FlagStore.Manager manager = flagStore.getManager(session);
-    for (Flag flag : manager.getFlags(FlagStore.FlagType.WATCH)) {
+    if (nodeId == null) {
+      return users;
+    }
+    for (String userId : watchIndex.getWatchers(batch.session, nodeId)) {
       // filter out user who triggered the event,  issue #144
-      if(isEventOwner(flag.getUser(), event)) {
+      if (StringUtils.equals(userId, getEventOwnerId(event))) {
         continue;
       }
-      if (flag.getTargetId().equals(nodeId)) {
-        users.add(flag.getUser());
-      } else {
-        try {
-          if (((SessionImpl) session).getHierarchyManager().isAncestor(
-              new NodeId(flag.getTargetId()), new NodeId(nodeId))) {
-            users.add(flag.getUser());
-          }
-        } catch (RepositoryException e) {
-          // Dump trace and ignore
-          Logger.trace(String.format("couldn't determine if %s is ancestor of %s",
-              flag.getTargetId(), nodeId), e);
-        }
+      final User user = batch.getUser(userId);
+      if (user != null) {
+        users.add(user);
       }
     }
     return users;
   }
 
-  private boolean isEventOwner(User user, Event event) {
-    return user!=null?StringUtils.equals(user.getId(), getEventOwnerId(event)):false;
-  }
-
   private String getEventOwnerId(Event event) {
     String instigator = event.info("instigator:id");
     String author = event.info("author:id");
@@ -158,14 +235,14 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
     }
   }
 
-  private void sendNotification(Session session, final Event event)
+  private void sendNotification(Batch batch, final Event event)
       throws RepositoryException {
-    final FileStore.Manager manager = fileStore.getManager(session);
-    for (final User user : getWatchUsers(session, event.info("id"), event)) {
+    final FileStore.Manager manager = fileStore.getManager(batch.session);
+    for (final User user : getWatchUsers(batch, event.info("id"), event)) {
       FileStore.FileOrFolder item = getItem(manager, event);
       final String message = views.html.notification.notification.render(event,
           item).toString();
-      sendNotification(session, user, message);
+      sendNotification(batch, user, message);
     }
   }
 
@@ -174,15 +251,20 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
     return manager.getByIdentifier(event.info("id"));
   }
 
-  private boolean isEditFlag(Session session, Event event) {
+  private boolean isWatchFlag(Event event) {
+    FlagStore.FlagType t = FlagStore.FlagType.valueOf(event.info("type"));
+    return t == FlagStore.FlagType.WATCH;
+  }
+
+  private boolean isEditFlag(Event event) {
     FlagStore.FlagType t = FlagStore.FlagType.valueOf(event.info("type"));
     return t == FlagStore.FlagType.EDIT;
   }
 
-  private void sendEditNotification(final Session session,
+  private void sendEditNotification(final Batch batch,
       final Iterable<User> users,
       final Event event) throws RepositoryException {
-    final FileStore.Manager manager = fileStore.getManager(session);
+    final FileStore.Manager manager = fileStore.getManager(batch.session);
     final FileStore.FileOrFolder fof =
         manager.getByIdentifier(event.info("target:id"));
     final Html msg;
@@ -194,14 +276,14 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
       return;
     }
     for (User u : users) {
-      sendNotification(session, u, msg.toString());
+      sendNotification(batch, u, msg.toString());
     }
   }
 
-  private void sendCommentNotification(final Session session,
+  private void sendCommentNotification(final Batch batch,
       final Iterable<User> users,
       final Event event) throws RepositoryException {
-    final FileStore.Manager manager = fileStore.getManager(session);
+    final FileStore.Manager manager = fileStore.getManager(batch.session);
     final FileStore.FileOrFolder fof =
         manager.getByIdentifier(event.info("target:id"));
     if (fof == null) {
@@ -210,16 +292,11 @@ public class NotifierImpl implements Notifier, TypedActor.PreStart {
     }
     final Html msg = views.html.notification.comment.render(event, fof);
     for (User u : users) {
-      sendNotification(session, u, msg.toString());
+      sendNotification(batch, u, msg.toString());
     }
   }
 
-  private void sendNotification(Session session, User to, String msg)
-      throws ItemNotFoundException, RepositoryException {
-    NotificationDAO notificationDao = new NotificationDAO(session, jcrom);
-    Notification notification = new Notification(to, msg);
-    notificationDao.create(notification);
-    session.save();
-    fileStore.getEventManager().tell(Events.create(notification));
+  private void sendNotification(Batch batch, User to, String msg) {
+    batch.pending.add(new Notification(to, msg));
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,123 @@
+package notification;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
+
+import play.Logger;
+import service.filestore.FlagStore.FlagType;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Index of watch flags by target, so the users watching a node or any of its
+ * ancestors can be found by walking up from the node, rather than checking
+ * every flag.
+ *
+ * The index is loaded on first use, and reloaded after watch flags change.
+ * Flag events mark it stale, as does a synchronous repository observer, so
+ * flags set without an event are seen as soon as they're saved.
+ *
+ * Lookups must come from a single thread.
+ */
+class WatchIndex implements SynchronousEventListener {
+
+  private static final String TARGET_PROPERTY = "targetId";
+  private static final String USER_PROPERTY = "user";
+
+  private final Session observerSession;
+  private final AtomicBoolean stale = new AtomicBoolean(true);
+  // Target ID -> watching user IDs
+  private SetMultimap<String, String> watchers = HashMultimap.create();
+
+  /**
+   * @param observerSession session to observe flags with, which is logged
+   *                        out on {@link #close()}
+   */
+  WatchIndex(Session observerSession) throws RepositoryException {
+    this.observerSession = observerSession;
+    observerSession.getWorkspace().getObservationManager().addEventListener(
+        this,
+        Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_CHANGED,
+        FlagType.WATCH.getRootPath(), true, null, null, false);
+  }
+
+  @Override
+  public void onEvent(EventIterator events) {
+    // Called during save, so just note that a reload is needed
+    invalidate();
+  }
+
+  void invalidate() {
+    stale.set(true);
+  }
+
+  /**
+   * @return IDs of users watching the node or any of its ancestors
+   */
+  Set<String> getWatchers(Session session, String nodeId) {
+    if (stale.getAndSet(false)) {
+      reload(session);
+    }
+    final ImmutableSet.Builder<String> b = ImmutableSet.builder();
+    b.addAll(watchers.get(nodeId));
+    try {
+      Node node = session.getNodeByIdentifier(nodeId);
+      while (node.getDepth() > 0) {
+        node = node.getParent();
+        b.addAll(watchers.get(node.getIdentifier()));
+      }
+    } catch (RepositoryException e) {
+      // Deleted or not yet saved, so only direct watchers apply
+      Logger.trace("couldn't find ancestors of " + nodeId, e);
+    }
+    return b.build();
+  }
+
+  void close() {
+    try {
+      observerSession.getWorkspace().getObservationManager()
+        .removeEventListener(this);
+    } catch (RepositoryException e) {
+      Logger.warn("Unable to stop observing watch flags", e);
+    }
+    observerSession.logout();
+  }
+
+  private void reload(Session session) {
+    final long started = System.currentTimeMillis();
+    final SetMultimap<String, String> m = HashMultimap.create();
+    try {
+      if (!session.nodeExists(FlagType.WATCH.getRootPath())) {
+        watchers = m;
+        return;
+      }
+      for (Node flag : JcrUtils.getChildNodes(
+          session.getNode(FlagType.WATCH.getRootPath()))) {
+        if (flag.hasProperty(TARGET_PROPERTY) &&
+            flag.hasProperty(USER_PROPERTY)) {
+          m.put(flag.getProperty(TARGET_PROPERTY).getString(),
+              flag.getProperty(USER_PROPERTY).getString());
+        }
+      }
+    } catch (RepositoryException e) {
+      // Try again next time
+      stale.set(true);
+      throw new RuntimeException(e);
+    }
+    watchers = m;
+    Logger.debug(String.format("Indexed %d watch flags in %dms",
+        m.size(), System.currentTimeMillis() - started));
+  }
+
+}
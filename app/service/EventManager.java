@@ -2,6 +2,7 @@ package service;
 
 import static java.util.Collections.emptyMap;
 
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -18,12 +19,49 @@ public interface EventManager {
 
   public abstract void tell(Event event);
 
+  /**
+   * @return delivery statistics for each attached receiver
+   */
+  public abstract List<ReceiverStats> getReceiverStats();
+
   public interface EventReceiver {
     void push(OrderedEvent oe);
     void end();
     void end(Throwable e);
   }
 
+  /**
+   * Receiver which can accept several events at once, such as a client
+   * channel which can send them in a single write.
+   */
+  public interface BatchEventReceiver extends EventReceiver {
+    void push(List<OrderedEvent> batch);
+  }
+
+  public static class ReceiverStats {
+
+    public final String receiver;
+    public final int queued;
+    public final long delivered;
+    // Milliseconds the oldest undelivered event has been waiting
+    public final long lag;
+
+    public ReceiverStats(String receiver, int queued, long delivered,
+        long lag) {
+      this.receiver = receiver;
+      this.queued = queued;
+      this.delivered = delivered;
+      this.lag = lag;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: queued: %d, delivered: %d, lag: %dms",
+          receiver, queued, delivered, lag);
+    }
+
+  }
+
   public static class EventReceiverMessage {
 
     public static enum MessageType {
@@ -72,6 +110,10 @@ public interface EventManager {
       return this.info.get(key);
     }
 
+    Map<String, String> info() {
+      return this.info;
+    }
+
     public static Event outOfDate() {
       return new Event("outofdate");
     }
@@ -1,24 +1,91 @@
 package service;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 import play.Logger;
 import service.EventTimeline.ForgottenEventException;
 import service.OrderedEvent;
 
+/**
+ * Records events and broadcasts them to receivers.
+ *
+ * Each receiver has its own queue, drained by a shared pool of dispatch
+ * threads, so a slow receiver only delays its own events. Receivers are
+ * never dropped for falling behind here. Receivers which hand events on
+ * without blocking, such as browser channels, decide for themselves when
+ * they're too far behind.
+ */
 public class EventManagerImpl implements EventManager {
 
-  private final EventTimeline<String, Event> history =
-      new InMemoryEventTimeline<Event>();
+  public static final int DEFAULT_DISPATCH_THREADS = 4;
 
-  private final Set<EventReceiver> receivers =
-      Collections.synchronizedSet(
-          new HashSet<EventReceiver>());
+  // Most events delivered to a batch receiver at once
+  private static final int MAX_BATCH = 100;
+  // Most events returned to a client with no last event ID. Beyond this, it
+  // is just told it's out of date.
+  static final int MAX_KNOWN = 1000;
+
+  private final EventTimeline<String, Event> history;
+  private final Executor dispatcher;
+
+  private final ConcurrentMap<EventReceiver, Subscription> receivers =
+      new ConcurrentHashMap<EventReceiver, Subscription>();
+
+  public EventManagerImpl() {
+    this(new InMemoryEventTimeline<Event>());
+  }
+
+  public EventManagerImpl(EventTimeline<String, Event> history) {
+    this(history, newDispatcher(DEFAULT_DISPATCH_THREADS));
+  }
+
+  /**
+   * @param dispatcher delivers events to receivers, and is owned (and shut
+   *          down) by the caller
+   */
+  public EventManagerImpl(EventTimeline<String, Event> history,
+      Executor dispatcher) {
+    this.history = history;
+    this.dispatcher = dispatcher;
+  }
+
+  /**
+   * @return pool of daemon threads for delivering events to receivers
+   */
+  public static ExecutorService newDispatcher(int threads) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r,
+                "event dispatcher " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 
   @Override
   public String getLastEventId() {
@@ -30,7 +97,15 @@ public class EventManagerImpl implements EventManager {
     final ImmutableList.Builder<OrderedEvent> b = ImmutableList.builder();
     Map<String, Event> missed;
     try {
-      missed = lastId == null ? history.getKnown() : history.getSince(lastId);
+      if (lastId == null) {
+        // Only read as much history as could be returned
+        missed = history.getLatest(MAX_KNOWN + 1);
+        if (missed.size() > MAX_KNOWN) {
+          return ImmutableList.of(outOfDateOrderedEvent());
+        }
+      } else {
+        missed = history.getSince(lastId);
+      }
     } catch (ForgottenEventException e1) {
       // TODO Handle forgotten history
       return ImmutableList.of(outOfDateOrderedEvent());
@@ -47,8 +122,9 @@ public class EventManagerImpl implements EventManager {
     switch (message.type) {
     case ADD:
       Logger.debug("Adding event receiver to " + this);
-      performCatchup(message.er, message.lastId);
-      receivers.add(message.er);
+      final Subscription s = new Subscription(message.er);
+      performCatchup(s, message.lastId);
+      receivers.put(message.er, s);
       break;
     case REMOVE:
       Logger.debug("Removing event receiver from " + this);
@@ -59,36 +135,44 @@ public class EventManagerImpl implements EventManager {
 
   @Override
   public void tell(final Event event) {
-    history.record(event);
-    Logger.debug(String.format("%s pushing event to %d receivers: %s",
+    final OrderedEvent oe = new OrderedEvent(history.record(event), event);
+    Logger.debug(String.format("%s queueing event for %d receivers: %s",
         this, receivers.size(), event));
-    for (EventReceiver er : receivers) {
-      // Push event ID and event
-      er.push(new OrderedEvent(history.getLastEventId(), event));
+    for (Subscription s : receivers.values()) {
+      s.push(oe);
     }
   }
 
+  @Override
+  public List<ReceiverStats> getReceiverStats() {
+    final List<ReceiverStats> stats = Lists.newArrayList();
+    for (Subscription s : receivers.values()) {
+      stats.add(s.stats());
+    }
+    return stats;
+  }
+
   protected void performCatchup(
-      final EventReceiver er,
+      final Subscription s,
       final String lastId) {
     Logger.debug("Catching up from "+lastId);
     if (lastId == null) {
-      er.push(outOfDateOrderedEvent());
-      er.end();
+      s.push(outOfDateOrderedEvent());
+      s.end(null);
     } else {
       try {
         final Map<String, Event> missed = history.getSince(lastId);
+        Logger.debug(String.format(
+            "%s pushing %d missed events to receiver: %s",
+            this, missed.size(), s.receiver));
         for (Map.Entry<String, Event> e : missed.entrySet()) {
-          Logger.debug(String.format(
-              "%s pushing missed event %s to receiver: %s",
-              this, e.getKey(), er));
           // Push event ID and event
-          er.push(new OrderedEvent(e.getKey(), e.getValue()));
+          s.push(new OrderedEvent(e.getKey(), e.getValue()));
         }
       } catch (ForgottenEventException e) {
-        er.push(outOfDateOrderedEvent());
+        s.push(outOfDateOrderedEvent());
         // Close the channel
-        er.end(e);
+        s.end(e);
       }
     }
   }
@@ -102,4 +186,123 @@ public class EventManagerImpl implements EventManager {
     return "EM#"+System.identityHashCode(this);
   }
 
-}
\ No newline at end of file
+  /*
+   * Queued delivery: an event, or the end of the receiver's stream.
+   */
+  private static class Delivery {
+    final OrderedEvent event;
+    final boolean end;
+    final Throwable error;
+    final long queued = System.currentTimeMillis();
+
+    Delivery(OrderedEvent event, boolean end, Throwable error) {
+      this.event = event;
+      this.end = end;
+      this.error = error;
+    }
+  }
+
+  /*
+   * A receiver's undelivered events. At most one dispatch thread drains the
+   * queue at a time, so each receiver sees events in order.
+   */
+  private class Subscription implements Runnable {
+
+    final EventReceiver receiver;
+    final Queue<Delivery> queue = new ConcurrentLinkedQueue<Delivery>();
+    final AtomicInteger queued = new AtomicInteger();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final AtomicLong delivered = new AtomicLong();
+
+    Subscription(EventReceiver receiver) {
+      this.receiver = receiver;
+    }
+
+    void push(OrderedEvent oe) {
+      enqueue(new Delivery(oe, false, null));
+    }
+
+    void end(Throwable e) {
+      enqueue(new Delivery(null, true, e));
+    }
+
+    ReceiverStats stats() {
+      final Delivery oldest = queue.peek();
+      return new ReceiverStats(receiver.toString(), queued.get(),
+          delivered.get(), oldest == null ? 0 :
+            System.currentTimeMillis() - oldest.queued);
+    }
+
+    private void enqueue(Delivery d) {
+      queue.add(d);
+      queued.incrementAndGet();
+      schedule();
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        dispatcher.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        drain();
+      } finally {
+        scheduled.set(false);
+        // Catch anything queued after the last poll
+        if (!queue.isEmpty()) {
+          schedule();
+        }
+      }
+    }
+
+    private void drain() {
+      final List<OrderedEvent> batch = Lists.newArrayList();
+      Delivery d;
+      while ((d = queue.poll()) != null) {
+        queued.decrementAndGet();
+        if (d.end) {
+          deliver(batch);
+          try {
+            if (d.error == null) {
+              receiver.end();
+            } else {
+              receiver.end(d.error);
+            }
+          } catch (RuntimeException e) {
+            Logger.debug("Receiver failed to end: " + receiver, e);
+          }
+        } else {
+          batch.add(d.event);
+          if (batch.size() >= MAX_BATCH) {
+            deliver(batch);
+          }
+        }
+      }
+      deliver(batch);
+    }
+
+    private void deliver(List<OrderedEvent> batch) {
+      if (batch.isEmpty()) {
+        return;
+      }
+      try {
+        if (receiver instanceof BatchEventReceiver) {
+          ((BatchEventReceiver) receiver).push(ImmutableList.copyOf(batch));
+        } else {
+          for (OrderedEvent oe : batch) {
+            receiver.push(oe);
+          }
+        }
+      } catch (RuntimeException e) {
+        Logger.warn("Event receiver failed: " + receiver, e);
+      }
+      delivered.addAndGet(batch.size());
+      batch.clear();
+    }
+
+  }
+
+}
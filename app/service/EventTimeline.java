@@ -15,6 +15,11 @@ public interface EventTimeline<K extends Comparable<?>, V> {
 
   public abstract NavigableMap<K, V> getKnown();
 
+  /**
+   * @return the most recent events, up to the given number
+   */
+  public abstract NavigableMap<K, V> getLatest(int limit);
+
   public abstract NavigableMap<K, V> getSince(K id)
     throws ForgottenEventException;
 
@@ -1,5 +1,11 @@
 package service;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
 import javax.jcr.Credentials;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
@@ -8,6 +14,9 @@ import javax.jcr.SimpleCredentials;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
+import html.HtmlToPdf;
+import html.HtmlZip;
+import html.PdfConverter;
 import models.User;
 import notification.EmailNotifier;
 import notification.EmailNotifierImpl;
@@ -18,6 +27,7 @@ import org.apache.jackrabbit.core.TransientRepository;
 import org.jcrom.Jcrom;
 
 import play.Application;
+import play.Logger;
 import play.Plugin;
 import play.api.libs.JNDI;
 import play.libs.Akka;
@@ -30,6 +40,7 @@ import service.filestore.CommentStoreImpl;
 import service.filestore.FileStore;
 import service.filestore.FileStoreImpl;
 import service.filestore.FlagStore;
+import service.filestore.TextExtractor;
 import akka.actor.TypedActor;
 import akka.actor.TypedProps;
 import akka.japi.Creator;
@@ -40,6 +51,8 @@ import charts.builder.ChartCacheImpl;
 import charts.builder.DataSourceFactory;
 import charts.builder.DefaultChartBuilder;
 import charts.builder.FileStoreDataSourceFactory;
+import charts.representations.RenderCache;
+import charts.representations.RenderPool;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
@@ -57,6 +70,11 @@ public class GuiceInjectionPlugin extends Plugin {
 
   private final Application application;
   private Injector injector = null;
+  private ExecutorService chartBuilderPool = null;
+  private ExecutorService eventDispatchPool = null;
+  private ExecutorService htmlDownloadPool = null;
+  private RenderPool renderPool = null;
+  private EventTimeline<String, EventManager.Event> eventTimeline = null;
 
   public GuiceInjectionPlugin(Application application) {
     this.application = application;
@@ -69,7 +87,38 @@ public class GuiceInjectionPlugin extends Plugin {
 
   @Override
   public void onStop() {
+    if (injector != null) {
+      final FileStore fileStore = injector.getInstance(FileStore.class);
+      if (fileStore instanceof FileStoreImpl) {
+        ((FileStoreImpl) fileStore).close();
+      }
+      injector.getInstance(JcrSessionFactory.class).invalidateReadSessions();
+    }
     injector = null;
+    if (chartBuilderPool != null) {
+      chartBuilderPool.shutdownNow();
+      chartBuilderPool = null;
+    }
+    if (eventDispatchPool != null) {
+      eventDispatchPool.shutdownNow();
+      eventDispatchPool = null;
+    }
+    if (htmlDownloadPool != null) {
+      htmlDownloadPool.shutdownNow();
+      htmlDownloadPool = null;
+    }
+    if (renderPool != null) {
+      renderPool.shutdown();
+      renderPool = null;
+    }
+    if (eventTimeline instanceof Closeable) {
+      try {
+        ((Closeable) eventTimeline).close();
+      } catch (IOException e) {
+        Logger.warn("Unable to close event timeline", e);
+      }
+    }
+    eventTimeline = null;
   }
 
   public Injector getInjector() {
@@ -86,13 +135,31 @@ public class GuiceInjectionPlugin extends Plugin {
         cfgStr(ConfigConsts.CONF_JCR_USERID),
         cfgStr(ConfigConsts.CONF_JCR_PASSWORD).toCharArray());
     registerRepoInJNDI(Jcr.getRepository());
+    eventTimeline = createEventTimeline();
+    final EventTimeline<String, EventManager.Event> et = eventTimeline;
+    eventDispatchPool = EventManagerImpl.newDispatcher(
+        application.configuration().getInt(
+            "application.events.dispatchThreads",
+            EventManagerImpl.DEFAULT_DISPATCH_THREADS));
+    final ExecutorService edp = eventDispatchPool;
+    htmlDownloadPool = HtmlZip.newDownloadPool(
+        application.configuration().getInt(
+            "application.htmlExport.threads", 4));
+    final HtmlZip htmlZip = new HtmlZip(htmlDownloadPool);
     final Module eventManagerModule = new AbstractModule() {
       @Override
       protected void configure() {
         final EventManager em =
           TypedActor.get(Akka.system()).typedActorOf(
-              new TypedProps<EventManagerImpl>(
-                  EventManager.class, EventManagerImpl.class));
+              new TypedProps<EventManager>(
+                  EventManager.class, new Creator<EventManager>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public EventManager create() {
+                      return new EventManagerImpl(et, edp);
+                    }
+                  }));
         bind(EventManager.class).toInstance(em);
       }
     };
@@ -134,6 +201,30 @@ public class GuiceInjectionPlugin extends Plugin {
           .to(FileStoreDataSourceFactory.class)
           .in(Singleton.class);
         bind(Email.class).to(EmailImpl.class);
+        bind(TextExtractor.class).toInstance(new TextExtractor(
+            cacheDirectory("application.textCache.dir", "aorra-text-cache"),
+            application.configuration().getInt(
+                "application.textCache.entries", 1000),
+            application.configuration().getInt(
+                "application.textExtraction.threads", 2),
+            application.configuration().getInt(
+                "application.textExtraction.maxChars", 1000000),
+            application.configuration().getLong(
+                "application.textExtraction.maxBytes", 50L * 1024 * 1024),
+            application.configuration().getLong(
+                "application.textExtraction.timeout", 30L) * 1000));
+        bind(HtmlZip.class).toInstance(htmlZip);
+        bind(HtmlToPdf.class).toInstance(new HtmlToPdf(
+            createPdfConverter(), htmlZip,
+            cacheDirectory("application.pdfCache.dir", "aorra-pdf-cache"),
+            application.configuration().getInt(
+                "application.pdfCache.entries", 200),
+            application.configuration().getInt(
+                "application.pdf.threads", 2),
+            application.configuration().getInt(
+                "application.pdf.queueSize", 10),
+            application.configuration().getLong(
+                "application.pdf.timeout", 120L) * 1000));
       }
     };
     final Module pluginModule = new AbstractModule() {
@@ -152,6 +243,14 @@ public class GuiceInjectionPlugin extends Plugin {
     };
     final Injector intermediateInjector = Guice.createInjector(
         eventManagerModule, pluginModule, sessionModule);
+    chartBuilderPool = new ForkJoinPool(
+        application.configuration().getInt("application.chartBuilder.threads",
+            Runtime.getRuntime().availableProcessors()));
+    final ExecutorService cbp = chartBuilderPool;
+    renderPool = new RenderPool(
+        application.configuration().getInt("application.chartArchive.threads",
+            Runtime.getRuntime().availableProcessors()));
+    final RenderPool rp = renderPool;
     final Module chartBuilderModule = new AbstractModule() {
       @Override
       protected void configure() {
@@ -163,7 +262,9 @@ public class GuiceInjectionPlugin extends Plugin {
             final EventManager em =
                 intermediateInjector.getInstance(EventManager.class);
             final DefaultChartBuilder dcb = new DefaultChartBuilder(
-                intermediateInjector.getInstance(DataSourceFactory.class));
+                intermediateInjector.getInstance(DataSourceFactory.class),
+                cbp, application.configuration().getInt(
+                    "application.chartBuilder.maxConcurrency", 4));
             return new ChartCacheImpl(dcb, em);
           }
         };
@@ -175,6 +276,14 @@ public class GuiceInjectionPlugin extends Plugin {
         bind(ChartBuilder.class)
           .to(CachedChartBuilder.class)
           .in(Singleton.class);
+        bind(RenderCache.class).toInstance(new RenderCache(
+            cacheDirectory("application.renderCache.dir",
+                "aorra-render-cache"),
+            application.configuration().getLong(
+                "application.renderCache.size", 256L * 1024 * 1024),
+            application.configuration().getBoolean(
+                "application.charts.rasterizeDirectly", false)));
+        bind(RenderPool.class).toInstance(rp);
       }
     };
 
@@ -221,6 +330,51 @@ public class GuiceInjectionPlugin extends Plugin {
     return jcrom;
   }
 
+  private EventTimeline<String, EventManager.Event> createEventTimeline() {
+    final String type = application.configuration().getString(
+        "application.events.timeline.type", "memory");
+    if (type.equals("memory")) {
+      return new InMemoryEventTimeline<EventManager.Event>();
+    }
+    if (!type.equals("file")) {
+      throw new RuntimeException("Unknown event timeline type: " + type);
+    }
+    final String path = application.configuration().getString(
+        "application.events.timeline.file");
+    final File file = path != null ? new File(path) :
+        new File(System.getProperty("java.io.tmpdir"), "aorra-events.timeline");
+    try {
+      return new RingFileEventTimeline(file,
+          application.configuration().getInt(
+              "application.events.timeline.size", 16 * 1024 * 1024),
+          application.configuration().getInt(
+              "application.events.timeline.maxEvents", 100000),
+          application.configuration().getLong(
+              "application.events.timeline.maxAge", 604800L) * 1000);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private PdfConverter createPdfConverter() {
+    final String name = application.configuration().getString(
+        "application.pdf.converter", "html.WeasyprintConverter");
+    try {
+      return (PdfConverter) application.classloader().loadClass(name)
+          .newInstance();
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to create PDF converter: " + name, e);
+    }
+  }
+
+  private File cacheDirectory(String key, String defaultName) {
+    final String dir = application.configuration().getString(key);
+    if (dir != null) {
+      return new File(dir);
+    }
+    return new File(System.getProperty("java.io.tmpdir"), defaultName);
+  }
+
   private String cfgStr(String key) {
     return application.configuration().getString(key);
   }
@@ -15,9 +15,11 @@ import com.google.common.collect.ImmutableSortedMap;
 
 public class InMemoryEventTimeline<E> implements EventTimeline<String, E> {
 
-  private static final String IDENTIFIER_FORMAT =
-      "%0"+Long.toHexString(Long.MAX_VALUE).length()+"x"+
-      "%0"+Integer.toHexString(Integer.MAX_VALUE).length()+"x";
+  private static final int MILLIS_DIGITS =
+      Long.toHexString(Long.MAX_VALUE).length();
+  private static final int COUNTER_DIGITS =
+      Integer.toHexString(Integer.MAX_VALUE).length();
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
   private final AtomicInteger counter = new AtomicInteger();
   private final ConcurrentNavigableMap<String, Reference<E>> timeline =
@@ -44,6 +46,25 @@ public class InMemoryEventTimeline<E> implements EventTimeline<String, E> {
     }
   }
 
+  @Override
+  public NavigableMap<String, E> getLatest(int limit) {
+    String first = null;
+    int n = 0;
+    for (String k : timeline.descendingKeySet()) {
+      if (n++ >= limit)
+        break;
+      first = k;
+    }
+    if (first == null)
+      return ImmutableSortedMap.of();
+    try {
+      return resolveRefs(timeline.tailMap(first, true));
+    } catch (ForgottenEventException e) {
+      cleanup();
+      return getLatest(limit);
+    }
+  }
+
   @Override
   public NavigableMap<String, E> getSince(String id)
       throws ForgottenEventException {
@@ -94,8 +115,20 @@ public class InMemoryEventTimeline<E> implements EventTimeline<String, E> {
     return getIdentifier(getMillis(), counter.addAndGet(1));
   }
 
-  private static String getIdentifier(final long ms, final int c) {
-    return String.format(IDENTIFIER_FORMAT, ms, c);
+  // Zero-padded hex millis then counter, so IDs sort in time order
+  static String getIdentifier(final long ms, final int c) {
+    final char[] id = new char[MILLIS_DIGITS + COUNTER_DIGITS];
+    long v = ms;
+    for (int i = MILLIS_DIGITS - 1; i >= 0; i--) {
+      id[i] = HEX_DIGITS[(int) (v & 0xf)];
+      v >>>= 4;
+    }
+    int w = c;
+    for (int i = id.length - 1; i >= MILLIS_DIGITS; i--) {
+      id[i] = HEX_DIGITS[w & 0xf];
+      w >>>= 4;
+    }
+    return new String(id);
   }
 
   private static Long getMillis() {
@@ -8,10 +8,13 @@ import javax.jcr.SimpleCredentials;
 import
   org.apache.jackrabbit.core.security.authentication.CryptedSimpleCredentials;
 
+import play.Play;
 import play.libs.F.Function;
 
 public abstract class JcrSessionFactory {
 
+  private JcrSessionPool readSessions;
+
   /**
    * Get a new admin session.
    * @returns a new admin session
@@ -56,6 +59,62 @@ public abstract class JcrSessionFactory {
     return inSession(new SimpleCredentials(userId, new char[0]), func);
   }
 
+  /**
+   * Perform the given function in a session with the provided jackrabbit
+   * user ID, which may have been used by previous callers.
+   *
+   * Changes will be discarded, so only use this for reading.
+   *
+   * @param userId the Jackrabbit user ID to use for impersonation
+   * @param func a function to perform in the user session
+   * @returns return value of the function
+   */
+  public <R> R inReadSession(String userId, Function<Session, R> func) {
+    final JcrSessionPool pool = readSessionPool();
+    if (pool == null) {
+      return inSession(userId, func);
+    }
+    final JcrSessionPool.Pooled pooled = pool.borrow(userId);
+    try {
+      return func.apply(pooled.session);
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    } finally {
+      pool.giveBack(userId, pooled);
+    }
+  }
+
+  /**
+   * Close idle read sessions, and prevent those in use from being reused.
+   * Call this when users' group membership changes, as sessions don't see
+   * new groups.
+   */
+  public void invalidateReadSessions() {
+    final JcrSessionPool pool;
+    synchronized (this) {
+      pool = readSessions;
+    }
+    if (pool != null) {
+      pool.invalidate();
+    }
+  }
+
+  private synchronized JcrSessionPool readSessionPool() {
+    if (readSessions == null) {
+      final int size = Play.application().configuration()
+          .getInt("application.jcr.readSessions.poolSize", 4);
+      if (size <= 0) {
+        return null;
+      }
+      readSessions = new JcrSessionPool(this, size,
+          1000L * Play.application().configuration()
+            .getLong("application.jcr.readSessions.idleTimeout", 30L),
+          1000L * Play.application().configuration()
+            .getLong("application.jcr.readSessions.maxAge", 300L));
+    }
+    return readSessions;
+  }
+
   /**
    * Perform the given function in a session with the provided credentials.
    * The credentials should come from a Jackrabbit User, and will be used for
@@ -0,0 +1,183 @@
+package service;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import play.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Idle user sessions, kept so requests which only read from the repository
+ * don't have to log in and impersonate every time.
+ *
+ * Sessions are refreshed (discarding any changes) before being reused, and
+ * closed once idle or old. A session's principals are fixed when it's
+ * created, so {@link #invalidate()} should be called when group membership
+ * changes.
+ */
+class JcrSessionPool {
+
+  static class Pooled {
+    final Session session;
+    final long created;
+    final long epoch;
+    long returned;
+
+    Pooled(Session session, long created, long epoch) {
+      this.session = session;
+      this.created = created;
+      this.epoch = epoch;
+    }
+  }
+
+  private static final long SWEEP_INTERVAL = 1000L;
+
+  private final JcrSessionFactory factory;
+  private final int maxIdlePerUser;
+  private final long idleTimeout;
+  private final long maxAge;
+
+  // User ID -> idle sessions, most recently returned first. Guarded by itself.
+  private final Map<String, Deque<Pooled>> idle = Maps.newHashMap();
+  private long epoch = 0;
+  private long lastSweep = 0;
+
+  /**
+   * @param maxIdlePerUser idle sessions to keep per user
+   * @param idleTimeout milliseconds before an idle session is closed
+   * @param maxAge milliseconds after which a session won't be reused
+   */
+  JcrSessionPool(JcrSessionFactory factory, int maxIdlePerUser,
+      long idleTimeout, long maxAge) {
+    this.factory = factory;
+    this.maxIdlePerUser = maxIdlePerUser;
+    this.idleTimeout = idleTimeout;
+    this.maxAge = maxAge;
+  }
+
+  Pooled borrow(String userId) {
+    final long now = System.currentTimeMillis();
+    final long currentEpoch;
+    Pooled p = null;
+    synchronized (idle) {
+      sweep(now);
+      final Deque<Pooled> sessions = idle.get(userId);
+      if (sessions != null) {
+        p = sessions.pollFirst();
+        if (sessions.isEmpty()) {
+          idle.remove(userId);
+        }
+      }
+      currentEpoch = epoch;
+    }
+    if (p != null && now - p.created >= maxAge) {
+      logout(p);
+      p = null;
+    }
+    if (p != null) {
+      try {
+        p.session.refresh(false);
+        return p;
+      } catch (RepositoryException e) {
+        Logger.debug("Discarding pooled session for " + userId, e);
+        logout(p);
+      }
+    }
+    return new Pooled(
+        factory.newUserSession(new SimpleCredentials(userId, new char[0])),
+        now, currentEpoch);
+  }
+
+  void giveBack(String userId, Pooled p) {
+    if (!p.session.isLive()) {
+      return;
+    }
+    try {
+      if (p.session.hasPendingChanges()) {
+        Logger.warn("Discarding changes made in read-only session for " +
+            userId);
+        p.session.refresh(false);
+      }
+    } catch (RepositoryException e) {
+      logout(p);
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    synchronized (idle) {
+      Deque<Pooled> sessions = idle.get(userId);
+      if (sessions == null) {
+        sessions = Lists.newLinkedList();
+        idle.put(userId, sessions);
+      }
+      if (p.epoch == epoch && now - p.created < maxAge &&
+          sessions.size() < maxIdlePerUser) {
+        p.returned = now;
+        sessions.addFirst(p);
+        return;
+      }
+      if (sessions.isEmpty()) {
+        idle.remove(userId);
+      }
+    }
+    logout(p);
+  }
+
+  /**
+   * Close all idle sessions, and prevent sessions currently in use from
+   * being reused.
+   */
+  void invalidate() {
+    final List<Pooled> expired = Lists.newArrayList();
+    synchronized (idle) {
+      epoch++;
+      for (Deque<Pooled> sessions : idle.values()) {
+        expired.addAll(sessions);
+      }
+      idle.clear();
+    }
+    for (Pooled p : expired) {
+      logout(p);
+    }
+  }
+
+  /*
+   * Close sessions which have been idle or alive too long. Must hold the
+   * lock on idle.
+   */
+  private void sweep(long now) {
+    if (now - lastSweep < SWEEP_INTERVAL) {
+      return;
+    }
+    lastSweep = now;
+    final Iterator<Deque<Pooled>> iter = idle.values().iterator();
+    while (iter.hasNext()) {
+      final Deque<Pooled> sessions = iter.next();
+      // Oldest returned are at the end
+      while (!sessions.isEmpty()) {
+        final Pooled p = sessions.peekLast();
+        if (now - p.returned < idleTimeout && now - p.created < maxAge) {
+          break;
+        }
+        logout(sessions.pollLast());
+      }
+      if (sessions.isEmpty()) {
+        iter.remove();
+      }
+    }
+  }
+
+  private void logout(Pooled p) {
+    if (p.session.isLive()) {
+      p.session.logout();
+    }
+  }
+
+}
@@ -0,0 +1,371 @@
+package service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.FileUtils;
+
+import play.Logger;
+import service.EventManager.Event;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Event timeline stored in a fixed-size, memory-mapped ring file, so history
+ * survives restarts and isn't lost under memory pressure.
+ *
+ * Events are appended at the end of the ring, and the oldest are dropped
+ * once there are more than maxEvents, they're older than maxAge, or the file
+ * is full. IDs are indexed in memory for lookups.
+ *
+ * File layout:
+ * <pre>
+ *   header: magic, version, start, end, count, lost ID, last ID
+ *   records: length, ID millis, ID counter, serialised event
+ * </pre>
+ * A record which would run past the end of the file is written at the start
+ * instead, leaving a wrap marker (or less than a length's worth of space).
+ *
+ * Writes go to the mapped buffer, which the OS writes back even if the JVM
+ * dies. The file is forced to disk at most once per FORCE_INTERVAL while
+ * events are recorded, and on close(), so an OS crash or power loss can
+ * lose only the most recent events.
+ */
+public class RingFileEventTimeline
+    implements EventTimeline<String, Event>, Closeable {
+
+  private static final int MAGIC = 0x41455654; // "AEVT"
+  private static final int VERSION = 1;
+
+  private static final int POS_START = 8;
+  private static final int POS_END = 16;
+  private static final int POS_COUNT = 24;
+  private static final int POS_LOST = 28;
+  private static final int POS_LAST = 40;
+  private static final int HEADER_SIZE = 64;
+
+  // length + millis + counter
+  private static final int RECORD_HEADER_SIZE = 16;
+  private static final int WRAP = -1;
+
+  // Milliseconds between forcing recorded events to disk
+  private static final long FORCE_INTERVAL = 1000;
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final int maxEvents;
+  private final long maxAge;
+
+  // ID -> record offset, for every event in the ring
+  private final TreeMap<String, Integer> index = new TreeMap<String, Integer>();
+
+  // Offsets relative to the end of the header
+  private int start;
+  private int end;
+  private int count;
+  private long lostMillis;
+  private int lostCounter;
+  private long lastMillis;
+  private int lastCounter;
+  // System.nanoTime(), so changes to the clock don't matter
+  private long lastForced = System.nanoTime();
+
+  /**
+   * @param file ring file, which will be created (or recreated if its size
+   *          doesn't match) as necessary
+   * @param size total size of the file in bytes
+   * @param maxEvents maximum number of events to keep
+   * @param maxAge milliseconds to keep events for
+   */
+  public RingFileEventTimeline(File file, int size, int maxEvents,
+      long maxAge) throws IOException {
+    if (size <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Timeline size too small: " + size);
+    }
+    this.file = file;
+    this.capacity = size - HEADER_SIZE;
+    this.maxEvents = maxEvents;
+    this.maxAge = maxAge;
+    if (file.getParentFile() != null) {
+      FileUtils.forceMkdir(file.getParentFile());
+    }
+    final boolean existing = file.length() == size;
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(size);
+    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    if (!existing || !load()) {
+      reset();
+    }
+  }
+
+  @Override
+  public synchronized String getLastEventId() {
+    return InMemoryEventTimeline.getIdentifier(lastMillis, lastCounter);
+  }
+
+  @Override
+  public synchronized NavigableMap<String, Event> getKnown() {
+    return read(index);
+  }
+
+  @Override
+  public synchronized NavigableMap<String, Event> getLatest(int limit) {
+    String first = null;
+    int n = 0;
+    for (String k : index.descendingKeySet()) {
+      if (n++ >= limit) {
+        break;
+      }
+      first = k;
+    }
+    if (first == null) {
+      return ImmutableSortedMap.of();
+    }
+    return read(index.tailMap(first, true));
+  }
+
+  @Override
+  public synchronized NavigableMap<String, Event> getSince(String id)
+      throws ForgottenEventException {
+    if (id.compareTo(getLostEventId()) < 0) {
+      throw new ForgottenEventException(id + " is before known history.");
+    }
+    return read(index.tailMap(id, false));
+  }
+
+  @Override
+  public synchronized String record(Event event) {
+    final long now = System.currentTimeMillis();
+    // IDs must keep increasing, even if the clock goes backwards
+    if (now > lastMillis) {
+      lastMillis = now;
+    }
+    lastCounter++;
+    final String id = getLastEventId();
+    final byte[] data = serialise(event);
+    final int length = RECORD_HEADER_SIZE + data.length;
+    while (count > 0 && (count >= maxEvents ||
+        buffer.getLong(HEADER_SIZE + wrapped(start) + 4) < now - maxAge)) {
+      evictOldest();
+    }
+    while (!reserve(length)) {
+      if (count == 0) {
+        Logger.warn("Event too large for timeline, so forgetting it: " +
+            event);
+        lostMillis = lastMillis;
+        lostCounter = lastCounter;
+        writeHeader();
+        return id;
+      }
+      evictOldest();
+    }
+    final int offset = end;
+    buffer.position(HEADER_SIZE + offset);
+    buffer.putInt(data.length);
+    buffer.putLong(lastMillis);
+    buffer.putInt(lastCounter);
+    buffer.put(data);
+    end = offset + length;
+    count++;
+    index.put(id, offset);
+    writeHeader();
+    final long nanos = System.nanoTime();
+    if (nanos - lastForced >= FORCE_INTERVAL * 1000000) {
+      buffer.force();
+      lastForced = nanos;
+    }
+    return id;
+  }
+
+  @Override
+  public synchronized void close() {
+    buffer.force();
+    try {
+      raf.close();
+    } catch (IOException e) {
+      Logger.warn("Unable to close " + file, e);
+    }
+  }
+
+  private String getLostEventId() {
+    return InMemoryEventTimeline.getIdentifier(lostMillis, lostCounter);
+  }
+
+  private NavigableMap<String, Event> read(Map<String, Integer> offsets) {
+    final ImmutableSortedMap.Builder<String, Event> b =
+        ImmutableSortedMap.<String, Event>naturalOrder();
+    for (Map.Entry<String, Integer> e : offsets.entrySet()) {
+      b.put(e.getKey(), deserialise(e.getValue()));
+    }
+    return b.build();
+  }
+
+  /*
+   * Make room for a record of the given length at the end offset, wrapping to
+   * the start of the ring if necessary.
+   */
+  private boolean reserve(int length) {
+    if (count == 0) {
+      start = end = 0;
+      return length <= capacity;
+    }
+    if (end > start) {
+      if (capacity - end >= length) {
+        return true;
+      }
+      if (start >= length) {
+        if (capacity - end >= 4) {
+          buffer.putInt(HEADER_SIZE + end, WRAP);
+        }
+        end = 0;
+        return true;
+      }
+      return false;
+    }
+    // Ring has wrapped (or is full if end == start)
+    return start - end >= length;
+  }
+
+  private void evictOldest() {
+    start = wrapped(start);
+    lostMillis = buffer.getLong(HEADER_SIZE + start + 4);
+    lostCounter = buffer.getInt(HEADER_SIZE + start + 12);
+    index.remove(InMemoryEventTimeline.getIdentifier(lostMillis, lostCounter));
+    start += RECORD_HEADER_SIZE + buffer.getInt(HEADER_SIZE + start);
+    count--;
+    if (count == 0) {
+      start = end = 0;
+    }
+  }
+
+  /*
+   * Offset of the record at the given offset, following any wrap marker.
+   */
+  private int wrapped(int offset) {
+    if (capacity - offset < 4 || buffer.getInt(HEADER_SIZE + offset) == WRAP) {
+      return 0;
+    }
+    return offset;
+  }
+
+  private void writeHeader() {
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(POS_START, start);
+    buffer.putInt(POS_END, end);
+    buffer.putInt(POS_COUNT, count);
+    buffer.putLong(POS_LOST, lostMillis);
+    buffer.putInt(POS_LOST + 8, lostCounter);
+    buffer.putLong(POS_LAST, lastMillis);
+    buffer.putInt(POS_LAST + 8, lastCounter);
+  }
+
+  /*
+   * Read header and rebuild the index from an existing file.
+   *
+   * @return false if the file isn't a valid timeline
+   */
+  private boolean load() {
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      return false;
+    }
+    start = buffer.getInt(POS_START);
+    end = buffer.getInt(POS_END);
+    count = buffer.getInt(POS_COUNT);
+    lostMillis = buffer.getLong(POS_LOST);
+    lostCounter = buffer.getInt(POS_LOST + 8);
+    lastMillis = buffer.getLong(POS_LAST);
+    lastCounter = buffer.getInt(POS_LAST + 8);
+    if (start < 0 || start > capacity || end < 0 || end > capacity ||
+        count < 0) {
+      return false;
+    }
+    int offset = start;
+    for (int i = 0; i < count; i++) {
+      offset = wrapped(offset);
+      final int length = buffer.getInt(HEADER_SIZE + offset);
+      if (length < 0 || offset + RECORD_HEADER_SIZE + length > capacity) {
+        return false;
+      }
+      index.put(InMemoryEventTimeline.getIdentifier(
+          buffer.getLong(HEADER_SIZE + offset + 4),
+          buffer.getInt(HEADER_SIZE + offset + 12)), offset);
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    if (offset != end || index.size() != count) {
+      return false;
+    }
+    Logger.info(String.format("Loaded %d events from %s", count, file));
+    return true;
+  }
+
+  private void reset() {
+    Logger.info("Starting new event timeline in " + file);
+    index.clear();
+    start = end = count = 0;
+    // Nothing before now can be caught up on
+    lostMillis = lastMillis = System.currentTimeMillis();
+    lostCounter = lastCounter = 0;
+    writeHeader();
+  }
+
+  private static byte[] serialise(Event event) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(event.type);
+      final Map<String, String> info = event.info();
+      out.writeInt(info.size());
+      for (Map.Entry<String, String> e : info.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeBoolean(e.getValue() != null);
+        if (e.getValue() != null) {
+          out.writeUTF(e.getValue());
+        }
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Event deserialise(int offset) {
+    final byte[] data = new byte[buffer.getInt(HEADER_SIZE + offset)];
+    buffer.position(HEADER_SIZE + offset + RECORD_HEADER_SIZE);
+    buffer.get(data);
+    try {
+      final DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(data));
+      final String type = in.readUTF();
+      final int size = in.readInt();
+      final Map<String, String> info = Maps.newLinkedHashMap();
+      for (int i = 0; i < size; i++) {
+        final String key = in.readUTF();
+        info.put(key, in.readBoolean() ? in.readUTF() : null);
+      }
+      return new Event(type, info);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (RepositoryException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
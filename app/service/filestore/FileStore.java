@@ -2,6 +2,7 @@ package service.filestore;
 
 import java.io.InputStream;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
@@ -58,6 +59,65 @@ public interface FileStore {
 
     Set<Folder> getFolders() throws RepositoryException;
 
+    /**
+     * Get file or folder metadata, which is cached between sessions, without
+     * loading the entity.
+     *
+     * @return metadata with the real parent identifier (null only for the
+     *         root), or null if not found or not readable
+     */
+    TreeEntry getEntry(String id) throws RepositoryException;
+
+    /**
+     * Find files and folders with names containing the query, ignoring case.
+     *
+     * @return matches this session can read, in no particular order
+     */
+    List<TreeEntry> findByName(String query) throws RepositoryException;
+
+    /**
+     * Load the folders returned by {@link #getFolders()} and everything
+     * beneath them in a single traversal.
+     *
+     * @return folders and files in depth-first order, with each folder's
+     *         subfolders before its files
+     */
+    List<TreeEntry> getTree() throws RepositoryException;
+
+  }
+
+  /**
+   * Immutable snapshot of a file or folder, as returned by
+   * {@link Manager#getTree()}.
+   */
+  static interface TreeEntry {
+
+    String getIdentifier();
+
+    String getName();
+
+    int getDepth();
+
+    String getPath();
+
+    /**
+     * @return parent folder identifier, or null if this is one of
+     *         {@link Manager#getFolders()}
+     */
+    String getParentIdentifier();
+
+    boolean isFolder();
+
+    Permission getAccessLevel();
+
+    /* The following are null for folders */
+
+    String getMimeType();
+
+    String getDigest();
+
+    Calendar getModificationTime();
+
   }
 
   static interface FileOrFolder {
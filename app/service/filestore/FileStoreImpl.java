@@ -2,6 +2,7 @@ package service.filestore;
 
 import jackrabbit.AorraAccessManager;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.security.AccessControlException;
 import java.security.Principal;
@@ -9,7 +10,6 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -21,12 +21,19 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
 import javax.jcr.AccessDeniedException;
+import javax.jcr.Binary;
 import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.version.VersionException;
+import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 
 import models.GroupManager;
 import models.User;
@@ -35,6 +42,7 @@ import models.filestore.Child;
 import models.filestore.FileDAO;
 import models.filestore.FolderDAO;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.CompareToBuilder;
@@ -58,10 +66,12 @@ import service.filestore.roles.Admin;
 import com.google.common.base.Joiner;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -74,8 +84,15 @@ public class FileStoreImpl implements FileStore {
       StringUtils.stripStart(FILE_STORE_PATH, "/");
   public static final String FILE_STORE_NAME = "AORRA";
 
+  // Set by Jcrom to the entity class
+  private static final String CLASS_NAME = "className";
+
   private final EventManager eventManager;
   private final Jcrom jcrom;
+  // Logged out on close()
+  private final Session observerSession;
+  private final MetadataCache metadataCache;
+  private final FilenameIndex filenameIndex;
 
   @Inject
   public FileStoreImpl(
@@ -84,6 +101,15 @@ public class FileStoreImpl implements FileStore {
       final EventManager eventManager) {
     this.jcrom = jcrom;
     this.eventManager = eventManager;
+    try {
+      // Shared by listeners which keep caches in step with saved changes
+      this.observerSession = sessionFactory.newAdminSession();
+      this.metadataCache = new MetadataCache(observerSession, FILE_STORE_PATH);
+      this.filenameIndex =
+          new FilenameIndex(sessionFactory, observerSession, this);
+    } catch (RepositoryException e) {
+      throw new RuntimeException(e);
+    }
     Logger.debug(this+" - Creating file store.");
     sessionFactory.inSession(new Function<Session, Session>() {
       @Override
@@ -113,12 +139,29 @@ public class FileStoreImpl implements FileStore {
     });
   }
 
+  /**
+   * Stop keeping caches in step with the repository, and log out the session
+   * used to observe it.
+   */
+  public void close() {
+    try {
+      final ObservationManager om =
+          observerSession.getWorkspace().getObservationManager();
+      om.removeEventListener(metadataCache);
+      om.removeEventListener(filenameIndex);
+    } catch (RepositoryException e) {
+      Logger.warn("Unable to stop observing the file store", e);
+    }
+    observerSession.logout();
+  }
+
   /* (non-Javadoc)
    * @see service.filestore.FileStore#getManager(javax.jcr.Session)
    */
   @Override
   public Manager getManager(final Session session) {
-    return new Manager(session, jcrom, eventManager);
+    return new Manager(session, jcrom, eventManager, metadataCache,
+        filenameIndex);
   }
 
   /* (non-Javadoc)
@@ -129,6 +172,18 @@ public class FileStoreImpl implements FileStore {
     return eventManager;
   }
 
+  /**
+   * @return true if the node is a file or folder entity
+   */
+  static boolean isFileOrFolder(Node node) throws RepositoryException {
+    if (!node.hasProperty(CLASS_NAME)) {
+      return false;
+    }
+    final String className = node.getProperty(CLASS_NAME).getString();
+    return className.equals(models.filestore.Folder.class.getName()) ||
+        className.equals(models.filestore.File.class.getName());
+  }
+
   public static class Manager implements FileStore.Manager {
 
     private final Session session;
@@ -137,8 +192,8 @@ public class FileStoreImpl implements FileStore {
     private final FileDAO fileDAO;
     private final FolderDAO folderDAO;
     private final UserDAO userDAO;
-    private final Map<String, User> userCache =
-        new HashMap<String, User>();
+    private final MetadataCache metadataCache;
+    private final FilenameIndex filenameIndex;
 
     private final Cache<models.filestore.File, FileStore.File> fileCache =
         CacheBuilder.newBuilder().build();
@@ -146,10 +201,15 @@ public class FileStoreImpl implements FileStore {
         CacheBuilder.newBuilder().build();
     private FileStore.Folder rootFolder;
 
-    protected Manager(final Session session, final Jcrom jcrom, final EventManager eventManagerImpl) {
+    protected Manager(final Session session, final Jcrom jcrom,
+        final EventManager eventManagerImpl,
+        final MetadataCache metadataCache,
+        final FilenameIndex filenameIndex) {
       this.session = session;
       this.jcrom = jcrom;
       this.eventManagerImpl = eventManagerImpl;
+      this.metadataCache = metadataCache;
+      this.filenameIndex = filenameIndex;
       fileDAO = new FileDAO(session, jcrom);
       folderDAO = new FolderDAO(session, jcrom);
       userDAO = new UserDAO(session, jcrom);
@@ -277,6 +337,198 @@ public class FileStoreImpl implements FileStore {
       return b.build();
     }
 
+    @Override
+    public FileStore.TreeEntry getEntry(final String id)
+        throws RepositoryException {
+      final Node node;
+      try {
+        // Also checks this session can read the node
+        node = session.getNodeByIdentifier(id);
+      } catch (ItemNotFoundException e) {
+        return null;
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+      final String rawPath = node.getPath();
+      if (!(rawPath.equals(FILE_STORE_PATH) ||
+            rawPath.startsWith(FILE_STORE_PATH + "/")) ||
+          !node.hasProperty(CLASS_NAME)) {
+        return null;
+      }
+      final String className = node.getProperty(CLASS_NAME).getString();
+      final boolean folder;
+      if (className.equals(models.filestore.Folder.class.getName())) {
+        folder = true;
+      } else if (className.equals(models.filestore.File.class.getName())) {
+        folder = false;
+      } else {
+        return null;
+      }
+      final TreeEntry cached = metadataCache.get(id, new Callable<TreeEntry>() {
+        @Override
+        public TreeEntry call() throws RepositoryException {
+          final Iterable<String> parts = NodeWrapper.getPathParts(session, id);
+          final String path = NodeWrapper.getPathFromParts(parts);
+          final String parentId = path.equals("/") ? null :
+              node.getParent().getParent().getIdentifier();
+          return new TreeEntry(id,
+              path.equals("/") ? FILE_STORE_NAME : node.getName(),
+              path, Iterables.size(parts) - 1, parentId, folder, null,
+              folder ? null : getMimeType(node),
+              folder ? null : getDigest(node),
+              folder ? null : getModificationTime(node));
+        }
+      });
+      return cached.withAccessLevel(getAccessLevel(node, folder));
+    }
+
+    @Override
+    public List<FileStore.TreeEntry> findByName(final String query)
+        throws RepositoryException {
+      final ImmutableList.Builder<FileStore.TreeEntry> b =
+          ImmutableList.builder();
+      for (String id : filenameIndex.search(query)) {
+        final FileStore.TreeEntry entry = getEntry(id);
+        if (entry != null) {
+          b.add(entry);
+        }
+      }
+      return b.build();
+    }
+
+    @Override
+    public List<FileStore.TreeEntry> getTree() throws RepositoryException {
+      if (!session.nodeExists(FILE_STORE_PATH)) {
+        return Collections.emptyList();
+      }
+      final ImmutableList.Builder<FileStore.TreeEntry> b =
+          ImmutableList.builder();
+      addAccessible(b, session.getNode(FILE_STORE_PATH), "/", 0);
+      return b.build();
+    }
+
+    /*
+     * Equivalent of getFolders(Folder) for raw nodes. Paths are built from
+     * the parent, rather than resolved from the root for every node, and
+     * nodes which can't be read won't be returned by the session at all.
+     */
+    private void addAccessible(
+        final ImmutableList.Builder<FileStore.TreeEntry> b,
+        final Node folder, final String path, final int depth)
+        throws RepositoryException {
+      final Permission access = getAccessLevel(folder, true);
+      if (access != Permission.NONE) {
+        addFolder(b, folder, path, depth, null, access);
+        return;
+      }
+      for (final Node child : children(folder, "folders")) {
+        addAccessible(b, child, childPath(path, child), depth + 1);
+      }
+    }
+
+    private void addFolder(
+        final ImmutableList.Builder<FileStore.TreeEntry> b,
+        final Node folder, final String path, final int depth,
+        final String parentId, final Permission access)
+        throws RepositoryException {
+      final String id = folder.getIdentifier();
+      b.add(new TreeEntry(id,
+          path.equals("/") ? FILE_STORE_NAME : folder.getName(),
+          path, depth, parentId, true, access, null, null, null));
+      for (final Node child : children(folder, "folders")) {
+        addFolder(b, child, childPath(path, child), depth + 1, id,
+            getAccessLevel(child, true));
+      }
+      for (final Node file : children(folder, "files")) {
+        b.add(new TreeEntry(file.getIdentifier(), file.getName(),
+            childPath(path, file), depth + 1, id, false,
+            getAccessLevel(file, false),
+            getMimeType(file), getDigest(file), getModificationTime(file)));
+      }
+    }
+
+    private Iterable<Node> children(final Node folder, final String container)
+        throws RepositoryException {
+      if (!folder.hasNode(container)) {
+        return Collections.emptyList();
+      }
+      final List<Node> nodes = Lists.newArrayList();
+      final NodeIterator iter = folder.getNode(container).getNodes();
+      while (iter.hasNext()) {
+        nodes.add(iter.nextNode());
+      }
+      return nodes;
+    }
+
+    private static String childPath(final String parentPath, final Node child)
+        throws RepositoryException {
+      return (parentPath.equals("/") ? "" : parentPath) + "/" + child.getName();
+    }
+
+    /*
+     * As per NodeWrapper.getAccessLevel(). Nodes returned by the session are
+     * always readable, so only write access needs to be checked.
+     */
+    private Permission getAccessLevel(final Node node, final boolean folder)
+        throws RepositoryException {
+      if (session.hasPermission(node.getPath(), "set_property")) {
+        return Permission.RW;
+      }
+      if (folder && !node.hasNode("files")) {
+        // Only readable because it's an ancestor of a readable folder
+        return Permission.NONE;
+      }
+      return Permission.RO;
+    }
+
+    /*
+     * Jcrom stores the data as an nt:file node, either directly under the
+     * "data" node or inside it as a container.
+     */
+    private static String getMimeType(final Node file)
+        throws RepositoryException {
+      if (!file.hasNode("data")) {
+        return null;
+      }
+      Node data = file.getNode("data");
+      if (!data.hasNode(Node.JCR_CONTENT)) {
+        final NodeIterator iter = data.getNodes();
+        if (!iter.hasNext()) {
+          return null;
+        }
+        data = iter.nextNode();
+      }
+      final String path = Node.JCR_CONTENT + "/" + Property.JCR_MIMETYPE;
+      return data.hasProperty(path) ? data.getProperty(path).getString() : null;
+    }
+
+    private static String getDigest(final Node file)
+        throws RepositoryException {
+      if (!file.hasProperty("sha512")) {
+        return null;
+      }
+      final Binary binary = file.getProperty("sha512").getBinary();
+      try {
+        final InputStream in = binary.getStream();
+        try {
+          return new HexBinaryAdapter().marshal(IOUtils.toByteArray(in))
+              .toLowerCase();
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new RepositoryException(e);
+      } finally {
+        binary.dispose();
+      }
+    }
+
+    private static Calendar getModificationTime(final Node file)
+        throws RepositoryException {
+      return file.hasProperty(Property.JCR_LAST_MODIFIED) ?
+          file.getProperty(Property.JCR_LAST_MODIFIED).getDate() : null;
+    }
+
     @Override
     public FileStore.Folder getRoot() throws RepositoryException {
       if (rootFolder == null) {
@@ -302,13 +554,17 @@ public class FileStoreImpl implements FileStore {
     }
 
     public User getUserFromJackrabbitID(final String jackrabbitUserId) {
-      if (!userCache.containsKey(jackrabbitUserId)) {
-        userCache.put(jackrabbitUserId,
-            getUserDAO().findByJackrabbitID(jackrabbitUserId));
-        Logger.debug("Adding "+jackrabbitUserId+" to user ID cache: "+
-            userCache.get(jackrabbitUserId));
+      if (jackrabbitUserId == null) {
+        return null;
       }
-      return userCache.get(jackrabbitUserId);
+      return metadataCache.getAuthor(jackrabbitUserId, new Callable<User>() {
+        @Override
+        public User call() {
+          final User user = getUserDAO().findByJackrabbitID(jackrabbitUserId);
+          Logger.debug("Adding "+jackrabbitUserId+" to user ID cache: "+user);
+          return user;
+        }
+      });
     }
 
     protected UserDAO getUserDAO() {
@@ -321,6 +577,97 @@ public class FileStoreImpl implements FileStore {
 
   }
 
+  protected static class TreeEntry implements FileStore.TreeEntry {
+
+    private final String id;
+    private final String name;
+    private final String path;
+    private final int depth;
+    private final String parentId;
+    private final boolean folder;
+    private final Permission accessLevel;
+    private final String mimeType;
+    private final String digest;
+    private final Calendar modificationTime;
+
+    protected TreeEntry(String id, String name, String path, int depth,
+        String parentId, boolean folder, Permission accessLevel,
+        String mimeType, String digest, Calendar modificationTime) {
+      this.id = id;
+      this.name = name;
+      this.path = path;
+      this.depth = depth;
+      this.parentId = parentId;
+      this.folder = folder;
+      this.accessLevel = accessLevel;
+      this.mimeType = mimeType;
+      this.digest = digest;
+      this.modificationTime = modificationTime;
+    }
+
+    @Override
+    public String getIdentifier() {
+      return id;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public int getDepth() {
+      return depth;
+    }
+
+    @Override
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public String getParentIdentifier() {
+      return parentId;
+    }
+
+    @Override
+    public boolean isFolder() {
+      return folder;
+    }
+
+    @Override
+    public Permission getAccessLevel() {
+      return accessLevel;
+    }
+
+    @Override
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    @Override
+    public String getDigest() {
+      return digest;
+    }
+
+    @Override
+    public Calendar getModificationTime() {
+      return modificationTime == null ? null :
+        (Calendar) modificationTime.clone();
+    }
+
+    protected TreeEntry withAccessLevel(Permission accessLevel) {
+      return new TreeEntry(id, name, path, depth, parentId, folder,
+          accessLevel, mimeType, digest, modificationTime);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s [%s]", path, id);
+    }
+
+  }
+
   public static class Folder extends NodeWrapper<models.filestore.Folder> implements FileStore.Folder {
 
     private Set<FileStore.Folder> folders = null;
@@ -756,7 +1103,7 @@ public class FileStoreImpl implements FileStore {
       return Iterables.size(pathParts) - 1;
     }
 
-    private static String getPathFromParts(Iterable<String> pathParts) {
+    protected static String getPathFromParts(Iterable<String> pathParts) {
       final String path = Joiner.on('/').join(pathParts);
       return path.isEmpty() ? "/" : path;
     }
@@ -0,0 +1,208 @@
+package service.filestore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
+
+import play.Logger;
+import play.libs.F.Function;
+import service.JcrSessionFactory;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Index of file and folder names by trigram, so names containing a query can
+ * be found without scanning the repository.
+ *
+ * The index is loaded on first use, and kept up to date by a synchronous
+ * repository observer. It runs during save, once changes are visible to
+ * every session, and only marks nodes as stale. Stale names are read again
+ * from the repository at the next search.
+ *
+ * Results are not filtered by access, so must be checked with the requesting
+ * session.
+ */
+class FilenameIndex implements SynchronousEventListener {
+
+  private static final int GRAM = 3;
+
+  private final JcrSessionFactory sessionFactory;
+  private final FileStoreImpl fileStore;
+
+  // Guarded by this
+  private final Map<String, String> names = Maps.newHashMap();
+  private final SetMultimap<String, String> grams = HashMultimap.create();
+  // Set by the observer without taking the lock, so saves never wait on a
+  // search
+  private final Set<String> stale = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+  private final AtomicBoolean dropped = new AtomicBoolean(true);
+
+  /**
+   * @param observerSession session to observe the file store with
+   */
+  FilenameIndex(JcrSessionFactory sessionFactory, Session observerSession,
+      FileStoreImpl fileStore) throws RepositoryException {
+    this.sessionFactory = sessionFactory;
+    this.fileStore = fileStore;
+    observerSession.getWorkspace().getObservationManager().addEventListener(
+        this, Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED,
+        FileStoreImpl.FILE_STORE_PATH, true, null, null, false);
+  }
+
+  @Override
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      final Event event = events.nextEvent();
+      try {
+        if (event.getType() == Event.NODE_REMOVED &&
+            isFolderPath(event.getPath())) {
+          // Everything inside a removed folder has gone too
+          dropped.set(true);
+          return;
+        }
+        stale.add(event.getIdentifier());
+      } catch (RepositoryException e) {
+        Logger.warn("Unable to identify changed node, so dropping index", e);
+        dropped.set(true);
+        return;
+      }
+    }
+  }
+
+  // Folders are kept in a "folders" child of their parent
+  private static boolean isFolderPath(String path) {
+    return path.substring(0, path.lastIndexOf('/')).endsWith("/folders");
+  }
+
+  /**
+   * @return IDs of files and folders with names containing the query,
+   *         ignoring case
+   */
+  synchronized List<String> search(String query) {
+    final String q = query.toLowerCase();
+    update();
+    final Collection<String> candidates;
+    if (q.length() < GRAM) {
+      candidates = names.keySet();
+    } else {
+      // Start with the rarest trigram, then narrow down
+      Set<String> smallest = null;
+      final List<String> qgrams = grams(q);
+      for (String gram : qgrams) {
+        final Set<String> ids = grams.get(gram);
+        if (smallest == null || ids.size() < smallest.size()) {
+          smallest = ids;
+        }
+      }
+      final Set<String> ids = Sets.newHashSet(smallest);
+      for (String gram : qgrams) {
+        ids.retainAll(grams.get(gram));
+      }
+      candidates = ids;
+    }
+    final ImmutableList.Builder<String> b = ImmutableList.builder();
+    for (String id : candidates) {
+      // Trigrams can match out of order, so check the whole name
+      if (names.get(id).contains(q)) {
+        b.add(id);
+      }
+    }
+    return b.build();
+  }
+
+  /*
+   * Load the index, or reload stale names. Must hold the lock.
+   */
+  private void update() {
+    if (!dropped.get() && stale.isEmpty()) {
+      return;
+    }
+    sessionFactory.inSession(new Function<Session, Void>() {
+      @Override
+      public Void apply(Session session) throws Exception {
+        if (dropped.getAndSet(false)) {
+          load(session);
+          return null;
+        }
+        // Straight from the repository, as the change is already saved
+        for (String id : stale) {
+          stale.remove(id);
+          remove(id);
+          try {
+            final Node node = session.getNodeByIdentifier(id);
+            if (FileStoreImpl.isFileOrFolder(node)) {
+              put(id, node.getName());
+            }
+          } catch (ItemNotFoundException e) {
+            // Deleted
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  private void load(Session session) throws RepositoryException {
+    final long started = System.currentTimeMillis();
+    names.clear();
+    grams.clear();
+    stale.clear();
+    try {
+      for (FileStore.TreeEntry entry :
+          fileStore.getManager(session).getTree()) {
+        put(entry.getIdentifier(), entry.getName());
+      }
+    } catch (RepositoryException | RuntimeException e) {
+      // Try again next time
+      dropped.set(true);
+      throw e;
+    }
+    Logger.debug(String.format("Indexed %d names in %dms",
+        names.size(), System.currentTimeMillis() - started));
+  }
+
+  private void put(String id, String name) {
+    final String lower = name.toLowerCase();
+    names.put(id, lower);
+    for (String gram : grams(lower)) {
+      grams.put(gram, id);
+    }
+  }
+
+  private void remove(String id) {
+    final String lower = names.remove(id);
+    if (lower != null) {
+      for (String gram : grams(lower)) {
+        grams.remove(gram, id);
+      }
+    }
+  }
+
+  private static List<String> grams(String s) {
+    final List<String> l = Lists.newArrayList();
+    for (int i = 0; i + GRAM <= s.length(); i++) {
+      l.add(s.substring(i, i + GRAM));
+    }
+    return l;
+  }
+
+}
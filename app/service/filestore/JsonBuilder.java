@@ -75,6 +75,18 @@ public class JsonBuilder {
     return l;
   }
 
+  /**
+   * Equivalent to {@link #toJson(Iterable)} for
+   * {@link FileStore.Manager#getFolders()}, but from a tree snapshot.
+   */
+  public ArrayNode toJsonTree(final Iterable<FileStore.TreeEntry> tree) {
+    final ArrayNode l = JsonNodeFactory.instance.arrayNode();
+    for (final FileStore.TreeEntry entry : tree) {
+      l.add(toJsonShallow(entry));
+    }
+    return l;
+  }
+
   public ObjectNode toJson(final Flag flag)
       throws RepositoryException {
     final ObjectNode json = Json.newObject();
@@ -118,6 +130,33 @@ public class JsonBuilder {
     return json;
   }
 
+  public ObjectNode toJsonShallow(final FileStore.TreeEntry entry) {
+    final ObjectNode json = JsonNodeFactory.instance.objectNode();
+    json.put("id", entry.getIdentifier());
+    json.put("name", entry.getName());
+    json.put("path", entry.getPath());
+    if (entry.isFolder()) {
+      json.put("type", "folder");
+      if (entry.getParentIdentifier() != null) {
+        json.put("parent", entry.getParentIdentifier());
+      }
+      json.put("accessLevel", entry.getAccessLevel().toString());
+    } else {
+      json.put("mime", entry.getMimeType());
+      json.put("sha512", entry.getDigest());
+      json.put("type", "file");
+      json.put("parent", entry.getParentIdentifier());
+      json.put("accessLevel", entry.getAccessLevel().toString());
+      if (entry.getModificationTime() != null) {
+        json.put("modified",
+            ISO8601Utils.format(
+                entry.getModificationTime().getTime(), true,
+                TimeZone.getDefault()));
+      }
+    }
+    return json;
+  }
+
   public JsonNode toJson(Group group, List<User> members)
       throws RepositoryException {
     final ObjectNode json = Json.newObject();
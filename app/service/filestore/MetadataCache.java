@@ -0,0 +1,125 @@
+package service.filestore;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import models.User;
+
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
+
+import play.Logger;
+import play.Play;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * File and folder metadata shared between all sessions, so looking up a node
+ * by identifier doesn't require loading and wrapping its entity.
+ *
+ * Entries hold no permission information, so access must still be checked
+ * with the requesting session. They are invalidated by a synchronous
+ * repository observer, which runs during save once changes are visible to
+ * every session, so an entry can't be reloaded from the old state. Entries
+ * also expire, as a backstop.
+ */
+class MetadataCache implements SynchronousEventListener {
+
+  private final Cache<String, FileStoreImpl.TreeEntry> entries;
+
+  // Jackrabbit user ID -> user. Users aren't observed, so these just expire.
+  private final Cache<String, Optional<User>> authors;
+
+  // Incremented by every invalidation, so loads which overlap one aren't
+  // cached
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param observerSession session to observe the file store with
+   */
+  MetadataCache(Session observerSession, String path)
+      throws RepositoryException {
+    final long size = Play.application().configuration()
+        .getLong("application.filestore.metadataCache.size", 10000L);
+    final long expiry = Play.application().configuration()
+        .getLong("application.filestore.metadataCache.expiry", 300L);
+    entries = CacheBuilder.newBuilder()
+        .maximumSize(size)
+        .expireAfterWrite(expiry, TimeUnit.SECONDS)
+        .build();
+    authors = CacheBuilder.newBuilder()
+        .maximumSize(1000)
+        .expireAfterWrite(expiry, TimeUnit.SECONDS)
+        .build();
+    observerSession.getWorkspace().getObservationManager().addEventListener(
+        this,
+        Event.NODE_MOVED | Event.NODE_REMOVED | Event.PROPERTY_ADDED |
+        Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED,
+        path, true, null, null, false);
+  }
+
+  @Override
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      final Event event = events.nextEvent();
+      generation.incrementAndGet();
+      if (event.getType() == Event.NODE_MOVED) {
+        // Paths of everything inside a moved folder have changed
+        entries.invalidateAll();
+        continue;
+      }
+      try {
+        // The removed node, or the node owning the property
+        entries.invalidate(event.getIdentifier());
+      } catch (RepositoryException e) {
+        Logger.warn("Unable to identify changed node, so clearing cache", e);
+        entries.invalidateAll();
+      }
+    }
+  }
+
+  FileStoreImpl.TreeEntry get(String id,
+      final Callable<FileStoreImpl.TreeEntry> loader) {
+    final long started = generation.get();
+    final boolean[] loaded = new boolean[1];
+    try {
+      final FileStoreImpl.TreeEntry entry = entries.get(id,
+          new Callable<FileStoreImpl.TreeEntry>() {
+        @Override
+        public FileStoreImpl.TreeEntry call() throws Exception {
+          loaded[0] = true;
+          return loader.call();
+        }
+      });
+      if (loaded[0] && generation.get() != started) {
+        // May have been read before a change was saved
+        entries.invalidate(id);
+      }
+      return entry;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  User getAuthor(String jackrabbitUserId, final Callable<User> loader) {
+    try {
+      return authors.get(jackrabbitUserId, new Callable<Optional<User>>() {
+        @Override
+        public Optional<User> call() throws Exception {
+          return Optional.fromNullable(loader.call());
+        }
+      }).orNull();
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+}
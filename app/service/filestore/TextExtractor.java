@@ -0,0 +1,398 @@
+package service.filestore;
+
+import helpers.ExtractionHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import play.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Extracts plain text from file versions on a bounded background pool, and
+ * keeps the result on disk.
+ *
+ * Results are keyed by the version's digest, so each version is only parsed
+ * once however many times it's viewed, and concurrent requests for the same
+ * version share a single parse. Failures are remembered for a while, so
+ * pathological documents aren't parsed over and over.
+ *
+ * The first requesting thread copies the version's data to a temporary
+ * file, so the parse doesn't depend on the request's session, and documents
+ * over a size limit are refused. Text is truncated at a character limit.
+ * Callers stop waiting after a timeout. A parse which itself runs longer
+ * than the timeout stops at its next read of the data or write of text, and
+ * only then is the failure remembered, so documents which just waited in the
+ * queue under load aren't.
+ */
+public class TextExtractor {
+
+  private static final String SUFFIX = ".txt";
+
+  public static class ExtractionException extends Exception {
+    public ExtractionException(String message) {
+      super(message);
+    }
+    private static final long serialVersionUID = 1L;
+  }
+
+  private final File directory;
+  private final int maxEntries;
+  private final int maxChars;
+  private final long maxBytes;
+  private final long timeout;
+  private final ThreadPoolExecutor executor;
+
+  // Digest -> extraction in progress
+  private final ConcurrentMap<String, Future<File>> inFlight =
+      new ConcurrentHashMap<String, Future<File>>();
+  // Digest -> reason extraction failed
+  private final Cache<String, String> failures = CacheBuilder.newBuilder()
+      .maximumSize(1000)
+      .expireAfterWrite(10, TimeUnit.MINUTES)
+      .build();
+
+  /**
+   * @param maxEntries number of extracted texts to keep
+   * @param threads threads parsing documents
+   * @param maxChars characters of text to keep from each document
+   * @param maxBytes largest document to parse
+   * @param timeout milliseconds to wait for text to be extracted, and for a
+   *                parse to run
+   */
+  public TextExtractor(File directory, int maxEntries, int threads,
+      int maxChars, long maxBytes, long timeout) {
+    this.directory = directory;
+    this.maxEntries = maxEntries;
+    this.maxChars = maxChars;
+    this.maxBytes = maxBytes;
+    this.timeout = timeout;
+    try {
+      FileUtils.forceMkdir(directory);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(100), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r,
+                "text extractor " + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /*
+   * Parses a copy of a version's data, once it's been made.
+   */
+  private class Parse implements Callable<File> {
+    private final File text;
+    private volatile File data;
+
+    Parse(File text) {
+      this.text = text;
+    }
+
+    @Override
+    public File call() throws Exception {
+      return extract(data, text);
+    }
+  }
+
+  /*
+   * An extraction, reserved before the version's data is copied so
+   * concurrent requests for the same version wait for it rather than copying
+   * the data again.
+   */
+  private class Extraction extends FutureTask<File> {
+    private final String digest;
+    private final Parse parse;
+
+    Extraction(String digest, File text) {
+      this(digest, new Parse(text));
+    }
+
+    private Extraction(String digest, Parse parse) {
+      super(parse);
+      this.digest = digest;
+      this.parse = parse;
+    }
+
+    void start(File data) {
+      parse.data = data;
+      executor.execute(this);
+    }
+
+    void fail(Exception e) {
+      setException(e);
+    }
+
+    @Override
+    protected void done() {
+      // Also called when cancelled or failed before a worker picked it up
+      inFlight.remove(digest, this);
+      if (parse.data != null) {
+        FileUtils.deleteQuietly(parse.data);
+      }
+    }
+  }
+
+  /**
+   * Get the version's plain text as a UTF-8 file, extracting it if that
+   * hasn't been done already.
+   */
+  public File getText(final FileStore.File version)
+      throws RepositoryException, ExtractionException {
+    final String digest = version.getDigest();
+    final File text = new File(directory, digest + SUFFIX);
+    if (text.exists()) {
+      // Keep recently used text from being pruned
+      text.setLastModified(System.currentTimeMillis());
+      return text;
+    }
+    final String failure = failures.getIfPresent(digest);
+    if (failure != null) {
+      throw new ExtractionException(failure);
+    }
+    Future<File> future = inFlight.get(digest);
+    if (future == null) {
+      final Extraction extraction = new Extraction(digest, text);
+      final Future<File> existing = inFlight.putIfAbsent(digest, extraction);
+      if (existing == null) {
+        future = extraction;
+        final File data;
+        try {
+          data = copy(version, digest);
+        } catch (ExtractionException | RuntimeException e) {
+          // Requests waiting for this extraction see the same failure
+          extraction.fail(e);
+          throw e;
+        }
+        try {
+          extraction.start(data);
+        } catch (RejectedExecutionException e) {
+          extraction.cancel(false);
+          throw new ExtractionException("Too many documents waiting for " +
+              "text extraction. Please try again later.");
+        }
+      } else {
+        // Another request got there first
+        future = existing;
+      }
+    }
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // Still queued, or parsing. A parse stops itself once it has run for
+      // the timeout, so there's nothing to cancel here.
+      throw new ExtractionException("Text extraction is taking a while. " +
+          "Please try again later.");
+    } catch (CancellationException e) {
+      throw new ExtractionException("Too many documents waiting for " +
+          "text extraction. Please try again later.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ExtractionException) {
+        throw (ExtractionException) e.getCause();
+      }
+      for (Throwable t : Throwables.getCausalChain(e)) {
+        if (t instanceof ParseTimeoutException) {
+          failures.put(digest, "Text extraction took too long.");
+          throw new ExtractionException("Text extraction took too long.");
+        }
+      }
+      Logger.warn("Unable to extract text from " + digest, e.getCause());
+      failures.put(digest, "Unable to extract text.");
+      throw new ExtractionException("Unable to extract text.");
+    } catch (InterruptedException e) {
+      throw new ExtractionException("Interrupted.");
+    }
+  }
+
+  /*
+   * Copy the version's data while its session is open, refusing documents
+   * too large to parse.
+   */
+  private File copy(FileStore.File version, String digest)
+      throws ExtractionException {
+    final File data;
+    try {
+      data = File.createTempFile("extract", ".data", directory);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    final InputStream in = version.getData();
+    final OutputStream out;
+    try {
+      out = new FileOutputStream(data);
+      try {
+        final byte[] buffer = new byte[8192];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          total += n;
+          if (total > maxBytes) {
+            failures.put(digest, "Document too large for text extraction.");
+            throw new ExtractionException(
+                "Document too large for text extraction.");
+          }
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        IOUtils.closeQuietly(out);
+      }
+    } catch (IOException e) {
+      FileUtils.deleteQuietly(data);
+      throw new RuntimeException(e);
+    } catch (ExtractionException e) {
+      FileUtils.deleteQuietly(data);
+      throw e;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    return data;
+  }
+
+  private File extract(File data, File text) throws IOException {
+    final long started = System.currentTimeMillis();
+    // Measured from when the parse starts, not from when it was queued
+    final long deadline = started + timeout;
+    final File tempFile = File.createTempFile("extract", ".tmp", directory);
+    final InputStream in = new FilterInputStream(new FileInputStream(data)) {
+      @Override
+      public int read() throws IOException {
+        checkDeadline(deadline);
+        return super.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        checkDeadline(deadline);
+        return super.read(b, off, len);
+      }
+    };
+    final Writer w = new FilterWriter(new OutputStreamWriter(
+        new FileOutputStream(tempFile), Charsets.UTF_8)) {
+      @Override
+      public void write(int c) throws IOException {
+        checkDeadline(deadline);
+        super.write(c);
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        checkDeadline(deadline);
+        super.write(cbuf, off, len);
+      }
+
+      @Override
+      public void write(String str, int off, int len) throws IOException {
+        checkDeadline(deadline);
+        super.write(str, off, len);
+      }
+    };
+    try {
+      ExtractionHelper.writePlainText(in, w, maxChars);
+    } catch (RuntimeException e) {
+      IOUtils.closeQuietly(w);
+      tempFile.delete();
+      throw e;
+    } finally {
+      IOUtils.closeQuietly(in);
+      IOUtils.closeQuietly(w);
+    }
+    if (!tempFile.renameTo(text)) {
+      tempFile.delete();
+      throw new IOException("Unable to store extracted text as " + text);
+    }
+    Logger.debug(String.format("Extracted text from %s in %dms",
+        text.getName(), System.currentTimeMillis() - started));
+    prune();
+    return text;
+  }
+
+  /*
+   * Thrown from the data or text streams once a parse has run too long.
+   */
+  private static class ParseTimeoutException extends InterruptedIOException {
+    ParseTimeoutException() {
+      super("Text extraction took too long");
+    }
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static void checkDeadline(long deadline)
+      throws InterruptedIOException {
+    if (System.currentTimeMillis() > deadline) {
+      throw new ParseTimeoutException();
+    }
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Text extraction cancelled");
+    }
+  }
+
+  /*
+   * Delete the least recently used text once there's too much.
+   */
+  private synchronized void prune() {
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null || files.length <= maxEntries) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (int i = 0; i < files.length - maxEntries; i++) {
+      files[i].delete();
+    }
+  }
+
+}
@@ -1,8 +1,11 @@
 package svg;
 
+import graphics.FontCache;
+
 import java.awt.BasicStroke;
 import java.awt.Shape;
 import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -22,11 +25,27 @@ public class AorraSvgGraphics2D extends SVGGraphics2D {
 
     private boolean inject = false;
 
+    private final boolean textAsShapes;
+
     public AorraSvgGraphics2D(Document domFactory,
             ImageHandler imageHandler,
             ExtensionHandler extensionHandler,
             boolean textAsShapes) {
         super(domFactory, imageHandler, extensionHandler, textAsShapes);
+        this.textAsShapes = textAsShapes;
+    }
+
+    /**
+     * Same as the superclass, except text outlines are cached.
+     */
+    @Override
+    public void drawString(String s, float x, float y) {
+        if(textAsShapes) {
+            Shape outline = FontCache.outline(getFont(), getFontRenderContext(), s);
+            fill(AffineTransform.getTranslateInstance(x, y).createTransformedShape(outline));
+        } else {
+            super.drawString(s, x, y);
+        }
     }
 
     @Override
@@ -0,0 +1,96 @@
+package charts;
+
+import static java.util.Arrays.asList;
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.transcoder.TranscoderOutput;
+import org.apache.batik.transcoder.image.PNGTranscoder;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import charts.builder.ChartBuilder;
+import charts.builder.ChartBuilderTest;
+import charts.builder.DataSource;
+import charts.builder.DataSourceFactory;
+import charts.builder.DefaultChartBuilder;
+import charts.builder.LazyChart;
+import charts.representations.Format;
+import charts.representations.RenderCache;
+
+import com.google.common.io.Files;
+
+public class AbstractChartTest {
+
+  private final static ChartBuilder chartBuilder = new DefaultChartBuilder(
+      new DataSourceFactory() {
+        @Override
+        public DataSource getDataSource(String id) throws Exception {
+          return ChartBuilderTest.getDatasource(ChartType.valueOf(id));
+        }
+      });
+
+  @Test
+  public void transcodesDomAsItWouldTheSvg() throws Exception {
+    final Chart chart = marine();
+    final byte[] svg = chart.outputAs(Format.SVG, new Dimension())
+        .getContent();
+    // Transcode the serialised SVG, as was done before the DOM was kept
+    final TranscoderInput input = new TranscoderInput(
+        new StringReader(new String(svg, "UTF-8")));
+    input.setURI("file:///test.svg");
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new PNGTranscoder().transcode(input, new TranscoderOutput(os));
+    final BufferedImage expected = image(os.toByteArray());
+    final BufferedImage actual = image(
+        chart.outputAs(Format.PNG, new Dimension()).getContent());
+    assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+    assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+    for (int x = 0; x < expected.getWidth(); x++) {
+      for (int y = 0; y < expected.getHeight(); y++) {
+        assertThat(actual.getRGB(x, y)).as(x + "," + y)
+          .isEqualTo(expected.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void rasterizesDirectlyWhenConfigured() throws Exception {
+    final Chart chart = marine();
+    final Dimension d = new Dimension(200, 0);
+    final BufferedImage transcoded =
+        image(chart.outputAs(Format.PNG, d).getContent());
+    final File dir = Files.createTempDir();
+    try {
+      final BufferedImage drawn = image(new RenderCache(dir, 1024 * 1024, true)
+          .outputAs(null, chart, Format.PNG, d).getContent());
+      assertThat(drawn.getWidth()).isEqualTo(transcoded.getWidth());
+      assertThat(drawn.getHeight()).isEqualTo(transcoded.getHeight());
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+
+  private static Chart marine() throws Exception {
+    final Chart chart = chartBuilder.getCharts(ChartType.MARINE.name(),
+        ChartType.MARINE, asList(Region.GBR),
+        Collections.<String, String>emptyMap()).get(0);
+    assertThat(LazyChart.unwrap(chart)).isInstanceOf(AbstractChart.class);
+    return chart;
+  }
+
+  private static BufferedImage image(byte[] png) throws Exception {
+    return ImageIO.read(new ByteArrayInputStream(png));
+  }
+
+}
@@ -0,0 +1,187 @@
+package charts.builder;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static test.AorraTestUtils.fakeAorraApp;
+import static test.AorraTestUtils.injector;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import play.libs.Akka;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+import service.EventManager;
+import akka.actor.TypedActor;
+import akka.actor.TypedProps;
+import akka.japi.Creator;
+import charts.AbstractChart;
+import charts.Chart;
+import charts.Chart.UnsupportedFormatException;
+import charts.ChartDescription;
+import charts.Drawable;
+
+public class ChartCacheImplTest {
+
+  @Test
+  public void cancelsBuildOnTimeout() {
+    play.test.Helpers.running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final BlockingFactory dsf = new BlockingFactory();
+        final ChartCache cc = chartCache(dsf, 1);
+        try {
+          Await.result(cc.getCharts("foo"), Duration.create(10, "seconds"));
+          fail("Should have timed out");
+        } catch (TimeoutException e) {
+          // Expected
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        } finally {
+          TypedActor.get(Akka.system()).stop(cc);
+        }
+        try {
+          assertThat(dsf.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        assertThat(dsf.calls.get()).isEqualTo(1);
+      }
+    });
+  }
+
+  @Test
+  public void restartsBuildWhenFileChanges() {
+    play.test.Helpers.running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final BlockingFactory dsf = new BlockingFactory();
+        final ChartCache cc = chartCache(dsf, 30);
+        try {
+          final Future<List<Chart>> f = cc.getCharts("foo");
+          assertThat(dsf.started.await(5, TimeUnit.SECONDS)).isTrue();
+          cc.cleanup("foo");
+          // The old build is stopped, and the new one finishes straight away
+          assertThat(dsf.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+          final List<Chart> charts =
+              Await.result(f, Duration.create(10, "seconds"));
+          assertThat(charts).isEmpty();
+          assertThat(dsf.calls.get()).isEqualTo(2);
+          assertThat(cc.stats().restarts).isEqualTo(1);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        } finally {
+          TypedActor.get(Akka.system()).stop(cc);
+        }
+      }
+    });
+  }
+
+  @Test
+  public void keepsEntriesLargerThanASegment() {
+    play.test.Helpers.running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final ChartCache cc = chartCache(new BlockingFactory(), 30, 1000);
+        try {
+          // More than a quarter of the budget, which Guava's default four
+          // segments would each get
+          final List<Chart> charts =
+              Collections.<Chart>singletonList(new SizedChart(600));
+          cc.update("big", charts);
+          assertThat(Await.result(cc.getCharts("big"),
+              Duration.create(10, "seconds"))).isSameAs(charts);
+          final ChartCache.Stats stats = cc.stats();
+          assertThat(stats.entries).isEqualTo(1);
+          assertThat(stats.bytes).isEqualTo(600);
+          assertThat(stats.builds).isEqualTo(0);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        } finally {
+          TypedActor.get(Akka.system()).stop(cc);
+        }
+      }
+    });
+  }
+
+  private static ChartCache chartCache(final DataSourceFactory dsf,
+      final int buildTimeout) {
+    return chartCache(dsf, buildTimeout, 256L * 1024 * 1024);
+  }
+
+  private static ChartCache chartCache(final DataSourceFactory dsf,
+      final int buildTimeout, final long maxBytes) {
+    final EventManager em = injector().getInstance(EventManager.class);
+    return TypedActor.get(Akka.system()).typedActorOf(
+        new TypedProps<ChartCache>(ChartCache.class,
+            new Creator<ChartCache>() {
+              private static final long serialVersionUID = 1L;
+
+              @Override
+              public ChartCache create() {
+                return new ChartCacheImpl(new DefaultChartBuilder(dsf), em,
+                    buildTimeout, maxBytes);
+              }
+            }));
+  }
+
+  private static class SizedChart extends AbstractChart {
+    final long size;
+
+    SizedChart(long size) {
+      this.size = size;
+    }
+
+    @Override
+    public long estimatedSize() {
+      return size;
+    }
+
+    @Override
+    public ChartDescription getDescription() {
+      return null;
+    }
+
+    @Override
+    public Drawable getChart() {
+      return null;
+    }
+
+    @Override
+    public String getCSV() throws UnsupportedFormatException {
+      throw new UnsupportedFormatException();
+    }
+  }
+
+  /*
+   * Blocks on the first datasource request until interrupted, then has no
+   * datasource for subsequent requests.
+   */
+  private static class BlockingFactory implements DataSourceFactory {
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public DataSource getDataSource(String id) throws Exception {
+      if (calls.incrementAndGet() == 1) {
+        started.countDown();
+        try {
+          Thread.sleep(60000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw e;
+        }
+      }
+      return null;
+    }
+  }
+
+}
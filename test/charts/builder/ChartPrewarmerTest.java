@@ -0,0 +1,147 @@
+package charts.builder;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static test.AorraTestUtils.fakeAorraApp;
+import static test.AorraTestUtils.fileStore;
+import static test.AorraTestUtils.injector;
+import static test.AorraTestUtils.sessionFactory;
+import helpers.FileStoreHelper;
+
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Session;
+
+import org.junit.Test;
+
+import play.libs.F;
+import scala.concurrent.Future;
+import service.EventManager;
+import akka.dispatch.Futures;
+import charts.Chart;
+import charts.representations.RenderCache;
+
+import com.google.common.collect.ImmutableMap;
+
+public class ChartPrewarmerTest {
+
+  @Test
+  public void collapsesRepeatedUploads() {
+    play.test.Helpers.running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final String id = createSpreadsheet();
+        final CountingCache cache = new CountingCache();
+        final ChartPrewarmer prewarmer = prewarmer(cache, 500, 20);
+        prewarmer.start();
+        try {
+          for (int i = 0; i < 5; i++) {
+            prewarmer.enqueue(id);
+            Thread.sleep(50);
+          }
+          assertThat(cache.requested.await(5, TimeUnit.SECONDS)).isTrue();
+          // Nothing else was queued, so there's nothing more to build
+          Thread.sleep(1000);
+          assertThat(cache.calls.get()).isEqualTo(1);
+          assertThat(prewarmer.queued()).isEqualTo(0);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        } finally {
+          prewarmer.stop();
+        }
+      }
+    });
+  }
+
+  @Test
+  public void dropsFilesBeyondQueueSize() {
+    play.test.Helpers.running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        // Not started, so nothing leaves the queue
+        final ChartPrewarmer prewarmer =
+            prewarmer(new CountingCache(), 60000, 2);
+        prewarmer.enqueue("a");
+        prewarmer.enqueue("b");
+        prewarmer.enqueue("c");
+        assertThat(prewarmer.queued()).isEqualTo(2);
+        // Files already queued can still be queued again
+        prewarmer.enqueue("a");
+        assertThat(prewarmer.queued()).isEqualTo(2);
+      }
+    });
+  }
+
+  @Test
+  public void stopsWithPlugin() throws InterruptedException {
+    play.test.Helpers.running(fakeAorraApp(ImmutableMap.<String, Object>of(
+        "application.chartCache.prewarm.enabled", true)), new Runnable() {
+      @Override
+      public void run() {
+        assertThat(prewarmerThread()).isNotNull();
+      }
+    });
+    final Thread t = prewarmerThread();
+    if (t != null) {
+      t.join(5000);
+    }
+    assertThat(prewarmerThread()).isNull();
+  }
+
+  private static Thread prewarmerThread() {
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals("chart pre-warmer") && t.isAlive()) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  private static String createSpreadsheet() {
+    return sessionFactory().inSession(new F.Function<Session, String>() {
+      @Override
+      public String apply(Session session) throws Throwable {
+        return fileStore().getManager(session).getRoot()
+            .createFile("loads.xlsx", FileStoreHelper.XLSX_MIME_TYPE,
+                new FileInputStream("test/loads.xlsx"))
+            .getIdentifier();
+      }
+    });
+  }
+
+  private static ChartPrewarmer prewarmer(ChartCache cache, long delay,
+      int queueSize) {
+    return new ChartPrewarmer(
+        injector().getInstance(EventManager.class),
+        sessionFactory(), fileStore(), cache,
+        injector().getInstance(RenderCache.class), delay, queueSize);
+  }
+
+  private static class CountingCache implements ChartCache {
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch requested = new CountDownLatch(1);
+
+    @Override
+    public void cleanup(String fileId) {}
+
+    @Override
+    public Future<List<Chart>> getCharts(String id) {
+      calls.incrementAndGet();
+      requested.countDown();
+      return Futures.successful(Collections.<Chart>emptyList());
+    }
+
+    @Override
+    public void update(String fileId, List<Chart> charts) {}
+
+    @Override
+    public Stats stats() {
+      return null;
+    }
+  }
+
+}
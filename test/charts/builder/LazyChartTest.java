@@ -0,0 +1,50 @@
+package charts.builder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import charts.Chart;
+import charts.ChartDescription;
+import charts.ChartType;
+import charts.Region;
+
+public class LazyChartTest {
+
+  @Test
+  public void remembersChartsWhichCannotBeBuilt() {
+    final AtomicInteger builds = new AtomicInteger();
+    final ChartTypeBuilder builder = new ChartTypeBuilder() {
+      @Override
+      public List<Chart> build(DataSource datasource, ChartType type,
+          List<Region> regions, Map<String, String> parameters) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public List<ChartDescription> describe(DataSource datasource,
+          ChartType type, List<Region> regions,
+          Map<String, String> parameters) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Chart build(DataSource datasource, ChartDescription description) {
+        builds.incrementAndGet();
+        return null;
+      }
+    };
+    final LazyChart chart = new LazyChart(
+        new ChartDescription(ChartType.MARINE, Region.GBR), builder, null);
+    assertThat(chart.isBuilt()).isFalse();
+    assertThat(chart.get()).isNull();
+    assertThat(chart.get()).isNull();
+    assertThat(chart.isBuilt()).isTrue();
+    assertThat(builds.get()).isEqualTo(1);
+  }
+
+}
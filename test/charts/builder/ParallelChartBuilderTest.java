@@ -0,0 +1,157 @@
+package charts.builder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import charts.Chart;
+import charts.ChartType;
+import charts.Region;
+import charts.builder.spreadsheet.CompiledDataSource;
+import charts.builder.spreadsheet.SpreadsheetDataSource;
+import charts.builder.spreadsheet.XlsxDataSource;
+import charts.representations.Format;
+
+import com.google.common.collect.Lists;
+
+public class ParallelChartBuilderTest {
+
+  private static final int ROWS = 500;
+
+  private static final DataSourceFactory dsf = new DataSourceFactory() {
+    @Override
+    public DataSource getDataSource(String id) throws Exception {
+      return ChartBuilderTest.getDatasource(ChartType.valueOf(id));
+    }
+  };
+
+  // Only compiled datasources are described in parallel
+  private static final DataSourceFactory compiledDsf = new DataSourceFactory() {
+    @Override
+    public DataSource getDataSource(String id) throws Exception {
+      return CompiledDataSource.compile((SpreadsheetDataSource)
+          ChartBuilderTest.getDatasource(ChartType.valueOf(id)));
+    }
+  };
+
+  @Test
+  public void sameChartsInSameOrder() throws Exception {
+    final ExecutorService pool = new ForkJoinPool(4);
+    try {
+      final ChartBuilder sequential = new DefaultChartBuilder(dsf);
+      final ChartBuilder parallel =
+          new DefaultChartBuilder(compiledDsf, pool, 4);
+      for (ChartType t : new ChartType[] {
+          ChartType.PROGRESS_TABLE, ChartType.LOADS, ChartType.MARINE }) {
+        final List<Chart> expected = sequential.getCharts(t.name(), null,
+            Collections.<Region>emptyList(), null);
+        final List<Chart> actual = parallel.getCharts(t.name(), null,
+            Collections.<Region>emptyList(), null);
+        assertThat(descriptions(actual)).isEqualTo(descriptions(expected));
+        // Charts from the same spreadsheet can be built concurrently
+        final List<Thread> threads = Lists.newArrayList();
+        final List<Throwable> errors =
+            Collections.synchronizedList(Lists.<Throwable>newArrayList());
+        final String[] csvs = new String[actual.size()];
+        for (int i = 0; i < actual.size(); i++) {
+          final Chart chart = actual.get(i);
+          final int index = i;
+          final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                csvs[index] = new String(chart.outputAs(Format.CSV,
+                    new Dimension()).getContent(), "UTF-8");
+              } catch (Throwable e) {
+                errors.add(e);
+              }
+            }
+          });
+          thread.start();
+          threads.add(thread);
+        }
+        for (Thread thread : threads) {
+          thread.join();
+        }
+        assertThat(errors).isEmpty();
+        for (int i = 0; i < expected.size(); i++) {
+          assertThat(csvs[i]).isEqualTo(new String(expected.get(i)
+              .outputAs(Format.CSV, new Dimension()).getContent(), "UTF-8"));
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void concurrentFormulaEvaluation() throws Exception {
+    // Long chains of formulas across two sheets keep the evaluator busy
+    final XSSFWorkbook wb = new XSSFWorkbook();
+    final Sheet values = wb.createSheet("values");
+    final Sheet sums = wb.createSheet("sums");
+    for (int r = 0; r < ROWS; r++) {
+      values.createRow(r).createCell(0).setCellValue(r);
+      final Row row = sums.createRow(r);
+      row.createCell(0).setCellFormula(r == 0 ? "values!A1" :
+          String.format("A%d+values!A%d", r, r + 1));
+      row.createCell(1).setCellFormula(String.format("SUM(values!A1:A%d)",
+          r + 1));
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    wb.write(out);
+    final SpreadsheetDataSource ds = new XlsxDataSource(
+        new ByteArrayInputStream(out.toByteArray()));
+    final List<Thread> threads = Lists.newArrayList();
+    final List<Throwable> errors =
+        Collections.synchronizedList(Lists.<Throwable>newArrayList());
+    for (int t = 0; t < 8; t++) {
+      final int offset = t;
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final SpreadsheetDataSource sheet = ds.toSheet("sums");
+            for (int i = 0; i < ROWS; i++) {
+              // Each thread works through the rows in a different order
+              final int r = (i * 7 + offset * 31) % ROWS;
+              final double expected = r * (r + 1) / 2.0;
+              assertThat(sheet.select(r, 0).asDouble()).isEqualTo(expected);
+              assertThat(sheet.select(r, 1).asDouble()).isEqualTo(expected);
+              assertThat(ds.select("values", r, 0).asDouble())
+                .isEqualTo((double) r);
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(errors).isEmpty();
+  }
+
+  private static List<String> descriptions(List<Chart> charts) {
+    final List<String> l = Lists.newArrayList();
+    for (Chart chart : charts) {
+      l.add(chart.getDescription().toString());
+    }
+    return l;
+  }
+
+}
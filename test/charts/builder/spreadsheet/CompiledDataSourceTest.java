@@ -0,0 +1,180 @@
+package charts.builder.spreadsheet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Assert;
+import org.junit.Test;
+
+import charts.builder.DataSource.MissingDataException;
+import charts.builder.Value;
+import charts.builder.spreadsheet.external.ResolvedRef;
+
+public class CompiledDataSourceTest {
+
+  @Test
+  public void sameValuesAsXlsx() throws Exception {
+    compare(new XlsxDataSource(new FileInputStream("test/progress_table.xlsx")));
+    compare(new XlsxDataSource(new FileInputStream("test/loads.xlsx")));
+  }
+
+  @Test
+  public void sameValuesAsXls() throws Exception {
+    compare(new XlsDataSource(new FileInputStream("test/marine.xls")));
+    compare(new XlsDataSource(new FileInputStream("test/seagrass_cover.xls")));
+  }
+
+  @Test
+  public void streamedSameValuesAsXlsx() throws Exception {
+    for (String f : new String[] {
+        "test/progress_table.xlsx", "test/loads.xlsx" }) {
+      compare(new XlsxDataSource(new FileInputStream(f)),
+          StreamingXlsxReader.read(new FileInputStream(f)));
+    }
+  }
+
+  @Test
+  public void streamedUncachedFormulas() throws Exception {
+    // POI doesn't store results for new formulas, so the reader falls back
+    // to loading and evaluating the workbook
+    final XSSFWorkbook wb = new XSSFWorkbook();
+    for (String name : new String[] { "first", "second" }) {
+      final Sheet sheet = wb.createSheet(name);
+      for (int r = 0; r < 10; r++) {
+        final Row row = sheet.createRow(r);
+        row.createCell(0).setCellValue(r);
+        row.createCell(1).setCellFormula(String.format("A%d*2", r + 1));
+      }
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    wb.write(out);
+    final SpreadsheetDataSource streamed = StreamingXlsxReader.read(
+        new ByteArrayInputStream(out.toByteArray()));
+    Assert.assertEquals(Double.valueOf(18),
+        streamed.toSheet("second").select(9, 1).asDouble());
+    compare(new XlsxDataSource(new ByteArrayInputStream(out.toByteArray())),
+        streamed);
+  }
+
+  @Test
+  public void streamedClose() throws Exception {
+    final XSSFWorkbook wb = new XSSFWorkbook();
+    for (String name : new String[] { "first", "second" }) {
+      wb.createSheet(name).createRow(0).createCell(0).setCellValue(name);
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    wb.write(out);
+    final CompiledDataSource streamed = StreamingXlsxReader.read(
+        new ByteArrayInputStream(out.toByteArray()));
+    Assert.assertEquals("first", streamed.select("first!A1").asString());
+    streamed.close();
+    // Sheets already loaded are kept, but the rest can't be read
+    Assert.assertEquals("first", streamed.select("first!A1").asString());
+    try {
+      streamed.select("second!A1");
+      Assert.fail("Expected the second sheet to be unavailable");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void numericTextStaysText() throws Exception {
+    final XSSFWorkbook wb = new XSSFWorkbook();
+    final Row row = wb.createSheet("text").createRow(0);
+    row.createCell(0).setCellValue(42);
+    row.createCell(1).setCellValue("42.0");
+    row.createCell(2).setCellValue("01/07/2013");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    wb.write(out);
+    final SpreadsheetDataSource source =
+        new XlsxDataSource(new ByteArrayInputStream(out.toByteArray()));
+    final SpreadsheetDataSource compiled = CompiledDataSource.compile(source);
+    // Only the number can be read as a date
+    Assert.assertNotNull(compiled.select(0, 0).asDate());
+    Assert.assertEquals(IllegalStateException.class,
+        date(compiled.select(0, 1)));
+    compare(source, compiled);
+    compare(source, StreamingXlsxReader.read(
+        new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  @Test
+  public void missingSheet() throws IOException {
+    final SpreadsheetDataSource ds = CompiledDataSource.compile(
+        new XlsxDataSource(new FileInputStream("test/test.xlsx")));
+    try {
+      ds.select("no such sheet!A1");
+      Assert.fail("Expected MissingDataException");
+    } catch (MissingDataException e) {
+      // All good
+    }
+  }
+
+  @Test
+  public void noExternalReferences() throws IOException {
+    final SpreadsheetDataSource ds = CompiledDataSource.compile(
+        new XlsxDataSource(new FileInputStream("test/extref.xlsx")));
+    Assert.assertFalse(ds.hasExternalReferences());
+    Assert.assertTrue(ds.externalReferences().isEmpty());
+    Assert.assertNull(ds.updateExternalReferences(
+        Collections.<ResolvedRef>emptySet()));
+  }
+
+  @Test
+  public void missingRowHasNoColumns() throws IOException {
+    final SpreadsheetDataSource ds = CompiledDataSource.compile(
+        new XlsxDataSource(new FileInputStream("test/test.xlsx")));
+    Assert.assertEquals(0, ds.getColumns(ds.getRows() + 1));
+  }
+
+  private void compare(SpreadsheetDataSource source) throws Exception {
+    compare(source, CompiledDataSource.compile(source));
+  }
+
+  private void compare(SpreadsheetDataSource source,
+      SpreadsheetDataSource compiled) throws Exception {
+    Assert.assertEquals(source.sheets(), compiled.sheets());
+    for (int si = 0; si < source.sheets(); si++) {
+      final SpreadsheetDataSource expected = source.toSheet(si);
+      final SpreadsheetDataSource actual = compiled.toSheet(si);
+      Assert.assertEquals(expected.getDefaultSheet(), actual.getDefaultSheet());
+      Assert.assertEquals(expected.getRows(), actual.getRows());
+      // Include one row and column beyond the end of the sheet
+      for (int row = 0; row <= expected.getRows() + 1; row++) {
+        final Integer columns = expected.getColumnCount(row);
+        Assert.assertEquals(columns, actual.getColumnCount(row));
+        for (int col = 0; col <= (columns == null ? 0 : columns); col++) {
+          compare(expected.select(row, col), actual.select(row, col),
+              String.format("%s!R%dC%d", expected.getDefaultSheet(), row, col));
+        }
+      }
+    }
+  }
+
+  private void compare(Value expected, Value actual, String ref) {
+    Assert.assertEquals(ref, expected.getValue(), actual.getValue());
+    Assert.assertEquals(ref, expected.asDouble(), actual.asDouble());
+    Assert.assertEquals(ref, expected.asPercent(), actual.asPercent());
+    Assert.assertEquals(ref, expected.asColor(), actual.asColor());
+    Assert.assertEquals(ref, date(expected), date(actual));
+  }
+
+  /*
+   * The date, or the type of exception thrown trying to read one
+   */
+  private static Object date(Value value) {
+    try {
+      return value.asDate();
+    } catch (RuntimeException e) {
+      return e.getClass();
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+package charts.representations;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import charts.Chart;
+import charts.ChartDescription;
+import charts.ChartType;
+import charts.Region;
+
+import com.google.common.io.Files;
+
+public class RenderCacheTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void rendersOnceAndSurvivesRestart() throws Exception {
+    final CountingChart chart = new CountingChart(Region.GBR);
+    {
+      final RenderCache cache = new RenderCache(dir, 1024);
+      final Representation r1 = cache.outputAs("abc", chart, Format.SVG,
+          new Dimension());
+      final Representation r2 = cache.outputAs("abc", chart, Format.SVG,
+          new Dimension());
+      assertThat(chart.renders).isEqualTo(1);
+      assertThat(r2.getContent()).isEqualTo(r1.getContent());
+      assertThat(r2.getContentType()).isEqualTo(r1.getContentType());
+      assertThat(cache.stats().hits).isEqualTo(1);
+      assertThat(cache.stats().misses).isEqualTo(1);
+    }
+    {
+      final RenderCache cache = new RenderCache(dir, 1024);
+      cache.outputAs("abc", chart, Format.SVG, new Dimension());
+      assertThat(chart.renders).isEqualTo(1);
+      // Different digest or dimensions means a different entry
+      cache.outputAs("def", chart, Format.SVG, new Dimension());
+      cache.outputAs("abc", chart, Format.SVG, new Dimension(10, 0));
+      assertThat(chart.renders).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    final RenderCache cache = new RenderCache(dir, 150);
+    final CountingChart a = new CountingChart(Region.GBR);
+    final CountingChart b = new CountingChart(Region.BURDEKIN);
+    final CountingChart c = new CountingChart(Region.FITZROY);
+    cache.outputAs("abc", a, Format.CSV, new Dimension());
+    cache.outputAs("abc", b, Format.CSV, new Dimension());
+    // Touch a, so b is the least-recently used
+    cache.outputAs("abc", a, Format.CSV, new Dimension());
+    cache.outputAs("abc", c, Format.CSV, new Dimension());
+    assertThat(cache.stats().evictions).isEqualTo(1);
+    assertThat(cache.stats().bytes).isLessThanOrEqualTo(150);
+    cache.outputAs("abc", a, Format.CSV, new Dimension());
+    cache.outputAs("abc", b, Format.CSV, new Dimension());
+    assertThat(a.renders).isEqualTo(1);
+    assertThat(b.renders).isEqualTo(2);
+  }
+
+  @Test
+  public void onlyCleansUpItsOwnFiles() throws Exception {
+    final File unrelated = new File(dir, "notes.txt");
+    final File subdir = new File(dir, "subdir");
+    final File leftover = new File(dir, "render123.rep.tmp");
+    FileUtils.write(unrelated, "keep me");
+    FileUtils.forceMkdir(subdir);
+    FileUtils.write(leftover, "partial");
+    final RenderCache cache = new RenderCache(dir, 1024);
+    assertThat(unrelated.exists()).isTrue();
+    assertThat(subdir.exists()).isTrue();
+    assertThat(leftover.exists()).isFalse();
+    assertThat(cache.stats().entries).isEqualTo(0);
+  }
+
+  private static class CountingChart implements Chart {
+
+    private final ChartDescription description;
+    private int renders = 0;
+
+    public CountingChart(Region region) {
+      this.description = new ChartDescription(ChartType.MARINE, region);
+    }
+
+    @Override
+    public ChartDescription getDescription() {
+      return description;
+    }
+
+    @Override
+    public Representation outputAs(Format format, Dimension queryDimension)
+        throws UnsupportedFormatException {
+      renders++;
+      return format.createRepresentation(
+          String.format("%32s", description.getRegion().getName()));
+    }
+
+    @Override
+    public Date created() {
+      return new Date();
+    }
+
+  }
+
+}
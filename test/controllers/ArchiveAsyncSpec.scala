@@ -1,21 +1,45 @@
 package controllers
 
+import java.awt.Dimension
 import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.io.FileInputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.Date
+import java.util.concurrent.Callable
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.zip.ZipInputStream
 
 import scala.Array.canBuildFrom
+import scala.collection.JavaConversions.seqAsJavaList
 import scala.concurrent.Await
 import scala.concurrent.Future
 import scala.concurrent.duration.Duration
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream
+import org.apache.commons.io.IOUtils
+import org.jcrom.Jcrom
 import org.specs2.mutable.Specification
 
+import com.google.common.io.Files
+
 import akka.util.Timeout
+import charts.Chart
+import charts.ChartDescription
+import charts.ChartType
+import charts.Region
+import charts.builder.ChartBuilder
+import charts.representations.Format
+import charts.representations.RenderCache
+import charts.representations.RenderPool
+import charts.representations.Representation
+import helpers.ZipHelper
 import helpers.FileStoreHelper.XLSX_MIME_TYPE
 import helpers.FileStoreHelper.XLS_MIME_TYPE
 import javax.jcr.Session
+import models.CacheableUser
 import models.User
 import play.api.libs.iteratee.Iteratee
 import play.api.mvc.AnyContentAsEmpty
@@ -30,9 +54,11 @@ import play.api.test.Helpers.header
 import play.api.test.Helpers.route
 import play.api.test.Helpers.status
 import play.api.test.Helpers.writeableOf_AnyContentAsEmpty
+import service.JcrSessionFactory
 import test.AorraScalaHelper.FakeAorraApp
 import test.AorraScalaHelper.asAdminUser
 import test.AorraScalaHelper.filestore
+import test.AorraScalaHelper.injector
 
 class ArchiveAsyncSpec extends Specification {
 
@@ -167,4 +193,129 @@ class ArchiveAsyncSpec extends Specification {
 
   }
 
-}
\ No newline at end of file
+  "chart archive entries" should {
+
+    "be written in chart and format order" in new FakeAorraApp {
+      asAdminUser { (session: Session, user: User, rh: FakeHeaders) =>
+        val file = textFile(session)
+        // Later charts render faster, so finish first
+        val charts = (1 to 4).map { i =>
+          new StubChart("chart " + i, 50 * (4 - i))
+        }
+        val bos = new ByteArrayOutputStream()
+        archive(charts, user, file.getIdentifier, bos)
+
+        val expected = for {
+          chart <- charts
+          f <- Format.values if f != Format.EPS
+        } yield "test.txt/%s-%s.%s".format(
+          Region.GBR.getName, chart.title, f.name).toLowerCase
+        entries(bos.toByteArray).map(_._1) must equalTo(expected.toList)
+        entries(bos.toByteArray).forall { case (name, content) =>
+          name.endsWith(content.toLowerCase)
+        } must beTrue
+      }
+    }
+
+    "skip unsupported formats" in new FakeAorraApp {
+      asAdminUser { (session: Session, user: User, rh: FakeHeaders) =>
+        val file = textFile(session)
+        val bos = new ByteArrayOutputStream()
+        archive(Seq(new StubChart("chart", 0)), user, file.getIdentifier, bos)
+
+        val extensions = entries(bos.toByteArray).map(_._1.split("\\.").last)
+        extensions must not contain("eps")
+        extensions must haveSize(Format.values.size - 1)
+      }
+    }
+
+    "stop rendering when the client goes away" in new FakeAorraApp {
+      asAdminUser { (session: Session, user: User, rh: FakeHeaders) =>
+        val file = textFile(session)
+        val renderPool = injector.getInstance(classOf[RenderPool])
+        val blocking = (1 to renderPool.window).map { i =>
+          new StubChart("blocking " + i, 60000)
+        }
+        val charts = new StubChart("first", 0) +: blocking
+        val closed = new OutputStream {
+          override def write(b: Int) { throw new IOException("Client gone") }
+        }
+        val started = System.currentTimeMillis
+        archive(charts, user, file.getIdentifier, closed) must
+          throwA[IOException]
+        // Renders in progress are interrupted, and the rest never start
+        val renderers = renderPool.submit(new Callable[Boolean] {
+          override def call() = true
+        })
+        renderers.get(5, TimeUnit.SECONDS) must beTrue
+        (System.currentTimeMillis - started) must beLessThan(30000L)
+        blocking.forall(c => c.rendered.get == 0) must beTrue
+      }
+    }
+
+  }
+
+  class StubChart(val title: String, delay: Long) extends Chart {
+    val rendered = new AtomicInteger()
+
+    override def getDescription() =
+      new ChartDescription(ChartType.MARINE, Region.GBR, title)
+
+    override def outputAs(format: Format,
+        dimension: Dimension): Representation = {
+      if (format == Format.EPS) {
+        throw new Chart.UnsupportedFormatException()
+      }
+      try {
+        Thread.sleep(delay)
+      } catch {
+        case e: InterruptedException =>
+          Thread.currentThread.interrupt()
+          throw new RuntimeException(e)
+      }
+      rendered.incrementAndGet()
+      val content = (title + "." + format.name).getBytes
+      new Representation {
+        override def getContent() = content
+        override def getContentType() = format.getMimeType
+      }
+    }
+
+    override def created() = new Date()
+  }
+
+  def textFile(session: Session) =
+    filestore.getManager(session).getRoot().createFile("test.txt",
+        "text/plain", new ByteArrayInputStream("Not a spreadsheet".getBytes))
+
+  def archive(charts: Seq[Chart], user: User, id: String, os: OutputStream) {
+    val builder = new ChartBuilder {
+      override def getCharts(id: String, t: ChartType,
+          regions: java.util.List[Region],
+          parameters: java.util.Map[String, String]) =
+        seqAsJavaList(charts)
+    }
+    val renderCache = new RenderCache(Files.createTempDir(), 1024 * 1024)
+    val controller = new ArchiveAsync(
+        injector.getInstance(classOf[Jcrom]), filestore,
+        injector.getInstance(classOf[JcrSessionFactory]),
+        builder, renderCache, injector.getInstance(classOf[RenderPool])) {
+      def write(zos: ZipArchiveOutputStream) {
+        addChartFilesToArchive(new CacheableUser("test", user,
+            java.util.Collections.emptyList[String]), id)(zos)
+      }
+    }
+    val zos = ZipHelper.setupZipOutputStream(os)
+    controller.write(zos)
+    zos.close()
+  }
+
+  def entries(zipBytes: Array[Byte]): Seq[(String, String)] = {
+    val zis = new ZipInputStream(new ByteArrayInputStream(zipBytes))
+    Stream.continually(zis.getNextEntry)
+      .takeWhile(_ != null)
+      .map { e => (e.getName, new String(IOUtils.toByteArray(zis))) }
+      .toList
+  }
+
+}
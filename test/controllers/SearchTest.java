@@ -123,6 +123,38 @@ public class SearchTest {
     });
   }
 
+  @Test
+  public void closerFilenameMatchesRankHigher() {
+    asAdminUser(new F.Function3<Session, User, FakeRequest, Session>() {
+      @Override
+      public Session apply(
+          final Session session,
+          final User user,
+          final FakeRequest newRequest) throws Throwable {
+        final FileStore.Manager fsm = fileStore().getManager(session);
+        final String[] names = {
+            "Annual report on mice", "Mice report", "Mice" };
+        for (String name : names) {
+          fsm.getRoot().createFile(name, "appliction/octet-stream",
+              new ByteArrayInputStream(randomAscii(1024).getBytes()));
+        }
+        final Result result = callAction(
+            controllers.routes.ref.Search.search("file:mice"),
+            newRequest);
+        assertThat(status(result)).isEqualTo(200);
+        final JsonNode json = Json.parse(contentAsString(result));
+        assertThat(json.size()).isEqualTo(3);
+        // Exact name first, then a prefix, then a match mid-name
+        for (int i = 0; i < 3; i++) {
+          assertThat(json.get(i).get("excerpt").asText()
+              .replaceAll("</?strong>", "")).isEqualTo(names[2 - i]);
+        }
+        assertThat(json.get(0).get("score").asDouble()).isEqualTo(1.0);
+        return session;
+      }
+    });
+  }
+
   @Test
   public void blankSearch() {
     asAdminUser(new F.Function3<Session, User, FakeRequest, Session>() {
@@ -0,0 +1,132 @@
+package helpers;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class BoundedPipeTest {
+
+  @Test
+  public void passesDataThrough() throws Exception {
+    final BoundedPipe pipe = new BoundedPipe(2, 4, 5000);
+    final byte[] data = new byte[1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          final OutputStream out = pipe.getOutputStream();
+          out.write(data, 0, 500);
+          for (int i = 500; i < data.length; i++) {
+            out.write(data[i]);
+          }
+          out.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    writer.start();
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    IOUtils.copy(pipe.getInputStream(), bos);
+    assertThat(bos.toByteArray()).isEqualTo(data);
+    writer.join(5000);
+  }
+
+  @Test
+  public void writerWaitsForReader() throws Exception {
+    final BoundedPipe pipe = new BoundedPipe(2, 4, 5000);
+    final CountDownLatch full = new CountDownLatch(1);
+    final CountDownLatch written = new CountDownLatch(1);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          final OutputStream out = pipe.getOutputStream();
+          // Fills both chunks
+          out.write(new byte[8]);
+          full.countDown();
+          out.write(new byte[4]);
+          written.countDown();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }.start();
+    assertThat(full.await(5, TimeUnit.SECONDS)).isTrue();
+    // No space until something is read
+    assertThat(written.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(pipe.getInputStream().read(new byte[4])).isEqualTo(4);
+    assertThat(written.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void writerGivesUpWithoutReader() throws Exception {
+    final BoundedPipe pipe = new BoundedPipe(1, 4, 100);
+    final OutputStream out = pipe.getOutputStream();
+    out.write(new byte[4]);
+    try {
+      out.write(new byte[4]);
+      fail("Should have timed out");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Timed out");
+    }
+  }
+
+  @Test
+  public void readerCloseStopsWriter() throws Exception {
+    final BoundedPipe pipe = new BoundedPipe(1, 4, 5000);
+    final OutputStream out = pipe.getOutputStream();
+    out.write(new byte[4]);
+    pipe.getInputStream().close();
+    try {
+      out.write(new byte[4]);
+      fail("Should have failed once the reader closed");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("closed by reader");
+    }
+  }
+
+  @Test
+  public void writerFailureReachesReader() throws Exception {
+    final BoundedPipe pipe = new BoundedPipe(4, 4, 5000);
+    final AtomicReference<IOException> error =
+        new AtomicReference<IOException>();
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          pipe.getOutputStream().write("Hello".getBytes());
+          pipe.getOutputStream().flush();
+        } catch (IOException e) {
+          error.set(e);
+        }
+        pipe.fail(new IOException("Broken"));
+      }
+    }.start();
+    final InputStream in = pipe.getInputStream();
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try {
+      IOUtils.copy(in, bos);
+      fail("Should have received the writer's error");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("Broken");
+    }
+    // Everything written before the failure is still read
+    assertThat(new String(bos.toByteArray())).isEqualTo("Hello");
+    assertThat(error.get()).isNull();
+  }
+
+}
@@ -31,6 +31,7 @@ import models.GroupManager;
 import models.User;
 import models.UserDAO;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.eclipse.jetty.util.IO;
@@ -279,7 +280,7 @@ public class FileStoreHelperTest {
   }
 
   @Test
-  public void createZipFile() {
+  public void addFolderToZip() {
     helperTest(
         new F.Function3<Session,FileStoreHelper,FileStore.Manager,Session>() {
       @Override
@@ -295,7 +296,7 @@ public class FileStoreHelperTest {
               new ByteArrayInputStream(testBytes));
         // Test root folder
         {
-          final java.io.File tf = asTempFile(fh.createZipFile(fm.getRoot()));
+          final java.io.File tf = asTempFile(zip(fh, fm.getRoot()));
           assertThat(tf).isNotNull();
           final ZipFile zf = new ZipFile(tf);
           final Enumeration<? extends ZipEntry> entries = zf.entries();
@@ -311,7 +312,7 @@ public class FileStoreHelperTest {
         }
         // Test subfolder
         {
-          final java.io.File tf = asTempFile(fh.createZipFile(
+          final java.io.File tf = asTempFile(zip(fh,
               (FileStore.Folder) fm.getFileOrFolder("/a (a-f)/2")));
           assertThat(tf).isNotNull();
           final ZipFile zf = new ZipFile(tf);
@@ -506,7 +507,7 @@ public class FileStoreHelperTest {
             new ByteArrayInputStream("Hello World!".getBytes()));
         assertThat(fm.getFileOrFolder("/foo/bar/test.txt")).isNotNull();
         final java.io.File zipFile =
-            asTempFile(fsh.createZipFile(fm.getRoot()));
+            asTempFile(zip(fsh, fm.getRoot()));
         // Delete all files
         assertThat(fm.getFileOrFolder("/foo")).isNotNull();
         fm.getFileOrFolder("/foo").delete();
@@ -595,6 +596,16 @@ public class FileStoreHelperTest {
     });
   }
 
+  private static InputStream zip(final FileStoreHelper fh,
+      final FileStore.Folder folder) {
+    return ZipHelper.streamZip("test zip", new ZipHelper.ZipWriter() {
+      @Override
+      public void write(ZipArchiveOutputStream zos) throws Exception {
+        fh.addFolderToZip(zos, folder);
+      }
+    });
+  }
+
   private static java.io.File asTempFile(InputStream is) throws IOException {
     final java.io.File tf = File.createTempFile("zipfile", "");
     tf.deleteOnExit();
@@ -0,0 +1,191 @@
+package html;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class HtmlToPdfTest {
+
+  private static final AssetResolver NO_ASSETS = new AssetResolver() {
+    @Override
+    public boolean download(String src, File destination) {
+      return false;
+    }
+
+    @Override
+    public String digest(String src) {
+      return "none";
+    }
+  };
+
+  private static final HtmlZip HTML_ZIP =
+      new HtmlZip(MoreExecutors.sameThreadExecutor());
+
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void convertsOnce() throws Exception {
+    final StubConverter converter = new StubConverter();
+    final HtmlToPdf htmlToPdf =
+        new HtmlToPdf(converter, HTML_ZIP, dir, 10, 1, 1, 5000);
+    final File pdf1 = htmlToPdf.toPdf("a.html", "<p>a</p>", NO_ASSETS, "")
+        .result();
+    final File pdf2 = htmlToPdf.toPdf("a.html", "<p>a</p>", NO_ASSETS, "")
+        .result();
+    assertThat(converter.conversions.get()).isEqualTo(1);
+    assertThat(pdf2).isEqualTo(pdf1);
+    assertThat(FileUtils.readFileToString(pdf1)).isEqualTo("%PDF <p>a</p>");
+    // Different content or options means a different PDF
+    htmlToPdf.toPdf("a.html", "<p>b</p>", NO_ASSETS, "");
+    htmlToPdf.toPdf("a.html", "<p>a</p>", NO_ASSETS, "-r 300");
+    assertThat(converter.conversions.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void servesCachedPdfsWithoutDownloading() throws Exception {
+    final StubConverter converter = new StubConverter();
+    final HtmlToPdf htmlToPdf =
+        new HtmlToPdf(converter, HTML_ZIP, dir, 10, 1, 1, 5000);
+    final CountingResolver resolver = new CountingResolver("v1");
+    final String html = "<p><img src=\"/assets/a.png\"/></p>";
+    htmlToPdf.toPdf("a.html", html, resolver, "");
+    assertThat(resolver.downloads.get()).isEqualTo(1);
+    htmlToPdf.toPdf("a.html", html, resolver, "");
+    assertThat(resolver.downloads.get()).isEqualTo(1);
+    assertThat(converter.conversions.get()).isEqualTo(1);
+    // A changed asset means a new PDF
+    resolver.digest = "v2";
+    htmlToPdf.toPdf("a.html", html, resolver, "");
+    assertThat(resolver.downloads.get()).isEqualTo(2);
+    assertThat(converter.conversions.get()).isEqualTo(2);
+    // Assets the resolver can't identify are downloaded to check them
+    resolver.digest = null;
+    htmlToPdf.toPdf("a.html", html, resolver, "");
+    htmlToPdf.toPdf("a.html", html, resolver, "");
+    assertThat(resolver.downloads.get()).isEqualTo(4);
+    assertThat(converter.conversions.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void killsSlowConversions() throws Exception {
+    final BlockingConverter converter = new BlockingConverter();
+    final HtmlToPdf htmlToPdf =
+        new HtmlToPdf(converter, HTML_ZIP, dir, 10, 1, 1, 100);
+    try {
+      htmlToPdf.toPdf("a.html", "<p>a</p>", NO_ASSETS, "");
+      fail("Should have timed out");
+    } catch (HtmlToPdf.ConversionException e) {
+      // Expected
+    }
+    assertThat(converter.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void turnsAwayJobsBeyondQueue() throws Exception {
+    final BlockingConverter converter = new BlockingConverter();
+    final HtmlToPdf htmlToPdf =
+        new HtmlToPdf(converter, HTML_ZIP, dir, 10, 1, 1, 5000);
+    // One running, one queued
+    for (final String html : new String[] { "<p>a</p>", "<p>b</p>" }) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            htmlToPdf.toPdf("a.html", html, NO_ASSETS, "");
+          } catch (Exception e) {
+          }
+        }
+      }.start();
+    }
+    assertThat(converter.started.await(5, TimeUnit.SECONDS)).isTrue();
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (htmlToPdf.queued() < 1 && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+    assertThat(htmlToPdf.queued()).isEqualTo(1);
+    try {
+      htmlToPdf.toPdf("a.html", "<p>c</p>", NO_ASSETS, "");
+      fail("Should have been turned away");
+    } catch (HtmlToPdf.ConversionException e) {
+      assertThat(e.getMessage()).contains("Too many");
+    }
+  }
+
+  private static class CountingResolver implements AssetResolver {
+    final AtomicInteger downloads = new AtomicInteger();
+    volatile String digest;
+
+    CountingResolver(String digest) {
+      this.digest = digest;
+    }
+
+    @Override
+    public boolean download(String src, File destination) {
+      downloads.incrementAndGet();
+      try {
+        FileUtils.write(destination, "image");
+      } catch (IOException e) {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public String digest(String src) {
+      return digest;
+    }
+  }
+
+  private static class StubConverter implements PdfConverter {
+    final AtomicInteger conversions = new AtomicInteger();
+
+    @Override
+    public void convert(File html, File pdf, List<String> options)
+        throws Exception {
+      conversions.incrementAndGet();
+      FileUtils.write(pdf, "%PDF " + FileUtils.readFileToString(html));
+    }
+  }
+
+  private static class BlockingConverter implements PdfConverter {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public void convert(File html, File pdf, List<String> options)
+        throws Exception {
+      started.countDown();
+      try {
+        Thread.sleep(60000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw e;
+      }
+    }
+  }
+
+}
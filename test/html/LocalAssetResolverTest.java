@@ -0,0 +1,192 @@
+package html;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static test.AorraTestUtils.fakeAorraApp;
+import static test.AorraTestUtils.fileStore;
+import static test.AorraTestUtils.injector;
+import static test.AorraTestUtils.jcrom;
+import static test.AorraTestUtils.sessionFactory;
+import helpers.FileStoreHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Session;
+
+import models.GroupManager;
+import models.User;
+import models.UserDAO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import play.libs.F;
+import service.filestore.FileStore;
+import charts.builder.ChartBuilder;
+import charts.representations.RenderCache;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class LocalAssetResolverTest {
+
+  @Test
+  public void resolvesChartsWithUserPermissions() {
+    withFiles(new F.Function3<String[], LocalAssetResolver, RecordingResolver,
+        Void>() {
+      @Override
+      public Void apply(String[] ids, LocalAssetResolver resolver,
+          RecordingResolver fallback) throws Throwable {
+        final File dir = Files.createTempDir();
+        try {
+          final File granted = new File(dir, "granted.svg");
+          assertThat(resolver.download(
+              "/file/" + ids[0] + "/charts/marine.svg", granted)).isTrue();
+          assertThat(FileUtils.readFileToString(granted)).contains("<svg");
+          final File denied = new File(dir, "denied.svg");
+          assertThat(resolver.download(
+              "/file/" + ids[1] + "/charts/marine.svg", denied)).isFalse();
+          assertThat(resolver.download(
+              "/file/" + ids[1] + "/versions/latest", denied)).isFalse();
+          assertThat(denied.exists()).isFalse();
+          // Identified without rendering, and only if the user can see it
+          final String digest =
+              resolver.digest("/file/" + ids[0] + "/charts/marine.svg");
+          assertThat(digest).isNotNull();
+          assertThat(resolver.digest("/file/" + ids[0] + "/charts/marine.png"))
+            .isNotEqualTo(digest);
+          assertThat(resolver.digest("/file/" + ids[1] + "/charts/marine.svg"))
+            .isNotNull()
+            .isEqualTo(resolver.digest(
+                "/file/" + ids[0] + "/charts/nosuchtype.svg"));
+          // Local URLs never go over HTTP
+          assertThat(fallback.requested).isEmpty();
+        } finally {
+          FileUtils.deleteQuietly(dir);
+        }
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void rejectsParentPaths() {
+    withFiles(new F.Function3<String[], LocalAssetResolver, RecordingResolver,
+        Void>() {
+      @Override
+      public Void apply(String[] ids, LocalAssetResolver resolver,
+          RecordingResolver fallback) throws Throwable {
+        final File dir = Files.createTempDir();
+        try {
+          final File f = new File(dir, "application.conf");
+          assertThat(resolver.download("/assets/../../conf/application.conf",
+              f)).isFalse();
+          assertThat(f.exists()).isFalse();
+          assertThat(resolver.digest("/assets/../../conf/application.conf"))
+            .isEqualTo(resolver.digest("/assets/nosuchfile"));
+          assertThat(fallback.requested).isEmpty();
+        } finally {
+          FileUtils.deleteQuietly(dir);
+        }
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void fallsBackForAbsoluteUrls() {
+    withFiles(new F.Function3<String[], LocalAssetResolver, RecordingResolver,
+        Void>() {
+      @Override
+      public Void apply(String[] ids, LocalAssetResolver resolver,
+          RecordingResolver fallback) throws Throwable {
+        final String src =
+            "http://example.com/file/" + ids[0] + "/charts/marine.svg";
+        assertThat(resolver.download(src, new File("unused"))).isTrue();
+        assertThat(resolver.digest(src)).isNull();
+        assertThat(fallback.requested).containsExactly(src, src);
+        return null;
+      }
+    });
+  }
+
+  /*
+   * Give a user read access to one folder and not another, each holding a
+   * marine spreadsheet, then resolve as that user.
+   */
+  private static void withFiles(final F.Function3<String[],
+      LocalAssetResolver, RecordingResolver, Void> f) {
+    play.test.Helpers.running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final String[] userAndIds = sessionFactory().inSession(
+            new F.Function<Session, String[]>() {
+          @Override
+          public String[] apply(Session session) throws Throwable {
+            final UserDAO dao = new UserDAO(session, jcrom());
+            User user = new User();
+            user.setEmail("user@example.com");
+            user.setName("Test User");
+            user = dao.create(user);
+            final GroupManager gm = new GroupManager(session);
+            gm.create("testGroup");
+            session.save();
+            gm.addMember("testGroup", user.getJackrabbitUserId());
+            final FileStore.Folder root =
+                fileStore().getManager(session).getRoot();
+            final FileStore.Folder granted = root.createFolder("granted");
+            granted.grantAccess("testGroup", FileStore.Permission.RO);
+            final FileStore.Folder denied = root.createFolder("denied");
+            return new String[] {
+                user.getJackrabbitUserId(),
+                marine(granted).getIdentifier(),
+                marine(denied).getIdentifier() };
+          }
+        });
+        final RecordingResolver fallback = new RecordingResolver();
+        final LocalAssetResolver resolver = new LocalAssetResolver(
+            sessionFactory(), fileStore(),
+            injector().getInstance(ChartBuilder.class),
+            injector().getInstance(RenderCache.class),
+            userAndIds[0], fallback);
+        try {
+          f.apply(new String[] { userAndIds[1], userAndIds[2] }, resolver,
+              fallback);
+        } catch (Throwable e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+
+  private static FileStore.File marine(FileStore.Folder folder)
+      throws Exception {
+    final FileInputStream in = new FileInputStream("test/marine.xls");
+    try {
+      return folder.createFile("marine.xls", FileStoreHelper.XLS_MIME_TYPE,
+          in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class RecordingResolver implements AssetResolver {
+    final List<String> requested =
+        Collections.synchronizedList(Lists.<String>newArrayList());
+
+    @Override
+    public boolean download(String src, File destination) {
+      requested.add(src);
+      return true;
+    }
+
+    @Override
+    public String digest(String src) {
+      requested.add(src);
+      return null;
+    }
+  }
+
+}
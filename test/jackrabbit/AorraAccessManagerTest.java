@@ -2,6 +2,7 @@ package jackrabbit;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.fest.assertions.MapAssert.entry;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static play.test.Helpers.running;
@@ -13,11 +14,13 @@ import java.security.AccessControlException;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.lang.RandomStringUtils;
+import org.apache.jackrabbit.commons.JcrUtils;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
@@ -29,6 +32,7 @@ import org.fest.assertions.MapAssert;
 import org.junit.Test;
 
 import play.libs.F;
+import service.filestore.FileStoreImpl;
 
 public class AorraAccessManagerTest {
 
@@ -143,6 +147,53 @@ public class AorraAccessManagerTest {
     );
   }
 
+  @Test
+  public void testMovedNodesInheritNewPermissions() {
+    final String user = "anonymous";
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final String[] ids = sessionFactory().inSession(
+            new F.Function<Session, String[]>() {
+          @Override
+          public String[] apply(Session session) throws RepositoryException {
+            final Node base = JcrUtils.getOrAddNode(session.getRootNode(),
+                FileStoreImpl.FILE_STORE_NODE_NAME);
+            final Node granted = base.addNode("granted");
+            final Node denied = base.addNode("denied");
+            final Node doc = granted.addNode("doc");
+            session.save();
+            final AorraAccessManager acm = (AorraAccessManager)
+                session.getAccessControlManager();
+            acm.grant("default", user, granted.getIdentifier(), Permission.RO);
+            acm.grant("default", user, denied.getIdentifier(), Permission.NONE);
+            return new String[] { doc.getIdentifier(), denied.getPath() };
+          }
+        });
+        final ItemId docId = makeId(ids[0]);
+        sessionFactory().inSession(user, new F.Function<Session, Session>() {
+          @Override
+          public Session apply(Session session) throws Exception {
+            final AorraAccessManager acm = (AorraAccessManager)
+                session.getAccessControlManager();
+            assertTrue(acm.canRead(null, docId));
+            // Moved by another session, while this one holds its decisions
+            final Session admin = sessionFactory().newAdminSession();
+            try {
+              admin.move(admin.getNodeByIdentifier(ids[0]).getPath(),
+                  ids[1] + "/doc");
+              admin.save();
+            } finally {
+              admin.logout();
+            }
+            assertFalse(acm.canRead(null, docId));
+            return session;
+          }
+        });
+      }
+    });
+  }
+
   /*
    * Lots of unimplemented methods. Let's be explicit which are intended to be.
    */
@@ -0,0 +1,70 @@
+package jackrabbit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Map;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class PermissionIndexTest {
+
+  @Test
+  public void testLookup() {
+    final NodeId ro = NodeId.randomId();
+    final NodeId none = NodeId.randomId();
+    final Map<PermissionKey, Permission> permissions = Maps.newHashMap();
+    permissions.put(new PermissionKey("default", "test", ro.toString()),
+        Permission.RO);
+    permissions.put(new PermissionKey("default", "test", none.toString()),
+        Permission.NONE);
+    permissions.put(new PermissionKey("other", "test", none.toString()),
+        Permission.RW);
+    permissions.put(new PermissionKey("default", "test", "not an id"),
+        Permission.RW);
+    final PermissionIndex index = PermissionIndex.compile(permissions);
+    final PermissionIndex.Principal p = index.get("default").get("test");
+    assertThat(p.get(ro)).isEqualTo(Permission.RO);
+    assertThat(p.get(none)).isEqualTo(Permission.NONE);
+    assertThat(p.get(NodeId.randomId())).isNull();
+    assertThat(p.readable()).containsOnly(ro);
+    assertThat(index.get("other").get("test").get(none))
+      .isEqualTo(Permission.RW);
+    assertThat(index.get("default").get("other")).isNull();
+    assertThat(index.get("missing").get("test")).isNull();
+  }
+
+  @Test
+  public void testIncrementalChanges() {
+    final NodeId a = NodeId.randomId();
+    final NodeId b = NodeId.randomId();
+    final PermissionKey ka = new PermissionKey("default", "test", a.toString());
+    final PermissionKey kb = new PermissionKey("default", "test", b.toString());
+    final PermissionKey kp = new PermissionKey("default", "other",
+        new PropertyId(a, NameConstants.JCR_DATA).toString());
+    PermissionIndex index = PermissionIndex.EMPTY
+        .with(ka, Permission.RO)
+        .with(kb, Permission.RW)
+        .with(kp, Permission.RO);
+    final PermissionIndex.Principal p = index.get("default").get("test");
+    assertThat(p.get(a)).isEqualTo(Permission.RO);
+    assertThat(p.get(b)).isEqualTo(Permission.RW);
+    assertThat(p.readable()).containsOnly(a, b);
+    assertThat(index.get("default").hasPropertyGrants()).isTrue();
+    // Changing one permission leaves the previous index as it was
+    final PermissionIndex changed = index.with(kb, Permission.NONE);
+    assertThat(changed.get("default").get("test").readable()).containsOnly(a);
+    assertThat(p.readable()).containsOnly(a, b);
+    // Revoking the last permissions removes the principal
+    index = changed.with(ka, null).with(kb, null).with(kp, null);
+    assertThat(index.get("default").get("test")).isNull();
+    assertThat(index.get("default").hasPropertyGrants()).isFalse();
+    assertThat(index.with(new PermissionKey("default", "test", "not an id"),
+        Permission.RW)).isSameAs(index);
+  }
+
+}
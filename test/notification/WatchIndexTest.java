@@ -0,0 +1,107 @@
+package notification;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static play.test.Helpers.running;
+import static test.AorraTestUtils.fakeAorraApp;
+import static test.AorraTestUtils.fileStore;
+import static test.AorraTestUtils.flagStore;
+import static test.AorraTestUtils.jcrom;
+import static test.AorraTestUtils.sessionFactory;
+
+import java.io.ByteArrayInputStream;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import models.Flag;
+import models.User;
+import models.UserDAO;
+
+import org.junit.Test;
+
+import play.libs.F.Function;
+import service.filestore.FileStore;
+import service.filestore.FlagStore;
+import service.filestore.FlagStore.FlagType;
+
+public class WatchIndexTest {
+
+  @Test
+  public void findsWatchersOfAncestors() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        sessionFactory().inSession(new Function<Session, Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final User folderWatcher = createUser(session, "folder");
+            final User fileWatcher = createUser(session, "file");
+            final FileStore.Folder a = fileStore().getManager(session)
+                .getRoot().createFolder("a");
+            final FileStore.Folder b = a.createFolder("b");
+            final FileStore.File file = b.createFile("test.txt", "text/plain",
+                new ByteArrayInputStream("Hello".getBytes()));
+            final FlagStore.Manager flm = flagStore().getManager(session);
+            flm.setFlag(FlagType.WATCH, a.getIdentifier(), folderWatcher);
+            flm.setFlag(FlagType.WATCH, file.getIdentifier(), fileWatcher);
+            final WatchIndex index =
+                new WatchIndex(sessionFactory().newAdminSession());
+            try {
+              assertThat(index.getWatchers(session, file.getIdentifier()))
+                .containsOnly(folderWatcher.getId(), fileWatcher.getId());
+              assertThat(index.getWatchers(session, b.getIdentifier()))
+                .containsOnly(folderWatcher.getId());
+            } finally {
+              index.close();
+            }
+            return session;
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void reloadsWhenFlagsAreSetOrRemoved() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        sessionFactory().inSession(new Function<Session, Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final User user = createUser(session, "watcher");
+            final FileStore.File file = fileStore().getManager(session)
+                .getRoot().createFile("test.txt", "text/plain",
+                    new ByteArrayInputStream("Hello".getBytes()));
+            final FlagStore.Manager flm = flagStore().getManager(session);
+            final WatchIndex index =
+                new WatchIndex(sessionFactory().newAdminSession());
+            try {
+              assertThat(index.getWatchers(session, file.getIdentifier()))
+                .isEmpty();
+              // No flag events are sent, so the saves must be noticed
+              final Flag flag =
+                  flm.setFlag(FlagType.WATCH, file.getIdentifier(), user);
+              assertThat(index.getWatchers(session, file.getIdentifier()))
+                .containsOnly(user.getId());
+              flm.unsetFlag(FlagType.WATCH, flag.getId());
+              assertThat(index.getWatchers(session, file.getIdentifier()))
+                .isEmpty();
+            } finally {
+              index.close();
+            }
+            return session;
+          }
+        });
+      }
+    });
+  }
+
+  private static User createUser(Session session, String name) {
+    final User u = new User();
+    u.setEmail(name + "@watchtest.test");
+    u.setName(name);
+    return new UserDAO(session, jcrom()).create(u);
+  }
+
+}
@@ -5,10 +5,12 @@ import static test.AorraTestUtils.absoluteUrl;
 import static test.AorraTestUtils.asAdminUser;
 import static test.AorraTestUtils.fileStore;
 import static test.AorraTestUtils.flagStore;
+import static test.AorraTestUtils.injector;
 import static test.AorraTestUtils.jcrom;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -20,6 +22,7 @@ import models.Flag;
 import models.Notification;
 import models.User;
 import models.UserDAO;
+import notification.Notifier;
 
 import org.junit.Test;
 
@@ -32,6 +35,8 @@ import service.filestore.FileStore;
 import service.filestore.FlagStore;
 import service.filestore.FlagStore.FlagType;
 
+import com.google.common.collect.ImmutableMap;
+
 public class NotificationManagerTest {
 
   @Test
@@ -188,6 +193,74 @@ public class NotificationManagerTest {
     });
   }
 
+  @Test
+  public void sendsNotificationsForWatchedAncestors() {
+    asAdminUser(new F.Function3<Session, User, FakeRequest, Session>() {
+      @Override
+      public Session apply(Session session, User user, FakeRequest newRequest)
+          throws RepositoryException, InterruptedException, IOException,
+            MessagingException {
+        User flaguser = createFlagUser(session);
+        final FlagStore.Manager flm = flagStore().getManager(session);
+        final FileStore.Folder folder = fileStore().getManager(session)
+            .getRoot()
+            .createFolder("test");
+        final FileStore.Folder subfolder = folder.createFolder("sub");
+        // Wait, so we don't end up watching retroactively
+        Thread.sleep(100);
+        flm.setFlag(FlagType.WATCH, folder.getIdentifier(), flaguser);
+        final FileStore.File f = subfolder.createFile("test.txt",
+            "text/plain", new ByteArrayInputStream("Test content.".getBytes()));
+        awaitNotifications(1);
+        flaguser = new UserDAO(session, jcrom()).loadById(flaguser.getId());
+        final List<Notification> notifications = flaguser.getNotifications();
+        assertThat(notifications).hasSize(1);
+        final String messageContent = notifications.get(0).getMessage();
+        assertThat(messageContent).contains("/test/sub/test.txt");
+        assertThat(messageContent).contains("created");
+        assertThat(messageContent).contains(
+            absoluteUrl(controllers.routes.FileStoreController.showFile(
+                f.getIdentifier())));
+        return session;
+      }
+    });
+  }
+
+  @Test
+  public void failingEventDoesNotStopBatch() {
+    asAdminUser(new F.Function3<Session, User, FakeRequest, Session>() {
+      @Override
+      public Session apply(Session session, User user, FakeRequest newRequest)
+          throws RepositoryException, InterruptedException, IOException,
+            MessagingException {
+        User flaguser = createFlagUser(session);
+        final FlagStore.Manager flm = flagStore().getManager(session);
+        final FileStore.File f = fileStore().getManager(session)
+            .getRoot()
+            .createFile("test.txt", "text/plain",
+                new ByteArrayInputStream("Test content.".getBytes()));
+        flm.setFlag(FlagType.WATCH, f.getIdentifier(), flaguser);
+        // Not a real flag type, so processing it throws
+        final Event broken = new Event("flag:create", ImmutableMap.of(
+            "type", "BROKEN", "target:id", f.getIdentifier()));
+        final Event update = FileStore.Events.update(f, user.getId());
+        injector().getInstance(Notifier.class).handleEvents(Arrays.asList(
+            new OrderedEvent("1", broken), new OrderedEvent("2", update)));
+        for (int retries = 50; retries > 0; retries--) {
+          flaguser = new UserDAO(session, jcrom()).loadById(flaguser.getId());
+          for (Notification notification : flaguser.getNotifications()) {
+            if (notification.getMessage().contains("updated")) {
+              return session;
+            }
+          }
+          Thread.sleep(100);
+        }
+        throw new RuntimeException(
+            "Time out waiting for the update notification.");
+      }
+    });
+  }
+
   private User createFlagUser(Session session) {
     final User u = new User();
     u.setEmail("flaguser@flagtest.test");
@@ -0,0 +1,107 @@
+package service;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import service.EventManager.BatchEventReceiver;
+import service.EventManager.Event;
+import service.EventManager.EventReceiver;
+import service.EventManager.EventReceiverMessage;
+
+import com.google.common.collect.Lists;
+
+public class EventManagerImplTest {
+
+  @Test
+  public void deliversInOrder() throws Exception {
+    final EventManagerImpl em = new EventManagerImpl(
+        new InMemoryEventTimeline<Event>(), EventManagerImpl.newDispatcher(2));
+    final CountDownLatch latch = new CountDownLatch(100);
+    final List<String> received =
+        Collections.synchronizedList(Lists.<String>newArrayList());
+    em.tell(EventReceiverMessage.add(new EventReceiver() {
+      @Override
+      public void push(OrderedEvent oe) {
+        received.add(oe.event().info("id"));
+        latch.countDown();
+      }
+      @Override
+      public void end() {}
+      @Override
+      public void end(Throwable e) {}
+    }, em.getLastEventId()));
+    final List<String> sent = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      sent.add("" + i);
+      em.tell(event("" + i));
+    }
+    assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    // Queueing receivers never miss events
+    assertThat(received).isEqualTo(sent);
+  }
+
+  @Test
+  public void batchesEventsForSlowReceiver() throws Exception {
+    final EventManagerImpl em = new EventManagerImpl(
+        new InMemoryEventTimeline<Event>(), EventManagerImpl.newDispatcher(2));
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch received = new CountDownLatch(20);
+    final List<Integer> batches =
+        Collections.synchronizedList(Lists.<Integer>newArrayList());
+    em.tell(EventReceiverMessage.add(new BatchEventReceiver() {
+      @Override
+      public void push(OrderedEvent oe) {
+        push(Collections.singletonList(oe));
+      }
+      @Override
+      public void push(List<OrderedEvent> batch) {
+        batches.add(batch.size());
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {}
+        for (int i = 0; i < batch.size(); i++) {
+          received.countDown();
+        }
+      }
+      @Override
+      public void end() {}
+      @Override
+      public void end(Throwable e) {}
+    }, em.getLastEventId()));
+    for (int i = 0; i < 20; i++) {
+      em.tell(event("" + i));
+    }
+    // Slow receivers are kept, and never miss events
+    assertThat(em.getReceiverStats()).hasSize(1);
+    blocked.countDown();
+    assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+    // Events queued while blocked arrive together
+    assertThat(batches.size()).isLessThan(11);
+  }
+
+  @Test
+  public void capsHistoryWithoutLastEventId() throws Exception {
+    final EventManagerImpl em = new EventManagerImpl();
+    for (int i = 0; i < EventManagerImpl.MAX_KNOWN; i++) {
+      em.tell(event("" + i));
+    }
+    assertThat(em.getSince(null)).hasSize(EventManagerImpl.MAX_KNOWN);
+    em.tell(event("" + EventManagerImpl.MAX_KNOWN));
+    // Too much to send, so the client is told to reload instead
+    final List<OrderedEvent> events = Lists.newArrayList(em.getSince(null));
+    assertThat(events).hasSize(1);
+    assertThat(events.get(0).event().type).isEqualTo("outofdate");
+    assertThat(events.get(0).id()).isEqualTo(em.getLastEventId());
+  }
+
+  private Event event(String id) throws Exception {
+    return new Event("file:update", Collections.singletonMap("id", id));
+  }
+
+}
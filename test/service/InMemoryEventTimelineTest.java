@@ -32,6 +32,17 @@ public class InMemoryEventTimelineTest {
     assertThat(et.getKnown()).hasSize(1);
   }
 
+  @Test
+  public void getsLatestEvents() {
+    final EventTimeline<String,String> et = new InMemoryEventTimeline<String>();
+    assertThat(et.getLatest(2)).isEmpty();
+    et.record("1");
+    et.record("2");
+    et.record("3");
+    assertThat(et.getLatest(2).values()).containsOnly("2", "3");
+    assertThat(et.getLatest(10)).hasSize(3);
+  }
+
   @Test
   public void canForget() throws ForgottenEventException {
     final EventTimeline<String,Object> et = new InMemoryEventTimeline<Object>() {
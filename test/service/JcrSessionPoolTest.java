@@ -0,0 +1,141 @@
+package service;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class JcrSessionPoolTest {
+
+  private static final String USER = "anonymous";
+
+  private static TransientRepository repo;
+
+  @BeforeClass
+  public static void setUp() {
+    repo = new TransientRepository(new File("./test"));
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    repo.shutdown();
+  }
+
+  @Test
+  public void reusesSessions() {
+    final CountingFactory sf = new CountingFactory();
+    final JcrSessionPool pool = new JcrSessionPool(sf, 4, 60000, 60000);
+    final JcrSessionPool.Pooled first = pool.borrow(USER);
+    assertThat(first.session.getUserID()).isEqualTo(USER);
+    pool.giveBack(USER, first);
+    final JcrSessionPool.Pooled second = pool.borrow(USER);
+    assertThat(second).isSameAs(first);
+    assertThat(second.session.isLive()).isTrue();
+    assertThat(sf.created.get()).isEqualTo(1);
+    pool.giveBack(USER, second);
+    pool.invalidate();
+  }
+
+  @Test
+  public void discardsPendingChanges() throws RepositoryException {
+    final CountingFactory sf = new CountingFactory();
+    final JcrSessionPool pool = new JcrSessionPool(sf, 4, 60000, 60000);
+    // Anonymous can't write, so pool an admin session to make changes in
+    final JcrSessionPool.Pooled p = new JcrSessionPool.Pooled(
+        sf.newAdminSession(), System.currentTimeMillis(), 0);
+    p.session.getRootNode().addNode("pooltest");
+    assertThat(p.session.hasPendingChanges()).isTrue();
+    pool.giveBack(USER, p);
+    // Kept, but without the changes
+    assertThat(pool.borrow(USER)).isSameAs(p);
+    assertThat(p.session.hasPendingChanges()).isFalse();
+    assertThat(p.session.getRootNode().hasNode("pooltest")).isFalse();
+    assertThat(sf.created.get()).isEqualTo(0);
+    pool.giveBack(USER, p);
+    pool.invalidate();
+  }
+
+  @Test
+  public void invalidationStopsReuse() {
+    final CountingFactory sf = new CountingFactory();
+    final JcrSessionPool pool = new JcrSessionPool(sf, 4, 60000, 60000);
+    final JcrSessionPool.Pooled idle = pool.borrow(USER);
+    final JcrSessionPool.Pooled inUse = pool.borrow(USER);
+    pool.giveBack(USER, idle);
+    pool.invalidate();
+    // Idle sessions are closed straight away
+    assertThat(idle.session.isLive()).isFalse();
+    // Sessions in use are closed when given back
+    assertThat(inUse.session.isLive()).isTrue();
+    pool.giveBack(USER, inUse);
+    assertThat(inUse.session.isLive()).isFalse();
+    final JcrSessionPool.Pooled next = pool.borrow(USER);
+    assertThat(sf.created.get()).isEqualTo(3);
+    pool.giveBack(USER, next);
+    pool.invalidate();
+  }
+
+  @Test
+  public void closesIdleSessions() throws InterruptedException {
+    final CountingFactory sf = new CountingFactory();
+    final JcrSessionPool pool = new JcrSessionPool(sf, 4, 100, 60000);
+    final JcrSessionPool.Pooled p = pool.borrow(USER);
+    pool.giveBack(USER, p);
+    // Sweeps happen at most once a second, when sessions are borrowed
+    Thread.sleep(1100);
+    final JcrSessionPool.Pooled next = pool.borrow(USER);
+    assertThat(p.session.isLive()).isFalse();
+    assertThat(next).isNotSameAs(p);
+    assertThat(sf.created.get()).isEqualTo(2);
+    pool.giveBack(USER, next);
+    pool.invalidate();
+  }
+
+  @Test
+  public void doesNotReuseOldSessions() throws InterruptedException {
+    final CountingFactory sf = new CountingFactory();
+    final JcrSessionPool pool = new JcrSessionPool(sf, 4, 60000, 200);
+    final JcrSessionPool.Pooled p = pool.borrow(USER);
+    pool.giveBack(USER, p);
+    Thread.sleep(300);
+    final JcrSessionPool.Pooled next = pool.borrow(USER);
+    assertThat(next).isNotSameAs(p);
+    assertThat(p.session.isLive()).isFalse();
+    assertThat(sf.created.get()).isEqualTo(2);
+    // Too old to go back in the pool either
+    Thread.sleep(300);
+    pool.giveBack(USER, next);
+    assertThat(next.session.isLive()).isFalse();
+  }
+
+  private static class CountingFactory extends JcrSessionFactory {
+    final AtomicInteger created = new AtomicInteger();
+
+    @Override
+    public Session newAdminSession() {
+      try {
+        return repo.login(
+            new SimpleCredentials("admin", "admin".toCharArray()));
+      } catch (RepositoryException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public Session newUserSession(Credentials credentials) {
+      created.incrementAndGet();
+      return super.newUserSession(credentials);
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package service;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.NavigableMap;
+
+import javax.jcr.RepositoryException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import service.EventManager.Event;
+import service.EventTimeline.ForgottenEventException;
+
+public class RingFileEventTimelineTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("events", ".timeline");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void canRecordAndRetrieve() throws Exception {
+    final RingFileEventTimeline et = timeline(64 * 1024, 100);
+    assertThat(et.getKnown()).isEmpty();
+    final String id1 = et.record(event("file:create", "1"));
+    final String id2 = et.record(event("file:update", "1"));
+    assertThat(id2.compareTo(id1)).isGreaterThan(0);
+    assertThat(et.getLastEventId()).isEqualTo(id2);
+    final NavigableMap<String, Event> events = et.getSince(id1);
+    assertThat(events).hasSize(1);
+    assertThat(events.firstEntry().getValue().type).isEqualTo("file:update");
+    assertThat(events.firstEntry().getValue().info("id")).isEqualTo("1");
+    assertThat(et.getSince(id2)).isEmpty();
+    et.close();
+  }
+
+  @Test
+  public void survivesRestart() throws Exception {
+    final RingFileEventTimeline et = timeline(64 * 1024, 100);
+    final String id1 = et.record(event("file:create", "1"));
+    final String id2 = et.record(event("file:create", "2"));
+    et.close();
+    final RingFileEventTimeline reopened = timeline(64 * 1024, 100);
+    assertThat(reopened.getLastEventId()).isEqualTo(id2);
+    assertThat(reopened.getSince(id1)).hasSize(1);
+    assertThat(reopened.getSince(id1).firstEntry().getValue().info("id"))
+      .isEqualTo("2");
+    final String id3 = reopened.record(event("file:create", "3"));
+    assertThat(id3.compareTo(id2)).isGreaterThan(0);
+    reopened.close();
+  }
+
+  @Test
+  public void forgetsOldestWhenFull() throws Exception {
+    // Small enough to wrap around several times
+    final RingFileEventTimeline et = timeline(1024, 1000);
+    final String first = et.record(event("file:create", "0"));
+    String last = first;
+    for (int i = 1; i < 100; i++) {
+      last = et.record(event("file:create", "" + i));
+    }
+    assertThat(et.getLastEventId()).isEqualTo(last);
+    try {
+      et.getSince(first);
+      fail("Expected ForgottenEventException");
+    } catch (ForgottenEventException e) {
+      // All good
+    }
+    final NavigableMap<String, Event> known = et.getKnown();
+    assertThat(known).isNotEmpty();
+    assertThat(known.lastKey()).isEqualTo(last);
+    assertThat(known.lastEntry().getValue().info("id")).isEqualTo("99");
+    // Everything after the oldest retained event is still available
+    assertThat(et.getSince(known.firstKey())).hasSize(known.size() - 1);
+    et.close();
+    final RingFileEventTimeline reopened = timeline(1024, 1000);
+    assertThat(reopened.getKnown().keySet()).isEqualTo(known.keySet());
+    reopened.close();
+  }
+
+  @Test
+  public void forgetsBeyondMaxEvents() throws Exception {
+    final RingFileEventTimeline et = timeline(64 * 1024, 2);
+    final String id1 = et.record(event("file:create", "1"));
+    final String id2 = et.record(event("file:create", "2"));
+    final String id3 = et.record(event("file:create", "3"));
+    et.record(event("file:create", "4"));
+    assertThat(et.getKnown()).hasSize(2);
+    // Only events after the last one forgotten can be caught up on
+    assertThat(et.getSince(id2)).hasSize(2);
+    assertThat(et.getSince(id3)).hasSize(1);
+    try {
+      et.getSince(id1);
+      fail("Expected ForgottenEventException");
+    } catch (ForgottenEventException e) {
+      // All good
+    }
+    et.close();
+  }
+
+  @Test
+  public void getsLatestEvents() throws Exception {
+    final RingFileEventTimeline et = timeline(64 * 1024, 100);
+    assertThat(et.getLatest(2)).isEmpty();
+    et.record(event("file:create", "1"));
+    final String id2 = et.record(event("file:create", "2"));
+    final String id3 = et.record(event("file:create", "3"));
+    final NavigableMap<String, Event> latest = et.getLatest(2);
+    assertThat(latest.keySet()).containsOnly(id2, id3);
+    assertThat(et.getLatest(10)).hasSize(3);
+    et.close();
+  }
+
+  private RingFileEventTimeline timeline(int size, int maxEvents)
+      throws IOException {
+    return new RingFileEventTimeline(file, size, maxEvents, 60000L);
+  }
+
+  private Event event(String type, String id) throws RepositoryException {
+    return new Event(type, Collections.singletonMap("id", id));
+  }
+
+}
@@ -11,6 +11,7 @@ import static test.AorraTestUtils.sessionFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -26,6 +27,7 @@ import models.UserDAO;
 
 import org.junit.Test;
 
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 
 import play.Logger;
@@ -132,6 +134,231 @@ public class FileStoreTest {
     });
   }
 
+  @Test
+  public void treeMatchesFolders() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            final FileStore.Folder folder = fm.getRoot().createFolder("a");
+            folder.createFolder("b").createFile("test.txt", "text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            fm.getRoot().createFile("readme.txt", "text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            return session;
+          }
+        });
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            final JsonBuilder jb = new JsonBuilder();
+            final List<FileStore.TreeEntry> tree = fm.getTree();
+            assertThat(tree).hasSize(5);
+            assertThat(tree.get(0).getPath()).isEqualTo("/");
+            assertThat(tree.get(0).getParentIdentifier()).isNull();
+            assertThat(Sets.newHashSet(jb.toJsonTree(tree))).isEqualTo(
+                Sets.newHashSet(jb.toJson(fm.getFolders())));
+            // Cached metadata should match too
+            for (FileStore.TreeEntry entry : tree) {
+              assertThat(jb.toJsonShallow(fm.getEntry(entry.getIdentifier())))
+                .isEqualTo(jb.toJsonShallow(entry));
+            }
+            assertThat(fm.getEntry("not an id")).isNull();
+            return session;
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void treeMatchesFoldersForUser() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        // User is granted /a/b, so /a is only readable as an ancestor
+        final String[] ids = sessionFactory().inSession(
+            new Function<Session,String[]>() {
+          @Override
+          public String[] apply(Session session) throws RepositoryException {
+            final UserDAO dao = new UserDAO(session, jcrom());
+            User user = new User();
+            user.setEmail("user@example.com");
+            user.setName("Test User");
+            user = dao.create(user);
+            final GroupManager gm = new GroupManager(session);
+            gm.create("testGroup");
+            session.save();
+            gm.addMember("testGroup", user.getJackrabbitUserId());
+            FileStore.Manager fm = fileStore().getManager(session);
+            final FileStore.Folder a = fm.getRoot().createFolder("a");
+            final FileStore.Folder b = a.createFolder("b");
+            b.grantAccess("testGroup", FileStore.Permission.RO);
+            b.createFolder("c");
+            b.createFile("test.txt", "text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            final FileStore.Folder other = a.createFolder("other");
+            fm.getRoot().createFile("readme.txt", "text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            return new String[] { user.getJackrabbitUserId(),
+                a.getIdentifier(), b.getIdentifier(), other.getIdentifier() };
+          }
+        });
+        sessionFactory().inSession(ids[0], new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            final JsonBuilder jb = new JsonBuilder();
+            final List<FileStore.TreeEntry> tree = fm.getTree();
+            assertThat(names(tree)).containsOnly("b", "c", "test.txt");
+            assertThat(tree.get(0).getIdentifier()).isEqualTo(ids[2]);
+            assertThat(tree.get(0).getPath()).isEqualTo("/a/b");
+            assertThat(tree.get(0).getParentIdentifier()).isNull();
+            for (FileStore.TreeEntry entry : tree) {
+              assertThat(entry.getAccessLevel())
+                .as(entry.getPath())
+                .isEqualTo(FileStore.Permission.RO);
+            }
+            assertThat(Sets.newHashSet(jb.toJsonTree(tree))).isEqualTo(
+                Sets.newHashSet(jb.toJson(fm.getFolders())));
+            // Cached metadata should match too
+            for (FileStore.TreeEntry entry : tree) {
+              assertThat(jb.toJsonShallow(fm.getEntry(entry.getIdentifier())))
+                .isEqualTo(jb.toJsonShallow(entry));
+            }
+            // Ancestors can be read, but don't grant any access
+            assertThat(fm.getEntry(ids[1]).getAccessLevel())
+              .isEqualTo(FileStore.Permission.NONE);
+            assertThat(fm.getEntry(ids[3])).isNull();
+            return session;
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void findByName() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            final FileStore.Folder folder = fm.getRoot().createFolder("Tests");
+            folder.createFile("test.txt", "text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            fm.getRoot().createFile("readme.txt", "text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            return session;
+          }
+        });
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            final Set<String> names = Sets.newHashSet();
+            for (FileStore.TreeEntry entry : fm.findByName("TEST")) {
+              names.add(entry.getName());
+            }
+            assertThat(names).containsOnly("Tests", "test.txt");
+            assertThat(fm.findByName(".txt")).hasSize(2);
+            assertThat(fm.findByName("me")).hasSize(1);
+            assertThat(fm.findByName("missing")).isEmpty();
+            return session;
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void findByNameSeesSavedChanges() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final String[] ids = sessionFactory().inSession(
+            new Function<Session,String[]>() {
+          @Override
+          public String[] apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            final FileStore.Folder folder = fm.getRoot().createFolder("Tests");
+            final FileStore.File file = folder.createFile("test.txt",
+                "text/plain", new ByteArrayInputStream("Hello".getBytes()));
+            return new String[] { folder.getIdentifier(),
+                file.getIdentifier() };
+          }
+        });
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            // Loads the index
+            assertThat(names(fileStore().getManager(session)
+                .findByName("test"))).containsOnly("Tests", "test.txt");
+            return session;
+          }
+        });
+        // Plain JCR changes send no file store events
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final String path = session.getNodeByIdentifier(ids[1]).getPath();
+            session.move(path,
+                path.substring(0, path.lastIndexOf('/')) + "/renamed.txt");
+            return session;
+          }
+        });
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            assertThat(names(fm.findByName("test"))).containsOnly("Tests");
+            assertThat(names(fm.findByName("renamed")))
+              .containsOnly("renamed.txt");
+            final FileStore.Folder folder =
+                (FileStore.Folder) fm.getByIdentifier(ids[0]);
+            folder.createFile("another test.txt", "text/plain",
+                new ByteArrayInputStream("Hello".getBytes()));
+            return session;
+          }
+        });
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            assertThat(names(fm.findByName("test")))
+              .containsOnly("Tests", "another test.txt");
+            fm.getByIdentifier(ids[0]).delete();
+            return session;
+          }
+        });
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            FileStore.Manager fm = fileStore().getManager(session);
+            // Everything inside the folder has gone too
+            assertThat(fm.findByName("test")).isEmpty();
+            assertThat(fm.findByName("renamed")).isEmpty();
+            return session;
+          }
+        });
+      }
+    });
+  }
+
+  private static Set<String> names(Iterable<FileStore.TreeEntry> entries) {
+    final Set<String> names = Sets.newHashSet();
+    for (FileStore.TreeEntry entry : entries) {
+      names.add(entry.getName());
+    }
+    return names;
+  }
+
   @Test
   public void noImplicitOverwriting() {
     running(fakeAorraApp(), new Runnable() {
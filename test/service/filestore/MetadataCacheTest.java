@@ -0,0 +1,118 @@
+package service.filestore;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static play.test.Helpers.running;
+import static test.AorraTestUtils.fakeAorraApp;
+import static test.AorraTestUtils.fileStore;
+import static test.AorraTestUtils.sessionFactory;
+
+import java.io.ByteArrayInputStream;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+
+import play.libs.F.Function;
+
+public class MetadataCacheTest {
+
+  @Test
+  public void invalidatedOnceChangesAreSaved() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final String[] ids = sessionFactory().inSession(
+            new Function<Session,String[]>() {
+          @Override
+          public String[] apply(Session session) throws RepositoryException {
+            final FileStore.Manager fm = fileStore().getManager(session);
+            final FileStore.Folder folder = fm.getRoot().createFolder("a");
+            final FileStore.File file = folder.createFile("test.txt",
+                "text/plain", new ByteArrayInputStream("Hello".getBytes()));
+            return new String[] { folder.getIdentifier(),
+                file.getIdentifier() };
+          }
+        });
+        final FileStore.TreeEntry before = getEntry(ids[1]);
+        assertThat(before.getPath()).isEqualTo("/a/test.txt");
+        // Cached until something changes
+        assertThat(getEntry(ids[1]).getDigest()).isEqualTo(before.getDigest());
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final FileStore.Manager fm = fileStore().getManager(session);
+            ((FileStore.File) fm.getByIdentifier(ids[1])).update("text/plain",
+                new ByteArrayInputStream("Hello World!".getBytes()));
+            return session;
+          }
+        });
+        final FileStore.TreeEntry updated = getEntry(ids[1]);
+        assertThat(updated.getDigest()).isNotEqualTo(before.getDigest());
+        // Renaming the folder changes the path of the file inside it
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final FileStore.Manager fm = fileStore().getManager(session);
+            fm.getByIdentifier(ids[0]).rename("b");
+            return session;
+          }
+        });
+        assertThat(getEntry(ids[1]).getPath()).isEqualTo("/b/test.txt");
+        assertThat(getEntry(ids[0]).getName()).isEqualTo("b");
+        // Deleted nodes have no entry
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final FileStore.Manager fm = fileStore().getManager(session);
+            fm.getByIdentifier(ids[1]).delete();
+            return session;
+          }
+        });
+        assertThat(getEntry(ids[1])).isNull();
+      }
+    });
+  }
+
+  @Test
+  public void changesOutsideTheFileStoreApiAreSeen() {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        final String id = sessionFactory().inSession(
+            new Function<Session,String>() {
+          @Override
+          public String apply(Session session) throws RepositoryException {
+            final FileStore.Manager fm = fileStore().getManager(session);
+            return fm.getRoot().createFile("test.txt", "text/plain",
+                new ByteArrayInputStream("Hello".getBytes())).getIdentifier();
+          }
+        });
+        assertThat(getEntry(id).getName()).isEqualTo("test.txt");
+        // No file store events are sent for a plain JCR move
+        sessionFactory().inSession(new Function<Session,Session>() {
+          @Override
+          public Session apply(Session session) throws RepositoryException {
+            final String path = session.getNodeByIdentifier(id).getPath();
+            session.move(path,
+                path.substring(0, path.lastIndexOf('/')) + "/moved.txt");
+            return session;
+          }
+        });
+        assertThat(getEntry(id).getName()).isEqualTo("moved.txt");
+      }
+    });
+  }
+
+  private static FileStore.TreeEntry getEntry(final String id) {
+    return sessionFactory().inSession(
+        new Function<Session,FileStore.TreeEntry>() {
+      @Override
+      public FileStore.TreeEntry apply(Session session)
+          throws RepositoryException {
+        return fileStore().getManager(session).getEntry(id);
+      }
+    });
+  }
+
+}
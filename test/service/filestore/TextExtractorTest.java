@@ -0,0 +1,151 @@
+package service.filestore;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static play.test.Helpers.running;
+import static test.AorraTestUtils.fakeAorraApp;
+import static test.AorraTestUtils.fileStore;
+import static test.AorraTestUtils.sessionFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+
+import javax.jcr.Session;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.libs.F.Function;
+
+import com.google.common.io.Files;
+
+public class TextExtractorTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void extractsOnce() {
+    withFile("Hello World!", new Function<FileStore.File, Void>() {
+      @Override
+      public Void apply(FileStore.File file) throws Throwable {
+        final TextExtractor te = new TextExtractor(dir, 10, 1, 1000, 1000,
+            10000);
+        final File text = te.getText(file);
+        assertThat(FileUtils.readFileToString(text).trim())
+          .isEqualTo("Hello World!");
+        // Served from disk, rather than parsed again
+        FileUtils.write(text, "cached");
+        assertThat(te.getText(file)).isEqualTo(text);
+        assertThat(FileUtils.readFileToString(text)).isEqualTo("cached");
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void truncatesText() {
+    withFile("Hello World!", new Function<FileStore.File, Void>() {
+      @Override
+      public Void apply(FileStore.File file) throws Throwable {
+        final TextExtractor te = new TextExtractor(dir, 10, 1, 5, 1000,
+            10000);
+        assertThat(FileUtils.readFileToString(te.getText(file)))
+          .isEqualTo("Hello");
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void refusesLargeDocuments() {
+    withFile("Hello World!", new Function<FileStore.File, Void>() {
+      @Override
+      public Void apply(FileStore.File file) throws Throwable {
+        final TextExtractor te = new TextExtractor(dir, 10, 1, 1000, 5,
+            10000);
+        try {
+          te.getText(file);
+          fail("Should have been refused");
+        } catch (TextExtractor.ExtractionException e) {
+          assertThat(e.getMessage()).contains("too large");
+        }
+        // Nothing left behind
+        assertThat(dir.list()).isEmpty();
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void stopsSlowExtraction() {
+    final String content = StringUtils.repeat("Hello World! ", 500000);
+    withFile(content, new Function<FileStore.File, Void>() {
+      @Override
+      public Void apply(FileStore.File file) throws Throwable {
+        final TextExtractor te = new TextExtractor(dir, 10, 1,
+            content.length(), content.length(), 1);
+        // Callers stop waiting, and the parse stops itself soon after
+        final long deadline = System.currentTimeMillis() + 5000;
+        String message = "";
+        do {
+          try {
+            te.getText(file);
+            fail("Should have timed out");
+          } catch (TextExtractor.ExtractionException e) {
+            message = e.getMessage();
+          }
+        } while (!message.contains("took too long") &&
+            System.currentTimeMillis() < deadline);
+        assertThat(message).contains("took too long");
+        // Nothing left behind, as the parse didn't finish
+        assertThat(dir.list(new FilenameFilter() {
+          @Override
+          public boolean accept(File d, String name) {
+            return name.endsWith(".txt");
+          }
+        })).isEmpty();
+        // The failure is remembered
+        try {
+          te.getText(file);
+          fail("Should have remembered the timeout");
+        } catch (TextExtractor.ExtractionException e) {
+          assertThat(e.getMessage()).contains("too long");
+        }
+        return null;
+      }
+    });
+  }
+
+  private void withFile(final String content,
+      final Function<FileStore.File, Void> f) {
+    running(fakeAorraApp(), new Runnable() {
+      @Override
+      public void run() {
+        sessionFactory().inSession(new Function<Session, Void>() {
+          @Override
+          public Void apply(Session session) throws Throwable {
+            final FileStore.File file = fileStore().getManager(session)
+                .getRoot().createFile("test.txt", "text/plain",
+                    new ByteArrayInputStream(content.getBytes()));
+            return f.apply(file);
+          }
+        });
+      }
+    });
+  }
+
+}
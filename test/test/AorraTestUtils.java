@@ -69,13 +69,28 @@ public class AorraTestUtils {
   }
 
   public static FakeApplication fakeAorraApp(boolean muteErrors) {
+    return fakeAorraApp(muteErrors, new HashMap<String, Object>());
+  }
+
+  /**
+   * @param config settings to add to (or override) the test configuration
+   */
+  public static FakeApplication fakeAorraApp(Map<String, Object> config) {
+    return fakeAorraApp(true, config);
+  }
+
+  private static FakeApplication fakeAorraApp(boolean muteErrors,
+      Map<String, Object> config) {
     final List<String> additionalPlugins = newArrayList(
         "test.FakeMailPlugin");
     final List<String> withoutPlugins = newArrayList(
         "com.typesafe.plugin.CommonsMailerPlugin");
+    final Map<String, Object> m =
+        new HashMap<String, Object>(additionalConfig(muteErrors));
+    m.putAll(config);
     return new FakeApplication(
         new java.io.File("."), Helpers.class.getClassLoader(),
-        additionalConfig(muteErrors),
+        m,
         additionalPlugins,
         withoutPlugins,
         null);
@@ -92,6 +107,7 @@ public class AorraTestUtils {
     m.put(ConfigConsts.CONF_JCR_REPOSITORY_CONFIG, REPOSITORY_CONFIG_PATH);
     m.put(ConfigConsts.CONF_JCR_HAS_RECREATION_REQUIRE, true);
     m.put("crash.enabled", false);
+    m.put("application.events.timeline.type", "memory");
     m.put("notifications.waitMillis", 100L);
     return m.build();
   }